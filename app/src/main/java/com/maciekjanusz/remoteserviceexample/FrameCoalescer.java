@@ -0,0 +1,99 @@
+package com.maciekjanusz.remoteserviceexample;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+
+/**
+ * Runs a task on the main thread at most once per display frame, however many times it gets
+ * requested in between - so that bursts of updates cost a single redraw.
+ *
+ * Uses Choreographer where available (API 16+), falls back to a handler delayed by one frame.
+ * Main thread only.
+ */
+class FrameCoalescer implements Runnable {
+
+    /**
+     * Frame duration at 60 fps, for the fallback
+     */
+    private static final long FRAME_MILLIS = 16;
+
+    private final Runnable task;
+    /**
+     * Choreographer.FrameCallback on API 16+, null otherwise - kept as Object, so that this class
+     * loads on API 15
+     */
+    private final Object frameCallback;
+    private Handler handler;
+    private boolean scheduled = false;
+
+    FrameCoalescer(Runnable task) {
+        this.task = task;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            frameCallback = new FrameCallback(this);
+        } else {
+            frameCallback = null;
+            handler = new Handler();
+        }
+    }
+
+    /**
+     * Schedules the task for the next frame, unless it's scheduled already.
+     */
+    void request() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        if (frameCallback != null) {
+            ((FrameCallback) frameCallback).post();
+        } else {
+            handler.postDelayed(this, FRAME_MILLIS);
+        }
+    }
+
+    /**
+     * Drops scheduled run of the task, if any.
+     */
+    void cancel() {
+        if (!scheduled) {
+            return;
+        }
+        scheduled = false;
+        if (frameCallback != null) {
+            ((FrameCallback) frameCallback).remove();
+        } else {
+            handler.removeCallbacks(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        scheduled = false;
+        task.run();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class FrameCallback implements Choreographer.FrameCallback {
+
+        private final Runnable target;
+
+        FrameCallback(Runnable target) {
+            this.target = target;
+        }
+
+        void post() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        void remove() {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            target.run();
+        }
+    }
+}
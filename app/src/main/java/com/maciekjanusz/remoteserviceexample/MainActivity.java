@@ -1,21 +1,24 @@
 package com.maciekjanusz.remoteserviceexample;
 
-import android.location.Location;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
 import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import com.google.android.gms.location.LocationListener;
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.LocationSampleListener;
 import com.maciekjanusz.remoteserviceexample.service.ServiceProxy;
 import com.maciekjanusz.remoteserviceexample.service.ServiceProxy.ServiceCallbacks;
+import com.maciekjanusz.remoteserviceexample.service.stats.TrackSummary;
+import com.maciekjanusz.remoteserviceexample.service.stats.TrackSummaryListener;
 
 import butterknife.Bind;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
 
-public class MainActivity extends AppCompatActivity implements ServiceCallbacks, LocationListener {
+public class MainActivity extends AppCompatActivity implements ServiceCallbacks,
+        LocationSampleListener, TrackSummaryListener {
 
     /**
      * Service toggle button
@@ -33,12 +36,47 @@ public class MainActivity extends AppCompatActivity implements ServiceCallbacks,
      * Text view for displaying location accuracy (in meters)
      */
     @Bind(R.id.accuracy_textview)       TextView    accuracyView;
+    /**
+     * Text views for displaying track summary
+     */
+    @Bind(R.id.distance_textview)       TextView    distanceView;
+    @Bind(R.id.moving_time_textview)    TextView    movingTimeView;
+    @Bind(R.id.average_speed_textview)  TextView    averageSpeedView;
+    @Bind(R.id.max_speed_textview)      TextView    maxSpeedView;
+    @Bind(R.id.elevation_gain_textview) TextView    elevationGainView;
 
     /**
      * ServiceProxy object for IPC messenger logic
      */
     private ServiceProxy serviceProxy;
 
+    /**
+     * Latest fix and summary not displayed yet - fixes may come in bursts,
+     * views are updated at most once per frame with the latest ones
+     */
+    private final LocationSample pendingSample = new LocationSample();
+    private final TrackSummary pendingSummary = new TrackSummary();
+    private boolean samplePending = false;
+    private boolean summaryPending = false;
+    private final FrameCoalescer viewUpdate = new FrameCoalescer(new Runnable() {
+        @Override
+        public void run() {
+            updateViews();
+        }
+    });
+
+    /**
+     * Text buffers of the views, reused for every update
+     */
+    private final TextBuffer locationText = new TextBuffer(32);
+    private final TextBuffer speedText = new TextBuffer(16);
+    private final TextBuffer accuracyText = new TextBuffer(16);
+    private final TextBuffer distanceText = new TextBuffer(16);
+    private final TextBuffer movingTimeText = new TextBuffer(16);
+    private final TextBuffer averageSpeedText = new TextBuffer(16);
+    private final TextBuffer maxSpeedText = new TextBuffer(16);
+    private final TextBuffer elevationGainText = new TextBuffer(16);
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -48,6 +86,7 @@ public class MainActivity extends AppCompatActivity implements ServiceCallbacks,
         serviceProxy = new ServiceProxy(this);
         serviceProxy.addLocationListener(this);
         serviceProxy.addServiceCallbacks(this);
+        serviceProxy.addTrackSummaryListener(this);
 
         // provides serviceProxy with lifecycle callbacks for auto-binding
         getApplication().registerActivityLifecycleCallbacks(serviceProxy);
@@ -68,6 +107,8 @@ public class MainActivity extends AppCompatActivity implements ServiceCallbacks,
         // stop acquiring locations and service callbacks
         serviceProxy.removeLocationListener(this);
         serviceProxy.removeServiceCallbacks(this);
+        serviceProxy.removeTrackSummaryListener(this);
+        viewUpdate.cancel();
         // unregister serviceProxy lifecycle callbacks
         getApplication().unregisterActivityLifecycleCallbacks(serviceProxy);
         super.onDestroy();
@@ -93,12 +134,46 @@ public class MainActivity extends AppCompatActivity implements ServiceCallbacks,
     }
 
     @Override
-    public void onLocationChanged(Location location) {
-        if(location != null) {
-            // Update UI
-            locationView.setText(location.getLatitude() + ", " + location.getLongitude());
-            accuracyView.setText(String.valueOf(location.getAccuracy()));
-            speedView.setText(String.valueOf(location.getSpeed()) + " m/s");
+    public void onLocationSample(LocationSample sample) {
+        pendingSample.set(sample);
+        samplePending = true;
+        viewUpdate.request();
+    }
+
+    @Override
+    public void onTrackSummary(TrackSummary summary) {
+        pendingSummary.set(summary);
+        summaryPending = true;
+        viewUpdate.request();
+    }
+
+    /**
+     * Update UI with the latest fix and summary
+     */
+    private void updateViews() {
+        if (samplePending) {
+            samplePending = false;
+            locationText.clear().append(pendingSample.latitude, 6)
+                    .append(", ").append(pendingSample.longitude, 6)
+                    .applyTo(locationView);
+            accuracyText.clear().append(pendingSample.accuracy, 1).applyTo(accuracyView);
+            speedText.clear().append(pendingSample.speed, 1).append(" m/s").applyTo(speedView);
+        }
+        if (summaryPending) {
+            summaryPending = false;
+            distanceText.clear().append(Math.round(pendingSummary.distance)).append(" m")
+                    .applyTo(distanceView);
+            long movingSeconds = pendingSummary.movingMillis / 1000;
+            movingTimeText.clear().append(movingSeconds / 3600).append(':')
+                    .append(movingSeconds / 60 % 60, 2).append(':')
+                    .append(movingSeconds % 60, 2)
+                    .applyTo(movingTimeView);
+            averageSpeedText.clear().append(pendingSummary.averageMovingSpeed(), 1).append(" m/s")
+                    .applyTo(averageSpeedView);
+            maxSpeedText.clear().append(pendingSummary.maxSpeed, 1).append(" m/s")
+                    .applyTo(maxSpeedView);
+            elevationGainText.clear().append(Math.round(pendingSummary.elevationGain)).append(" m")
+                    .applyTo(elevationGainView);
         }
     }
 }
\ No newline at end of file
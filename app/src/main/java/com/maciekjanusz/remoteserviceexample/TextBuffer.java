@@ -0,0 +1,114 @@
+package com.maciekjanusz.remoteserviceexample;
+
+import android.widget.TextView;
+
+/**
+ * Reusable character buffer for formatting text of a single view without creating strings.
+ *
+ * TextView keeps displaying the array passed to {@link TextView#setText(char[], int, int)},
+ * so use one buffer per view and modify it only right before {@link #applyTo(TextView)}.
+ */
+class TextBuffer {
+
+    private static final long[] POWERS_OF_TEN = {
+            1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000
+    };
+
+    private char[] chars;
+    private int length = 0;
+
+    TextBuffer(int capacity) {
+        chars = new char[capacity];
+    }
+
+    TextBuffer clear() {
+        length = 0;
+        return this;
+    }
+
+    TextBuffer append(char c) {
+        ensure(1);
+        chars[length++] = c;
+        return this;
+    }
+
+    TextBuffer append(String text) {
+        int textLength = text.length();
+        ensure(textLength);
+        text.getChars(0, textLength, chars, length);
+        length += textLength;
+        return this;
+    }
+
+    TextBuffer append(long value) {
+        return append(value, 1);
+    }
+
+    /**
+     * Appends integer, left padded with zeros.
+     * @param minDigits minimum number of digits
+     */
+    TextBuffer append(long value, int minDigits) {
+        if (value == Long.MIN_VALUE) {
+            return append(String.valueOf(value));
+        }
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        ensure(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    /**
+     * Appends number rounded to fixed number of decimal places.
+     * @param decimals number of decimal places, 0 to 8
+     */
+    TextBuffer append(double value, int decimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return append(String.valueOf(value));
+        }
+        long power = POWERS_OF_TEN[decimals];
+        long scaled = Math.round(Math.abs(value) * power);
+        if (value < 0 && scaled != 0) {
+            append('-');
+        }
+        append(scaled / power);
+        if (decimals > 0) {
+            append('.');
+            append(scaled % power, decimals);
+        }
+        return this;
+    }
+
+    int length() {
+        return length;
+    }
+
+    void applyTo(TextView view) {
+        view.setText(chars, 0, length);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+
+    private void ensure(int count) {
+        if (length + count > chars.length) {
+            char[] grown = new char[Math.max(chars.length * 2, length + count)];
+            System.arraycopy(chars, 0, grown, 0, length);
+            chars = grown;
+        }
+    }
+}
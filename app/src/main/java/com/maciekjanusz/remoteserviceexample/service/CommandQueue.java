@@ -0,0 +1,92 @@
+package com.maciekjanusz.remoteserviceexample.service;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Bounded FIFO of commands waiting to be sent to the service, kept in preallocated
+ * parallel arrays. Commands leave the queue only once the transport has accepted them,
+ * see {@link #peek(int[], Object[])} and {@link #remove(int)}. Thread safe.
+ */
+class CommandQueue {
+
+    private final int[] whats;
+    private final Object[] payloads;
+    private int head = 0;
+    private int count = 0;
+
+    /**
+     * @param capacity maximum number of queued commands
+     */
+    CommandQueue(int capacity) {
+        whats = new int[capacity];
+        payloads = new Object[capacity];
+    }
+
+    /**
+     * Appends command to the queue.
+     * @param idempotent whether the command may be coalesced with an equal queued one - repeating
+     *                   it has no effect beyond what the queued one will have
+     * @return false if the queue is full
+     */
+    synchronized boolean add(int what, @Nullable Object payload, boolean idempotent) {
+        if (idempotent) {
+            for (int i = 0; i < count; i++) {
+                int slot = slot(i);
+                if (whats[slot] == what && equal(payloads[slot], payload)) {
+                    return true;
+                }
+            }
+        }
+        if (count == whats.length) {
+            return false;
+        }
+        int slot = slot(count);
+        whats[slot] = what;
+        payloads[slot] = payload;
+        count++;
+        return true;
+    }
+
+    /**
+     * Copies queued commands in order, without removing them.
+     * @param whatsOut array for command identifiers, at least capacity long
+     * @param payloadsOut array for payloads, at least capacity long
+     * @return number of commands copied
+     */
+    synchronized int peek(int[] whatsOut, Object[] payloadsOut) {
+        for (int i = 0; i < count; i++) {
+            int slot = slot(i);
+            whatsOut[i] = whats[slot];
+            payloadsOut[i] = payloads[slot];
+        }
+        return count;
+    }
+
+    /**
+     * Removes the oldest commands.
+     * @param n number of commands to remove, at most {@link #size()}
+     */
+    synchronized void remove(int n) {
+        for (int i = 0; i < n; i++) {
+            payloads[slot(i)] = null;
+        }
+        head = slot(n);
+        count -= n;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    int capacity() {
+        return whats.length;
+    }
+
+    private int slot(int i) {
+        return (head + i) % whats.length;
+    }
+
+    private static boolean equal(@Nullable Object a, @Nullable Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
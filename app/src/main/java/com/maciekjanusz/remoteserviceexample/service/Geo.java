@@ -0,0 +1,35 @@
+package com.maciekjanusz.remoteserviceexample.service;
+
+/**
+ * Geodesic helpers.
+ */
+public final class Geo {
+
+    /**
+     * Mean earth radius in meters
+     */
+    public static final double EARTH_RADIUS_METERS = 6371008.8;
+
+    /**
+     * Meters per degree of latitude
+     */
+    public static final double METERS_PER_DEGREE = EARTH_RADIUS_METERS * Math.PI / 180;
+
+    private Geo() {
+    }
+
+    /**
+     * Great circle distance with haversine formula.
+     * @return distance in meters
+     */
+    public static double distanceMeters(double latitude1, double longitude1,
+                                        double latitude2, double longitude2) {
+        double phi1 = Math.toRadians(latitude1);
+        double phi2 = Math.toRadians(latitude2);
+        double sinHalfDeltaPhi = Math.sin((phi2 - phi1) / 2);
+        double sinHalfDeltaLambda = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+        double a = sinHalfDeltaPhi * sinHalfDeltaPhi
+                + Math.cos(phi1) * Math.cos(phi2) * sinHalfDeltaLambda * sinHalfDeltaLambda;
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
@@ -0,0 +1,115 @@
+package com.maciekjanusz.remoteserviceexample.service;
+
+import android.annotation.TargetApi;
+import android.location.Location;
+import android.os.Build;
+
+/**
+ * Plain java, mutable representation of a single location fix.
+ * Unlike {@link Location} it holds primitives only, so it can be copied into preallocated
+ * instances and passed through the service logic without touching the android framework
+ * (which makes it usable on a plain JVM as well).
+ */
+public class LocationSample {
+
+    /**
+     * Flags denoting which of the optional fields hold a meaningful value
+     */
+    public static final int HAS_ALTITUDE = 1,
+            HAS_SPEED = 1 << 1,
+            HAS_BEARING = 1 << 2,
+            HAS_ACCURACY = 1 << 3;
+
+    public double latitude;
+    public double longitude;
+    public double altitude;
+    /**
+     * Speed in meters per second
+     */
+    public float speed;
+    public float bearing;
+    /**
+     * Accuracy radius in meters
+     */
+    public float accuracy;
+    /**
+     * UTC time of the fix in milliseconds since epoch
+     */
+    public long time;
+    /**
+     * Monotonic time of the fix in nanoseconds, as reported by the location provider,
+     * 0 if unknown (before API 17)
+     */
+    public long elapsedRealtimeNanos;
+    /**
+     * Bit set of HAS_* flags
+     */
+    public int flags;
+
+    public boolean has(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    /**
+     * Copies all fields from another sample.
+     * @param other sample to copy from
+     * @return this sample
+     */
+    public LocationSample set(LocationSample other) {
+        latitude = other.latitude;
+        longitude = other.longitude;
+        altitude = other.altitude;
+        speed = other.speed;
+        bearing = other.bearing;
+        accuracy = other.accuracy;
+        time = other.time;
+        elapsedRealtimeNanos = other.elapsedRealtimeNanos;
+        flags = other.flags;
+        return this;
+    }
+
+    /**
+     * Copies all fields from a framework location object.
+     * @param location location to copy from
+     * @return this sample
+     */
+    public LocationSample set(Location location) {
+        latitude = location.getLatitude();
+        longitude = location.getLongitude();
+        altitude = location.getAltitude();
+        speed = location.getSpeed();
+        bearing = location.getBearing();
+        accuracy = location.getAccuracy();
+        time = location.getTime();
+        elapsedRealtimeNanos = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1
+                ? elapsedRealtimeNanos(location) : 0;
+        flags = (location.hasAltitude() ? HAS_ALTITUDE : 0)
+                | (location.hasSpeed() ? HAS_SPEED : 0)
+                | (location.hasBearing() ? HAS_BEARING : 0)
+                | (location.hasAccuracy() ? HAS_ACCURACY : 0);
+        return this;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private static long elapsedRealtimeNanos(Location location) {
+        return location.getElapsedRealtimeNanos();
+    }
+
+    /**
+     * Clears all fields.
+     * @return this sample
+     */
+    public LocationSample reset() {
+        latitude = longitude = altitude = 0;
+        speed = bearing = accuracy = 0;
+        time = elapsedRealtimeNanos = 0;
+        flags = 0;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "LocationSample{" + latitude + ", " + longitude + ", acc=" + accuracy
+                + ", speed=" + speed + ", time=" + time + "}";
+    }
+}
@@ -0,0 +1,15 @@
+package com.maciekjanusz.remoteserviceexample.service;
+
+/**
+ * Callback for location fixes passed around as {@link LocationSample}.
+ */
+public interface LocationSampleListener {
+
+    /**
+     * Called with a new location fix.
+     * The sample is owned by the caller and may be reused after this method returns,
+     * so copy it if you need to keep it.
+     * @param sample the location fix
+     */
+    void onLocationSample(LocationSample sample);
+}
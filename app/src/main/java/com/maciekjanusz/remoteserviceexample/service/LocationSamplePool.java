@@ -0,0 +1,54 @@
+package com.maciekjanusz.remoteserviceexample.service;
+
+/**
+ * Bounded pool of {@link LocationSample}s, for places where a fix has to outlive the callback
+ * that delivered it (handing it over to another thread, holding it for comparison). Sized
+ * for the expected number of samples in use at once, it stops allocating after warm up.
+ *
+ * Thread safe.
+ */
+public class LocationSamplePool {
+
+    private final LocationSample[] free;
+    private int freeCount = 0;
+    /**
+     * Number of samples allocated because the pool was empty, for diagnostics
+     */
+    private int misses = 0;
+
+    /**
+     * @param capacity maximum number of idle samples kept by the pool, all preallocated
+     */
+    public LocationSamplePool(int capacity) {
+        free = new LocationSample[capacity];
+        for (int i = 0; i < capacity; i++) {
+            free[freeCount++] = new LocationSample();
+        }
+    }
+
+    /**
+     * @return idle sample, or new one if the pool is empty; contents are undefined
+     */
+    public synchronized LocationSample acquire() {
+        if (freeCount == 0) {
+            misses++;
+            return new LocationSample();
+        }
+        LocationSample sample = free[--freeCount];
+        free[freeCount] = null;
+        return sample;
+    }
+
+    /**
+     * Returns sample to the pool. It must not be used by the caller afterwards.
+     */
+    public synchronized void release(LocationSample sample) {
+        if (freeCount < free.length) {
+            free[freeCount++] = sample;
+        }
+    }
+
+    public synchronized int misses() {
+        return misses;
+    }
+}
@@ -0,0 +1,71 @@
+package com.maciekjanusz.remoteserviceexample.service;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Hands samples produced on a background thread over to an executor's thread (usually the main
+ * one, through a Handler).
+ * Each fix is copied once, into a sample taken from a pool, which is passed along by reference
+ * and released after delivery. A single drain runnable is posted only when the queue stops
+ * being empty, so a burst costs one post. The producer blocks while the queue is full,
+ * so no fix is ever dropped.
+ */
+class SampleHandoff implements LocationSampleListener, Runnable {
+
+    private final Executor executor;
+    private final LocationSampleListener target;
+
+    /**
+     * Holds a sample per queue slot plus the one being delivered, so it never runs dry
+     */
+    private final LocationSamplePool pool;
+    private final LocationSample[] queue;
+    private int head = 0;
+    private int size = 0;
+    private boolean posted = false;
+
+    SampleHandoff(Executor executor, LocationSampleListener target, int capacity) {
+        this.executor = executor;
+        this.target = target;
+        this.pool = new LocationSamplePool(capacity + 1);
+        this.queue = new LocationSample[capacity];
+    }
+
+    @Override
+    public synchronized void onLocationSample(LocationSample sample) {
+        while (size == queue.length) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        queue[(head + size) % queue.length] = pool.acquire().set(sample);
+        size++;
+        if (!posted) {
+            posted = true;
+            executor.execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            LocationSample delivered;
+            synchronized (this) {
+                if (size == 0) {
+                    posted = false;
+                    return;
+                }
+                delivered = queue[head];
+                queue[head] = null;
+                head = (head + 1) % queue.length;
+                size--;
+                notifyAll();
+            }
+            target.onLocationSample(delivered);
+            pool.release(delivered);
+        }
+    }
+}
@@ -3,195 +3,364 @@ package com.maciekjanusz.remoteserviceexample.service;
 
 import android.app.Activity;
 import android.app.Application;
-import android.content.BroadcastReceiver;
-import android.content.ComponentName;
 import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
-import android.content.ServiceConnection;
-import android.location.Location;
 import android.os.Bundle;
-import android.os.IBinder;
-import android.os.Message;
-import android.os.Messenger;
-import android.os.Parcelable;
-import android.os.RemoteException;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 
-import com.google.android.gms.location.LocationListener;
 import com.maciekjanusz.remoteserviceexample.MainActivity;
+import com.maciekjanusz.remoteserviceexample.service.geofence.GeofenceTransitions;
+import com.maciekjanusz.remoteserviceexample.service.geofence.GeofenceUpdate;
+import com.maciekjanusz.remoteserviceexample.service.heatmap.HeatmapCells;
+import com.maciekjanusz.remoteserviceexample.service.stats.TrackSummary;
+import com.maciekjanusz.remoteserviceexample.service.stats.TrackSummaryListener;
+import com.maciekjanusz.remoteserviceexample.service.track.CompactTrackReader;
+import com.maciekjanusz.remoteserviceexample.service.track.TrackRecords;
+import com.maciekjanusz.remoteserviceexample.service.track.TrackStreamReader;
+import com.maciekjanusz.remoteserviceexample.service.transport.ClientTransport;
+import com.maciekjanusz.remoteserviceexample.service.transport.MessengerClientTransport;
 import com.maciekjanusz.tale.Tale;
+import com.maciekjanusz.tale.TaleLimit;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
-
-import static com.maciekjanusz.remoteserviceexample.service.TrackingService.ACTION_LOCATION_ACQUIRED;
-import static com.maciekjanusz.remoteserviceexample.service.TrackingService.EXTRA_LOCATION;
-import static com.maciekjanusz.remoteserviceexample.service.TrackingService.LOG_STRING_KEY;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.EVENT_GEOFENCE_TRANSITIONS;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.EVENT_HEATMAP;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.EVENT_TRACK_SNAPSHOT;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.EVENT_TRACK_SUMMARY;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_ATTACH_CONSUMER;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_DETACH_CONSUMER;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_EXPORT_COMPACT;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_EXPORT_TRACK;
 import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_GET_CURRENT_STATE;
 import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_LOG;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_QUERY_HEATMAP;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_UPDATE_GEOFENCES;
 
 /**
  * This class isolates the remote service communication logic.
  * It is capable of automatic binding to the service, when registered as activity lifecycle
  * callbacks (see {@link MainActivity}).
+ * The actual message passing is delegated to a {@link ClientTransport}.
  *
  * TODO: needs to be more generic
  */
-public class ServiceProxy implements Application.ActivityLifecycleCallbacks {
+public class ServiceProxy implements Application.ActivityLifecycleCallbacks,
+        ClientTransport.Callbacks {
 
     private static final String TAG = "ServiceProxy";
 
     /**
-     * Context for registering/unregistering receivers, starting service etc.
+     * Maximum number of commands waiting to be sent
+     */
+    static final int COMMAND_QUEUE_CAPACITY = 64;
+
+    /**
+     * Limits of the logs on the command path, which may be hit for every message
      */
-    private Context context;
+    private static final TaleLimit QUEUE_FULL_LOG_LIMIT = TaleLimit.perSecond(1);
+    private static final TaleLimit SEND_LOG_LIMIT = TaleLimit.perSecond(2);
+
     /**
-     * Intent for starting service
+     * Transport for communication with the service
      */
-    private Intent serviceIntent;
+    private final ClientTransport transport;
     /**
      * Thread safe location listener list
      */
-    private List<LocationListener> locationListeners = new CopyOnWriteArrayList<>();
+    private List<LocationSampleListener> locationListeners = new CopyOnWriteArrayList<>();
     /**
      * Thread safe service callbacks list
      */
     private List<ServiceCallbacks> serviceCallbacks = new CopyOnWriteArrayList<>();
-
     /**
-     * This flag denotes whether connection to the service has been established
+     * Thread safe track summary listener list
      */
-    private boolean serviceConnected = false;
-
+    private List<TrackSummaryListener> summaryListeners = new CopyOnWriteArrayList<>();
     /**
-     * Messenger for interprocess service communication
+     * Summary reused for every received summary event
      */
-    private Messenger serviceMessenger;
+    private final TrackSummary receivedSummary = new TrackSummary();
     /**
-     * Broadcast receiver for service callbacks
+     * Thread safe geofence listener list
      */
-    private BroadcastReceiver serviceMessageReceiver = new ServiceMessageReceiver();
+    private List<GeofenceTransitions.Listener> geofenceListeners = new CopyOnWriteArrayList<>();
     /**
-     * Service connection impl.
+     * Dispatches decoded transitions to {@link #geofenceListeners}
      */
-    private ServiceConnection serviceConnection = new ServiceConnection() {
+    private final GeofenceTransitions.Listener geofenceDispatcher = new GeofenceTransitions.Listener() {
         @Override
-        public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
-            // establish messenger
-            serviceMessenger = new Messenger(iBinder);
-            // send simple log message
-            String logString = "Hello bound service!";
-            Bundle data = new Bundle();
-            data.putString(LOG_STRING_KEY, logString);
-            sendMessage(MSG_LOG, data, null);
-
-            // notify listeners of successful connection
-            serviceConnected = true;
-            notifyServiceConnected();
+        public void onGeofenceTransition(int fenceId, int transition, long time,
+                                         double latitude, double longitude) {
+            for (GeofenceTransitions.Listener listener : geofenceListeners) {
+                listener.onGeofenceTransition(fenceId, transition, time, latitude, longitude);
+            }
         }
+    };
 
+    /**
+     * Thread safe heatmap listener list
+     */
+    private List<HeatmapCells.Listener> heatmapListeners = new CopyOnWriteArrayList<>();
+    /**
+     * Dispatches decoded heatmap answers to {@link #heatmapListeners}
+     */
+    private final HeatmapCells.Listener heatmapDispatcher = new HeatmapCells.Listener() {
         @Override
-        public void onServiceDisconnected(ComponentName componentName) {
-            // notify listeners
-            notifyServiceDisconnected();
-            serviceConnected = false;
-            // messenger is now obsolete
-            serviceMessenger = null;
+        public void onHeatmapStart(int queryId, int zoom, int cellCount) {
+            for (HeatmapCells.Listener listener : heatmapListeners) {
+                listener.onHeatmapStart(queryId, zoom, cellCount);
+            }
+        }
+
+        @Override
+        public void onHeatmapCell(int x, int y, int visits, long dwellMillis) {
+            for (HeatmapCells.Listener listener : heatmapListeners) {
+                listener.onHeatmapCell(x, y, visits, dwellMillis);
+            }
         }
     };
 
+    /**
+     * Commands waiting for the connection or for the next flush
+     */
+    private final CommandQueue commandQueue = new CommandQueue(COMMAND_QUEUE_CAPACITY);
+    /**
+     * Arrays the queued commands are copied to for sending, guarded by {@link #flushLock}
+     */
+    private final int[] batchWhats = new int[COMMAND_QUEUE_CAPACITY];
+    private final Object[] batchPayloads = new Object[COMMAND_QUEUE_CAPACITY];
+    private final Object flushLock = new Object();
+    /**
+     * Executor running {@link #flushTask}, so that commands sent in a row go in one transaction
+     */
+    private final Executor flushExecutor;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            flushCommands();
+        }
+    };
+
+    /**
+     * Whether events are wanted - the service is told so on every connection
+     */
+    private volatile boolean attached = false;
+    /**
+     * Time of the last received fix, for the service to catch up from on attach
+     */
+    private volatile long lastFixTime = Long.MIN_VALUE;
+    /**
+     * Sample reused for fixes of received snapshots
+     */
+    private final LocationSample snapshotSample = new LocationSample();
+
+    /**
+     * This flag denotes whether connection to the service has been established
+     */
+    private volatile boolean serviceConnected = false;
+
     public ServiceProxy(Context context) {
-        this.context = context;
-        this.serviceIntent = new Intent(context, TrackingService.class);
+        this(new MessengerClientTransport(context), mainThreadExecutor());
     }
 
     /**
-     * Registers {@link #serviceMessageReceiver} with proper IntentFilter
+     * Creates proxy sending each command as soon as it's connected.
      */
-    private void registerServiceMessageReceiver() {
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(ACTION_LOCATION_ACQUIRED);
-        context.registerReceiver(serviceMessageReceiver, intentFilter);
+    public ServiceProxy(ClientTransport transport) {
+        this(transport, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
     }
 
     /**
-     * Unregisters {@link #serviceMessageReceiver}.
-     * Call only once after registration.
+     * @param flushExecutor executor sending queued commands - commands sent before it runs
+     *                      the flush are batched, e.g. all sent within one main looper message
      */
-    private void unregisterServiceMessageReceiver() {
-        context.unregisterReceiver(serviceMessageReceiver);
+    public ServiceProxy(ClientTransport transport, Executor flushExecutor) {
+        this.transport = transport;
+        this.flushExecutor = flushExecutor;
+        transport.setCallbacks(this);
+    }
+
+    private static Executor mainThreadExecutor() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
     }
 
     /**
      * Call this method to trigger callback from service with current location.
      */
     public void requestCurrentState() {
-        sendMessage(MSG_GET_CURRENT_STATE, null, null);
+        sendMessage(MSG_GET_CURRENT_STATE, null);
     }
 
     /**
-     * Sends message to service through bound messenger.
+     * Requests export of the whole recorded track. The service streams it through a pipe,
+     * so there's no limit on track size. Read it off the main thread and close when done.
      *
-     * @param what message identifier integer
-     * @param data a data bundle (may be null)
-     * @param object an additional object (may be null)
+     * @return reader of the exported track
+     * @throws IOException if service is not connected or pipe can't be created
+     */
+    public TrackStreamReader exportTrack() throws IOException {
+        new Tale("Requesting track export").at().tell();
+        return new TrackStreamReader(transport.requestStream(MSG_EXPORT_TRACK));
+    }
+
+    /**
+     * Like {@link #exportTrack()}, but the track is streamed in the compact binary format,
+     * roughly three times smaller.
+     *
+     * @return reader of the exported track
+     * @throws IOException if service is not connected or pipe can't be created
+     */
+    public CompactTrackReader exportCompactTrack() throws IOException {
+        return new CompactTrackReader(transport.requestStream(MSG_EXPORT_COMPACT));
+    }
+
+    /**
+     * Requests the recorded track as a document, streamed through a pipe.
+     *
+     * @param exportMessage {@link TrackingService#MSG_EXPORT_GPX} or
+     *                      {@link TrackingService#MSG_EXPORT_GEOJSON}
+     * @return channel to read the document from, off the main thread
+     * @throws IOException if service is not connected or pipe can't be created
+     */
+    public ReadableByteChannel exportTrackDocument(int exportMessage) throws IOException {
+        return transport.requestStream(exportMessage);
+    }
+
+    /**
+     * Changes the geofences evaluated by the service. The service keeps evaluating the old
+     * fences until the update is applied.
+     *
+     * @param update bulk update
      * @return true if successful, false otherwise
      */
-    public boolean sendMessage(int what, @Nullable Bundle data, @Nullable Object object) {
-        if (serviceMessenger != null) {
-            // obtain message and set data
-            Message message = Message.obtain();
-            message.what = what;
-            message.setData(data);
-            message.obj = object;
-
-            // With IPC the extra object can only be a framework-implemented parcelable
-            if (object != null && object instanceof Parcelable) {
-                new Tale("object is not parcelable.").at().tell();
-                return false;
-            }
+    public boolean updateGeofences(GeofenceUpdate update) {
+        return sendMessage(MSG_UPDATE_GEOFENCES, update.toBytes());
+    }
 
-            // Proceed with sending
-            try {
-                new Tale("Sending message... " + what).at().tell();
-                serviceMessenger.send(message);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-                return false;
+    /**
+     * Requests visit counts and dwell times of map tiles within the viewport, answered to
+     * heatmap listeners while attached. The service picks the zoom level, finer for smaller
+     * viewports - the answer's size depends on the viewport only, not on track length.
+     *
+     * @param queryId id echoed in the answer
+     * @return true if queued, false otherwise
+     */
+    public boolean queryHeatmap(int queryId, double south, double west, double north, double east) {
+        return sendMessage(MSG_QUERY_HEATMAP, HeatmapCells.query(queryId, south, west, north, east));
+    }
+
+    /**
+     * Sends message to service through the transport. Messages are queued until the service
+     * is connected and then sent in order, those sent in a row get batched into a single
+     * transaction. Repeated {@link TrackingService#MSG_GET_CURRENT_STATE} requests
+     * waiting in the queue are coalesced.
+     *
+     * @param what message identifier integer
+     * @param payload an additional String, byte[] or Parcelable argument (may be null)
+     * @return true if queued, false if the payload can't be carried or the queue is full
+     */
+    public boolean sendMessage(int what, @Nullable Object payload) {
+        if (!transport.canCarry(payload)) {
+            // rejected up front, so that a bad payload never fails a batch of good ones
+            new Tale("Payload of message " + what + " can't be carried, dropping it").at().tell();
+            return false;
+        }
+        if (!commandQueue.add(what, payload, isIdempotent(what))) {
+            if (QUEUE_FULL_LOG_LIMIT.allow()) {
+                new Tale("Command queue full, dropping message " + what).at().tell();
             }
-            return true;
-        } else {
-            new Tale("serviceMessenger uninitialized").at().tell();
             return false;
         }
+        if (transport.isConnected() && flushScheduled.compareAndSet(false, true)) {
+            flushExecutor.execute(flushTask);
+        }
+        return true;
     }
 
     /**
-     * Unbind and then rebind service.
+     * @return whether repeating the command has no effect, so it can be coalesced
      */
-    private void rebindService() {
-        unbindService();
-        bindService();
+    private static boolean isIdempotent(int what) {
+        return what == MSG_GET_CURRENT_STATE;
     }
 
-    private void unbindService() {
-        context.getApplicationContext().unbindService(serviceConnection);
+    /**
+     * Sends all queued commands, in a single transaction if there's more than one. If that fails
+     * they stay queued, to be sent on the next flush or connection - payloads have been checked
+     * when queued, so failing means the service couldn't be reached, e.g. it has died and
+     * the disconnection isn't reported yet.
+     */
+    private void flushCommands() {
+        synchronized (flushLock) {
+            if (!transport.isConnected()) {
+                return;
+            }
+            int count = commandQueue.peek(batchWhats, batchPayloads);
+            if (count == 0) {
+                return;
+            }
+            if (SEND_LOG_LIMIT.allow()) {
+                new Tale("Sending " + count + " message(s)...").at().tell();
+            }
+            boolean sent = count == 1
+                    ? transport.send(batchWhats[0], batchPayloads[0])
+                    : transport.sendBatch(batchWhats, batchPayloads, count);
+            if (sent) {
+                commandQueue.remove(count);
+            }
+            Arrays.fill(batchPayloads, 0, count, null);
+        }
     }
 
-    private void bindService() {
-        boolean result = context.getApplicationContext()
-                .bindService(serviceIntent, serviceConnection, Context.BIND_ABOVE_CLIENT);
-        new Tale(result ? "Succesfully bound to service." : "Failed to bind to service.").at().tell();
+    /**
+     * Starts delivering service events to the listeners. The service publishes events only while
+     * a consumer is attached - it starts with a catch-up snapshot of the fixes recorded since the
+     * last one delivered, current track summary and pending geofence transitions.
+     */
+    public void attach() {
+        transport.attach();
+        attached = true;
+        if (transport.isConnected()) {
+            sendAttachConsumer();
+        }
     }
 
-    private void startService() {
-        rebindService();
-        context.startService(serviceIntent);
+    /**
+     * Stops delivering service events. The service stops publishing them, if there are
+     * no other consumers.
+     */
+    public void detach() {
+        if (transport.isConnected()) {
+            sendMessage(MSG_DETACH_CONSUMER, null);
+        }
+        attached = false;
+        transport.detach();
     }
 
-    private void stopService() {
-        context.stopService(serviceIntent);
+    private void sendAttachConsumer() {
+        sendMessage(MSG_ATTACH_CONSUMER, ByteBuffer.allocate(8).putLong(lastFixTime).array());
     }
 
     /**
@@ -199,9 +368,70 @@ public class ServiceProxy implements Application.ActivityLifecycleCallbacks {
      */
     public void toggleService() {
         if (serviceConnected) {
-            stopService();
+            transport.stopService();
         } else {
-            startService();
+            transport.startService();
+        }
+    }
+
+    /*
+        Transport callbacks
+     */
+    @Override
+    public void onConnected() {
+        // send simple log message, after commands queued while disconnected
+        sendMessage(MSG_LOG, "Hello bound service!");
+        if (attached) {
+            // a new connection may be a new service instance, which knows no consumers
+            sendAttachConsumer();
+        }
+        flushCommands();
+
+        // notify listeners of successful connection
+        serviceConnected = true;
+        notifyServiceConnected();
+    }
+
+    @Override
+    public void onDisconnected() {
+        // notify listeners
+        notifyServiceDisconnected();
+        serviceConnected = false;
+    }
+
+    @Override
+    public void onLocation(LocationSample sample) {
+        lastFixTime = sample.time;
+        notifyListeners(sample);
+    }
+
+    @Override
+    public void onEvent(int what, ByteBuffer payload) {
+        switch (what) {
+            case EVENT_GEOFENCE_TRANSITIONS:
+                GeofenceTransitions.read(payload, geofenceDispatcher);
+                break;
+            case EVENT_TRACK_SNAPSHOT:
+                // fixes missed while detached, delivered like live ones - the snapshot goes to
+                // every attached consumer, so skip whatever this one has already received
+                while (payload.remaining() >= TrackRecords.RECORD_SIZE) {
+                    TrackRecords.read(payload, snapshotSample);
+                    if (snapshotSample.time > lastFixTime) {
+                        lastFixTime = snapshotSample.time;
+                        notifyListeners(snapshotSample);
+                    }
+                }
+                break;
+            case EVENT_HEATMAP:
+                HeatmapCells.read(payload, heatmapDispatcher);
+                break;
+            case EVENT_TRACK_SUMMARY:
+                if (receivedSummary.read(payload)) {
+                    for (TrackSummaryListener listener : summaryListeners) {
+                        listener.onTrackSummary(receivedSummary);
+                    }
+                }
+                break;
         }
     }
 
@@ -216,31 +446,28 @@ public class ServiceProxy implements Application.ActivityLifecycleCallbacks {
     @Override
     public void onActivityStarted(Activity activity) {
         if (activity instanceof MainActivity) {
-            bindService();
+            transport.connect();
         }
     }
 
     @Override
     public void onActivityResumed(Activity activity) {
         if (activity instanceof MainActivity) {
-            registerServiceMessageReceiver();
-            if (serviceConnected) {
-                requestCurrentState();
-            }
+            attach();
         }
     }
 
     @Override
     public void onActivityPaused(Activity activity) {
         if (activity instanceof MainActivity) {
-            unregisterServiceMessageReceiver();
+            detach();
         }
     }
 
     @Override
     public void onActivityStopped(Activity activity) {
         if (activity instanceof MainActivity) {
-            unbindService();
+            transport.disconnect();
         }
     }
 
@@ -255,14 +482,38 @@ public class ServiceProxy implements Application.ActivityLifecycleCallbacks {
         // unregistered in MainActivity onDestroy
     }
 
-    public void addLocationListener(LocationListener locationListener) {
+    public void addLocationListener(LocationSampleListener locationListener) {
         locationListeners.add(locationListener);
     }
 
-    public void removeLocationListener(LocationListener locationListener) {
+    public void removeLocationListener(LocationSampleListener locationListener) {
         locationListeners.remove(locationListener);
     }
 
+    public void addTrackSummaryListener(TrackSummaryListener summaryListener) {
+        summaryListeners.add(summaryListener);
+    }
+
+    public void removeTrackSummaryListener(TrackSummaryListener summaryListener) {
+        summaryListeners.remove(summaryListener);
+    }
+
+    public void addGeofenceListener(GeofenceTransitions.Listener geofenceListener) {
+        geofenceListeners.add(geofenceListener);
+    }
+
+    public void removeGeofenceListener(GeofenceTransitions.Listener geofenceListener) {
+        geofenceListeners.remove(geofenceListener);
+    }
+
+    public void addHeatmapListener(HeatmapCells.Listener heatmapListener) {
+        heatmapListeners.add(heatmapListener);
+    }
+
+    public void removeHeatmapListener(HeatmapCells.Listener heatmapListener) {
+        heatmapListeners.remove(heatmapListener);
+    }
+
     public void addServiceCallbacks(ServiceCallbacks serviceCallbacksImpl) {
         serviceCallbacks.add(serviceCallbacksImpl);
     }
@@ -271,9 +522,9 @@ public class ServiceProxy implements Application.ActivityLifecycleCallbacks {
         serviceCallbacks.remove(serviceCallbacksImpl);
     }
 
-    private void notifyListeners(Location location) {
-        for(LocationListener locationListener : locationListeners) {
-            locationListener.onLocationChanged(location);
+    private void notifyListeners(LocationSample sample) {
+        for(LocationSampleListener locationListener : locationListeners) {
+            locationListener.onLocationSample(sample);
         }
     }
 
@@ -295,21 +546,4 @@ public class ServiceProxy implements Application.ActivityLifecycleCallbacks {
         void onServiceDisconnected();
     }
 
-    private class ServiceMessageReceiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            if (intent == null) return;
-
-            /**
-             * Remember to add actions to intent filter as well
-             */
-            switch (intent.getAction()) {
-                case ACTION_LOCATION_ACQUIRED:
-                    Location location = intent.getParcelableExtra(EXTRA_LOCATION);
-                    notifyListeners(location);
-                    break;
-            }
-        }
-    }
-
 }
\ No newline at end of file
@@ -0,0 +1,566 @@
+package com.maciekjanusz.remoteserviceexample.service;
+
+import android.support.annotation.Nullable;
+
+import com.maciekjanusz.remoteserviceexample.service.geofence.GeofenceEngine;
+import com.maciekjanusz.remoteserviceexample.service.geofence.GeofenceTransitions;
+import com.maciekjanusz.remoteserviceexample.service.heatmap.HeatmapCells;
+import com.maciekjanusz.remoteserviceexample.service.heatmap.HeatmapFile;
+import com.maciekjanusz.remoteserviceexample.service.heatmap.TileAggregate;
+import com.maciekjanusz.remoteserviceexample.service.stats.StatisticsFile;
+import com.maciekjanusz.remoteserviceexample.service.stats.TrackStatistics;
+import com.maciekjanusz.remoteserviceexample.service.stats.TrackSummary;
+import com.maciekjanusz.remoteserviceexample.service.track.CompactTrackWriter;
+import com.maciekjanusz.remoteserviceexample.service.track.GeoJsonTrackWriter;
+import com.maciekjanusz.remoteserviceexample.service.track.GpxTrackWriter;
+import com.maciekjanusz.remoteserviceexample.service.track.TrackLog;
+import com.maciekjanusz.remoteserviceexample.service.track.TrackRecords;
+import com.maciekjanusz.remoteserviceexample.service.track.TrackRing;
+import com.maciekjanusz.remoteserviceexample.service.track.TrackWriter;
+import com.maciekjanusz.remoteserviceexample.service.transport.ServiceTransport;
+import com.maciekjanusz.tale.Tale;
+import com.maciekjanusz.tale.TaleLimit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.EVENT_GEOFENCE_TRANSITIONS;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.EVENT_HEATMAP;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.EVENT_TRACK_SNAPSHOT;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.EVENT_TRACK_SUMMARY;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_ATTACH_CONSUMER;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_DETACH_CONSUMER;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_EXPORT_COMPACT;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_EXPORT_GEOJSON;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_EXPORT_GPX;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_EXPORT_TRACK;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_GET_CURRENT_STATE;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_LOG;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_QUERY_HEATMAP;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_UPDATE_GEOFENCES;
+
+/**
+ * The tracking logic of {@link TrackingService}, kept free of android framework dependencies
+ * so that it can be driven through any {@link ServiceTransport} (see
+ * {@link com.maciekjanusz.remoteserviceexample.service.transport.LoopbackTransport}).
+ *
+ * Events are published only while live consumers are attached (see
+ * {@link TrackingService#MSG_ATTACH_CONSUMER}) - otherwise fixes are just recorded, with no IPC.
+ * An attaching consumer gets a catch-up snapshot of what it has missed, then live updates.
+ *
+ * Not thread safe - all calls are expected on the service main thread. Track exports are written
+ * on a background thread.
+ */
+public class TrackingEngine implements ServiceTransport.CommandHandler, LocationSampleListener {
+
+    /**
+     * Minimum fix time between published track summaries
+     */
+    static final long SUMMARY_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Number of most recent fixes kept in memory, about an hour at 1 Hz in under 200 KB
+     */
+    static final int RECENT_TRACK_CAPACITY = 4096;
+
+    /**
+     * Maximum number of fixes in a catch-up snapshot, 24 KB - well within a broadcast's limits
+     */
+    static final int MAX_SNAPSHOT_FIXES = 512;
+
+    /**
+     * Maximum number of geofence transitions held for consumers while none is attached, the oldest
+     * ones are dropped beyond it
+     */
+    static final int MAX_PENDING_TRANSITIONS = 1024;
+
+    /**
+     * Number of fixes between saves of the heatmap and statistics, about 1.5 hours at one fix
+     * per 5 seconds. Fixes since the last save are caught up from the track log on the next start.
+     */
+    static final int SAVE_INTERVAL = 1024;
+
+    /**
+     * Limit of the per fix failure log, a full disk would fail every fix
+     */
+    private static final TaleLimit RECORD_FAILURE_LOG_LIMIT = TaleLimit.perSecond(1);
+
+    private static long instanceCount = 0;
+
+    private final ServiceTransport transport;
+    /**
+     * Persisted track
+     */
+    private final TrackLog trackLog;
+    /**
+     * Executor for writing track exports and saving the heatmap and statistics, so that slow
+     * readers and disk syncs don't block the main thread
+     */
+    private final ExecutorService exportExecutor = Executors.newSingleThreadExecutor();
+    /**
+     * Transitions of the current fix, published in one event
+     */
+    private final GeofenceTransitions geofenceTransitions = new GeofenceTransitions();
+    private final GeofenceEngine geofenceEngine = new GeofenceEngine(geofenceTransitions);
+    /**
+     * Statistics of the whole persisted track, saved to {@link #statisticsFile} if there's one
+     */
+    private TrackStatistics statistics = new TrackStatistics();
+    @Nullable
+    private final StatisticsFile statisticsFile;
+    private long statisticsSavedFixCount = 0;
+    private long lastSummaryTime = -SUMMARY_INTERVAL_MILLIS;
+    private final ByteBuffer summaryBuffer = ByteBuffer.allocate(TrackSummary.SIZE);
+    /**
+     * Most recent part of the track, for queries that shouldn't hit the disk, indexed like
+     * the track log. Older records are dropped, not spilled - every fix is in the track log already
+     */
+    private final TrackRing recentTrack;
+    /**
+     * Visit counts and dwell times per map tile of the whole persisted track,
+     * saved to {@link #heatmapFile} if there's one
+     */
+    private TileAggregate heatmap = new TileAggregate();
+    @Nullable
+    private final HeatmapFile heatmapFile;
+    private long heatmapSavedFixCount = 0;
+    private final HeatmapCells heatmapCells = new HeatmapCells();
+    /**
+     * Track log size at the last save of heatmap and statistics
+     */
+    private long savedTrackSize;
+
+    /**
+     * Copy of last received location fix, valid if {@link #hasCurrentLocation} is set
+     */
+    private final LocationSample currentLocation = new LocationSample();
+    private boolean hasCurrentLocation = false;
+
+    /**
+     * Number of attached live consumers, events are published only if non zero
+     */
+    private int consumers = 0;
+    private final ByteBuffer snapshotBuffer =
+            ByteBuffer.allocate(MAX_SNAPSHOT_FIXES * TrackRecords.RECORD_SIZE);
+    private final LocationSample snapshotSample = new LocationSample();
+
+    public TrackingEngine(ServiceTransport transport, TrackLog trackLog) {
+        this(transport, trackLog, null);
+    }
+
+    /**
+     * @param heatmapFile file persisting the heatmap, or null to keep it in memory only
+     */
+    public TrackingEngine(ServiceTransport transport, TrackLog trackLog,
+                          @Nullable HeatmapFile heatmapFile) {
+        this(transport, trackLog, heatmapFile, null);
+    }
+
+    /**
+     * @param heatmapFile file persisting the heatmap, or null to keep it in memory only
+     * @param statisticsFile file persisting the statistics, or null to recompute them from
+     *                       the whole track log on start
+     */
+    public TrackingEngine(ServiceTransport transport, TrackLog trackLog,
+                          @Nullable HeatmapFile heatmapFile,
+                          @Nullable StatisticsFile statisticsFile) {
+        // increase instance count for debugging purposes
+        instanceCount++;
+        this.transport = transport;
+        this.trackLog = trackLog;
+        this.heatmapFile = heatmapFile;
+        this.statisticsFile = statisticsFile;
+        recentTrack = new TrackRing(RECENT_TRACK_CAPACITY,
+                Math.max(0, trackLog.size() - RECENT_TRACK_CAPACITY), null);
+        transport.setCommandHandler(this);
+        loadHeatmap();
+        loadStatistics();
+        loadTrack();
+        savedTrackSize = trackLog.size();
+    }
+
+    /**
+     * Loads the saved heatmap, which {@link #loadTrack()} then catches up.
+     */
+    private void loadHeatmap() {
+        if (heatmapFile == null) {
+            return;
+        }
+        try {
+            TileAggregate saved = heatmapFile.load();
+            if (saved != null && saved.fixCount() <= trackLog.size()) {
+                heatmap = saved;
+            } else if (saved != null) {
+                new Tale("Heatmap ahead of track log, rebuilding").at().tell();
+            }
+        } catch (IOException e) {
+            new Tale("Couldn't load heatmap, rebuilding: " + e).at().tell();
+        }
+        heatmapSavedFixCount = heatmap.fixCount();
+    }
+
+    /**
+     * Loads saved statistics, which {@link #loadTrack()} then catches up.
+     */
+    private void loadStatistics() {
+        if (statisticsFile == null) {
+            return;
+        }
+        try {
+            TrackStatistics saved = statisticsFile.load();
+            if (saved != null && saved.summary().fixCount <= trackLog.size()) {
+                statistics = saved;
+            } else if (saved != null) {
+                new Tale("Statistics ahead of track log, recomputing").at().tell();
+            }
+        } catch (IOException e) {
+            new Tale("Couldn't load statistics, recomputing: " + e).at().tell();
+        }
+        statisticsSavedFixCount = statistics.summary().fixCount;
+    }
+
+    /**
+     * Catches statistics, recent track and heatmap up with the track recorded by previous
+     * service runs - a single sequential read of the records any of them is missing, from then
+     * on they're updated per fix. With saved statistics and heatmap that's the tail of the log
+     * since the last save, plus what the recent track can hold.
+     */
+    private void loadTrack() {
+        LocationSample sample = new LocationSample();
+        long statisticsFrom = statistics.summary().fixCount;
+        long heatmapFrom = heatmap.fixCount();
+        long recentFrom = recentTrack.firstIndex();
+        long index = Math.min(statisticsFrom, Math.min(heatmapFrom, recentFrom));
+        try {
+            TrackLog.Cursor cursor = trackLog.cursor(index, 256);
+            while (cursor.next(sample)) {
+                if (index >= statisticsFrom) {
+                    statistics.add(sample);
+                }
+                if (index >= recentFrom) {
+                    recentTrack.append(sample);
+                }
+                if (index >= heatmapFrom) {
+                    heatmap.add(sample);
+                }
+                index++;
+            }
+        } catch (IOException e) {
+            new Tale("Couldn't read track log: " + e).at().tell();
+        }
+    }
+
+    /**
+     * Saves copies of the heatmap and statistics in background, flushing the track log first so
+     * that saved state never covers fixes the log could lose. Only copying happens on the calling
+     * thread, encoding and writing out the files don't.
+     */
+    private void saveState() {
+        savedTrackSize = trackLog.size();
+        if (heatmapFile == null && statisticsFile == null) {
+            return;
+        }
+        try {
+            trackLog.flush();
+        } catch (IOException e) {
+            new Tale("Couldn't flush track log, state not saved: " + e).at().tell();
+            return;
+        }
+        if (heatmapFile != null && heatmap.fixCount() != heatmapSavedFixCount) {
+            final HeatmapFile file = heatmapFile;
+            final TileAggregate snapshot = heatmap.copy();
+            heatmapSavedFixCount = snapshot.fixCount();
+            exportExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        file.save(snapshot);
+                    } catch (IOException e) {
+                        new Tale("Couldn't save heatmap: " + e).at().tell();
+                    }
+                }
+            });
+        }
+        if (statisticsFile != null && statistics.summary().fixCount != statisticsSavedFixCount) {
+            final StatisticsFile file = statisticsFile;
+            final TrackStatistics snapshot = statistics.copy();
+            statisticsSavedFixCount = snapshot.summary().fixCount;
+            exportExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        file.save(snapshot);
+                    } catch (IOException e) {
+                        new Tale("Couldn't save statistics: " + e).at().tell();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return most recent fixes, to be accessed on the main thread only
+     */
+    public TrackRing recentTrack() {
+        return recentTrack;
+    }
+
+    /**
+     * @return true if any live consumer is attached
+     */
+    public boolean hasConsumers() {
+        return consumers > 0;
+    }
+
+    /**
+     * Stops publishing events, e.g. when all clients have unbound - including any that died
+     * without detaching.
+     */
+    public void detachAllConsumers() {
+        consumers = 0;
+    }
+
+    /**
+     * Registers a live consumer and sends it a catch-up snapshot: recorded fixes it hasn't
+     * received yet (most recent {@link #MAX_SNAPSHOT_FIXES} of them), current track summary
+     * and geofence transitions that happened while no consumer was attached.
+     * @param lastFixTime time of the last fix the consumer has received, Long.MIN_VALUE if none
+     */
+    private void attachConsumer(long lastFixTime) {
+        consumers++;
+        long end = recentTrack.endIndex();
+        long from = Math.max(recentTrack.indexOfTime(lastFixTime + 1), end - MAX_SNAPSHOT_FIXES);
+        if (from < end) {
+            snapshotBuffer.clear();
+            for (long index = from; index < end; index++) {
+                TrackRecords.write(recentTrack.get(index, snapshotSample), snapshotBuffer);
+            }
+            snapshotBuffer.flip();
+            transport.publishEvent(EVENT_TRACK_SNAPSHOT, snapshotBuffer);
+        }
+        if (statistics.summary().fixCount > 0) {
+            publishSummary();
+        }
+        publishGeofenceTransitions();
+    }
+
+    /**
+     * Answers a heatmap viewport query, see {@link HeatmapCells#query(int, double, double, double, double)}.
+     * Answers go only to attached consumers, like any event.
+     */
+    private void queryHeatmap(ByteBuffer query) {
+        if (consumers == 0) {
+            return;
+        }
+        heatmap.query(query.getInt(), query.getDouble(), query.getDouble(), query.getDouble(),
+                query.getDouble(), heatmapCells);
+        transport.publishEvent(EVENT_HEATMAP, heatmapCells.encoded());
+    }
+
+    private void publishGeofenceTransitions() {
+        if (!geofenceTransitions.isEmpty()) {
+            transport.publishEvent(EVENT_GEOFENCE_TRANSITIONS, geofenceTransitions.encoded());
+            geofenceTransitions.clear();
+        }
+    }
+
+    /**
+     * Releases resources. Exports in progress are finished in background,
+     * the track log gets closed after them.
+     */
+    public void close() {
+        saveState();
+        exportExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    trackLog.close();
+                } catch (IOException e) {
+                    new Tale("Couldn't close track log: " + e).at().tell();
+                }
+            }
+        });
+        exportExecutor.shutdown();
+        geofenceEngine.shutdown();
+    }
+
+    /**
+     * @param exportMessage one of MSG_EXPORT_* constants
+     * @return writer for the requested format, or null for raw records
+     */
+    @Nullable
+    private static TrackWriter createTrackWriter(int exportMessage) {
+        switch (exportMessage) {
+            case MSG_EXPORT_GPX:
+                return new GpxTrackWriter();
+            case MSG_EXPORT_GEOJSON:
+                return new GeoJsonTrackWriter();
+            case MSG_EXPORT_COMPACT:
+                return new CompactTrackWriter();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Broadcasts current location and track summary, if any consumer is attached.
+     */
+    private void broadcastCurrentState() {
+        if (consumers == 0) {
+            return;
+        }
+        if (hasCurrentLocation) {
+            transport.publishLocation(currentLocation);
+        }
+        if (statistics.summary().fixCount > 0) {
+            publishSummary();
+        }
+    }
+
+    private void publishSummary() {
+        lastSummaryTime = statistics.summary().lastTime;
+        summaryBuffer.clear();
+        statistics.summary().write(summaryBuffer);
+        summaryBuffer.flip();
+        transport.publishEvent(EVENT_TRACK_SUMMARY, summaryBuffer);
+    }
+
+    /**
+     * Streams the whole track recorded so far into the channel and closes it.
+     * @param channel write end of the client's pipe
+     * @param writer writer encoding the track, or null for raw records
+     */
+    private void exportTrack(final WritableByteChannel channel, @Nullable final TrackWriter writer) {
+        final long records;
+        try {
+            trackLog.flush();
+            records = trackLog.flushedSize();
+        } catch (IOException e) {
+            new Tale("Couldn't flush track log: " + e).at().tell();
+            closeQuietly(channel);
+            return;
+        }
+        exportExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (writer != null) {
+                        writer.write(trackLog, 0, records, channel);
+                    } else {
+                        writeRawTrack(channel, records);
+                    }
+                } catch (IOException e) {
+                    // most likely the client has gone away
+                    new Tale("Track export failed: " + e).at().tell();
+                } finally {
+                    closeQuietly(channel);
+                }
+            }
+        });
+    }
+
+    private void writeRawTrack(WritableByteChannel channel, long records) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        header.putInt(TrackRecords.STREAM_MAGIC).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        trackLog.transferTo(0, records, channel);
+    }
+
+    private static void closeQuietly(WritableByteChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void onLocationSample(LocationSample sample) {
+        currentLocation.set(sample);
+        hasCurrentLocation = true;
+        long recorded = trackLog.size();
+        try {
+            try {
+                trackLog.append(sample);
+            } finally {
+                if (trackLog.size() > recorded) {
+                    // in the log, if only buffered by a failed flush - recent track, statistics
+                    // and heatmap stay in step with it, their counts are positions in the log
+                    recentTrack.append(sample);
+                    statistics.add(sample);
+                    heatmap.add(sample);
+                }
+            }
+        } catch (IOException e) {
+            if (RECORD_FAILURE_LOG_LIMIT.allow()) {
+                new Tale("Couldn't record location: " + e).at().tell();
+            }
+        }
+        geofenceEngine.evaluate(sample);
+        if (trackLog.size() - savedTrackSize >= SAVE_INTERVAL) {
+            saveState();
+        }
+
+        if (consumers == 0) {
+            // nobody to deliver to - transitions are kept for the next consumer's catch-up
+            if (geofenceTransitions.size() > MAX_PENDING_TRANSITIONS) {
+                geofenceTransitions.dropOldest(geofenceTransitions.size() - MAX_PENDING_TRANSITIONS);
+            }
+            return;
+        }
+        transport.publishLocation(sample);
+        if (sample.time - lastSummaryTime >= SUMMARY_INTERVAL_MILLIS
+                || sample.time < lastSummaryTime) {
+            publishSummary();
+        }
+        // only transitions go over IPC, most fixes cause none
+        publishGeofenceTransitions();
+    }
+
+    @Override
+    public void onCommand(int what, @Nullable Object payload) {
+        switch (what) {
+            case MSG_LOG:
+                // Simple log action
+                new Tale("Service instance count: " + instanceCount).at().tell();
+                if (payload != null) {
+                    new Tale("Incoming log message: " + payload).at().tell();
+                }
+                break;
+            case MSG_GET_CURRENT_STATE:
+                // Retrieve current state and broadcast back to serviceProxy
+                broadcastCurrentState();
+                break;
+            case MSG_EXPORT_TRACK:
+            case MSG_EXPORT_GPX:
+            case MSG_EXPORT_GEOJSON:
+            case MSG_EXPORT_COMPACT:
+                if (payload instanceof WritableByteChannel) {
+                    exportTrack((WritableByteChannel) payload, createTrackWriter(what));
+                }
+                break;
+            case MSG_UPDATE_GEOFENCES:
+                if (payload instanceof byte[]) {
+                    geofenceEngine.update((byte[]) payload);
+                }
+                break;
+            case MSG_ATTACH_CONSUMER:
+                attachConsumer(payload instanceof byte[] && ((byte[]) payload).length == 8
+                        ? ByteBuffer.wrap((byte[]) payload).getLong() : Long.MIN_VALUE);
+                break;
+            case MSG_DETACH_CONSUMER:
+                consumers = Math.max(0, consumers - 1);
+                break;
+            case MSG_QUERY_HEATMAP:
+                if (payload instanceof byte[] && ((byte[]) payload).length == HeatmapCells.QUERY_BYTES) {
+                    queryHeatmap(ByteBuffer.wrap((byte[]) payload));
+                }
+                break;
+        }
+    }
+}
@@ -4,21 +4,36 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
-import android.location.Location;
-import android.os.Bundle;
+import android.location.LocationManager;
+import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.Message;
-import android.os.Messenger;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
-import android.util.Log;
 
-import com.google.android.gms.location.LocationListener;
 import com.maciekjanusz.remoteserviceexample.MainActivity;
 import com.maciekjanusz.remoteserviceexample.R;
+import com.maciekjanusz.remoteserviceexample.service.heatmap.HeatmapFile;
+import com.maciekjanusz.remoteserviceexample.service.source.FusedLocationSource;
+import com.maciekjanusz.remoteserviceexample.service.source.LocationSource;
+import com.maciekjanusz.remoteserviceexample.service.source.PacedLocationSource;
+import com.maciekjanusz.remoteserviceexample.service.source.PlatformLocationSource;
+import com.maciekjanusz.remoteserviceexample.service.source.RacingLocationSource;
+import com.maciekjanusz.remoteserviceexample.service.source.ReplayLocationSource;
+import com.maciekjanusz.remoteserviceexample.service.source.SyntheticLocationSource;
+import com.maciekjanusz.remoteserviceexample.service.stats.StatisticsFile;
+import com.maciekjanusz.remoteserviceexample.service.track.TrackLog;
+import com.maciekjanusz.remoteserviceexample.service.transport.MessengerServiceTransport;
+import com.maciekjanusz.remoteserviceexample.service.upload.HttpUploadClient;
+import com.maciekjanusz.remoteserviceexample.service.upload.TrackUploader;
+import com.maciekjanusz.remoteserviceexample.service.upload.UploadCursor;
 import com.maciekjanusz.tale.Tale;
 
-import java.lang.ref.WeakReference;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This service runs in the foreground and in different process than rest of application,
@@ -29,44 +44,126 @@ import java.lang.ref.WeakReference;
  *
  * As for the actual purpose, this service continuously updates device location
  * and broadcasts it to other app components, and can be controlled from within an activity
- * through aforementioned messenger.
+ * through aforementioned messenger. The logic itself lives in {@link TrackingEngine},
+ * this class only wires it to the android framework.
  */
-public class TrackingService extends Service implements LocationListener {
-
-    public static final String LOG_STRING_KEY = "key:log_string";
-    private static long instanceCount = 0;
+public class TrackingService extends Service {
 
     public static final int MSG_LOG = 0,
-            MSG_GET_CURRENT_STATE = 1;
+            MSG_GET_CURRENT_STATE = 1,
+            MSG_EXPORT_TRACK = 2,
+            MSG_EXPORT_GPX = 3,
+            MSG_EXPORT_GEOJSON = 4,
+            MSG_EXPORT_COMPACT = 5,
+            MSG_UPDATE_GEOFENCES = 6,
+            MSG_ATTACH_CONSUMER = 7,
+            MSG_DETACH_CONSUMER = 8,
+            MSG_QUERY_HEATMAP = 9;
+
+    /**
+     * Events published besides location fixes, see
+     * {@link com.maciekjanusz.remoteserviceexample.service.transport.ServiceTransport#publishEvent(int, java.nio.ByteBuffer)}
+     */
+    public static final int EVENT_GEOFENCE_TRANSITIONS = 0,
+            EVENT_TRACK_SUMMARY = 1,
+            EVENT_TRACK_SNAPSHOT = 2,
+            EVENT_HEATMAP = 3;
 
     public static final String
             ACTION_LOCATION_ACQUIRED = "action_location_acquired",
-            EXTRA_LOCATION = "extra_location";
+            ACTION_SERVICE_EVENT = "action_service_event";
+
+    /**
+     * Optional start intent extras selecting a test location source instead of the fused one:
+     * path of a .csv / .gpx track to replay, or seed of a synthetic track,
+     * plus pacing - time scale (double) or rate in fixes per second (double)
+     */
+    public static final String
+            EXTRA_REPLAY_FILE = "extra_replay_file",
+            EXTRA_SYNTHETIC_SEED = "extra_synthetic_seed",
+            EXTRA_SOURCE_TIME_SCALE = "extra_source_time_scale",
+            EXTRA_SOURCE_RATE = "extra_source_rate";
 
     /**
-     * Messenger with {@link com.maciekjanusz.remoteserviceexample.service.TrackingService.ProxyMessageHandler}
-     * for incoming IPC communication messages from serviceProxy
+     * Optional start intent extra (boolean) - use the fused source alone, instead of racing it
+     * against platform GPS and network providers
      */
-    private final Messenger bindMessenger =
-            new Messenger(new ProxyMessageHandler(new WeakReference<>(this)));
+    public static final String EXTRA_FUSED_ONLY = "extra_fused_only";
+
+    /**
+     * Name of the persisted track file in app files dir
+     */
+    private static final String TRACK_LOG_FILE = "track.log";
+
+    /**
+     * Name of the persisted heatmap file in app files dir
+     */
+    private static final String HEATMAP_FILE = "heatmap.bin";
+
+    /**
+     * Name of the persisted track statistics file in app files dir
+     */
+    private static final String STATISTICS_FILE = "statistics.bin";
+
+    /**
+     * Name of the file with upload position in the track, in app files dir
+     */
+    private static final String UPLOAD_CURSOR_FILE = "upload.cursor";
+
+    /**
+     * Number of fixes buffered between a background location source and the main thread
+     */
+    static final int HANDOFF_CAPACITY = 256;
+
+    /**
+     * Transport receiving messages from serviceProxy through Messenger
+     * and broadcasting events back
+     */
+    private final MessengerServiceTransport transport = new MessengerServiceTransport(this);
+    /**
+     * Tracking logic, created in {@link #onCreate()}
+     */
+    private TrackingEngine engine;
     /**
      * LocationRetriever for retrieving location. Duh
      */
     private LocationRetriever locationRetriever;
-
     /**
-     * Intent for broadcasting location back to serviceProxy
+     * Uploader of the track to the backend, null if no backend is configured
      */
-    private Intent locationBroadcastIntent = new Intent(ACTION_LOCATION_ACQUIRED);
+    private TrackUploader trackUploader;
 
-    public TrackingService() {
-        // increase instance count for debugging purposes
-        instanceCount++;
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        TrackLog trackLog;
+        try {
+            trackLog = new TrackLog(new File(getFilesDir(), TRACK_LOG_FILE));
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't open track log", e);
+        }
+        engine = new TrackingEngine(transport, trackLog,
+                new HeatmapFile(new File(getFilesDir(), HEATMAP_FILE)),
+                new StatisticsFile(new File(getFilesDir(), STATISTICS_FILE)));
+        trackUploader = createTrackUploader(trackLog);
     }
 
     @Override
     public IBinder onBind(Intent intent) {
-        return bindMessenger.getBinder();
+        return transport.getBinder();
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        // all clients are gone, including any that died without detaching
+        engine.detachAllConsumers();
+        // get onRebind and onUnbind again next time, instead of a silent reuse of the binder
+        return true;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        // consumers announce themselves through MSG_ATTACH_CONSUMER
     }
 
     @Override
@@ -74,15 +171,35 @@ public class TrackingService extends Service implements LocationListener {
         startForeground(startId, createServiceRunningNotification());
 
         // start retrieving location
-        locationRetriever = new LocationRetriever(this);
-        locationRetriever.startRetrievingLocation(this);
+        if (locationRetriever == null) {
+            LocationSource locationSource = createLocationSource(intent);
+            locationRetriever = new LocationRetriever(locationSource);
+            if (locationSource instanceof PacedLocationSource) {
+                // test sources emit on their own thread, engine expects the main one
+                final Handler handler = new Handler();
+                locationRetriever.startRetrievingLocation(new SampleHandoff(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        handler.post(command);
+                    }
+                }, engine, HANDOFF_CAPACITY));
+            } else {
+                locationRetriever.startRetrievingLocation(engine);
+            }
+        }
 
         return START_STICKY;
     }
 
     @Override
     public void onDestroy() {
-        locationRetriever.stopRetrievingLocation();
+        if (locationRetriever != null) {
+            locationRetriever.stopRetrievingLocation();
+        }
+        if (trackUploader != null) {
+            trackUploader.stop();
+        }
+        engine.close();
         super.onDestroy();
     }
 
@@ -107,62 +224,83 @@ public class TrackingService extends Service implements LocationListener {
     }
 
     /**
-     * Send location broadcast to serviceProxy
-     * @param location location object to send
+     * Creates and starts uploader of the track to backend configured with R.string.upload_url
+     * @return the uploader, or null if no backend is configured or the upload can't be set up
      */
-    private void broadcastLocation(final Location location) {
-        locationBroadcastIntent.putExtra(EXTRA_LOCATION,
-                location);
-        sendBroadcast(locationBroadcastIntent);
+    private TrackUploader createTrackUploader(TrackLog trackLog) {
+        String uploadUrl = getString(R.string.upload_url);
+        if (uploadUrl == null || uploadUrl.isEmpty()) {
+            return null;
+        }
+        try {
+            TrackUploader uploader = new TrackUploader(trackLog,
+                    new UploadCursor(new File(getFilesDir(), UPLOAD_CURSOR_FILE)),
+                    new HttpUploadClient(new URL(uploadUrl)));
+            uploader.start();
+            return uploader;
+        } catch (IOException e) {
+            new Tale("Couldn't set up track upload: " + e).at().tell();
+            return null;
+        }
     }
 
     /**
-     * Currently - just broadcast current location.
+     * Creates location source according to start intent extras, see {@link #EXTRA_REPLAY_FILE}
+     * @param intent start intent (null when restarted by the system)
+     * @return location source
      */
-    private void broadcastCurrentState() {
-        broadcastLocation(locationRetriever.getCurrentLocation());
-    }
-
-    @Override
-    public void onLocationChanged(Location location) {
-        broadcastLocation(location);
+    private LocationSource createLocationSource(Intent intent) {
+        PacedLocationSource pacedSource = null;
+        if (intent != null && intent.hasExtra(EXTRA_REPLAY_FILE)) {
+            File file = new File(intent.getStringExtra(EXTRA_REPLAY_FILE));
+            try {
+                pacedSource = ReplayLocationSource.fromFile(file);
+            } catch (IOException e) {
+                new Tale("Couldn't open replay file " + file + ": " + e).at().tell();
+            }
+        } else if (intent != null && intent.hasExtra(EXTRA_SYNTHETIC_SEED)) {
+            pacedSource = new SyntheticLocationSource(intent.getLongExtra(EXTRA_SYNTHETIC_SEED, 0));
+        }
+        if (pacedSource == null) {
+            if (intent != null && intent.getBooleanExtra(EXTRA_FUSED_ONLY, false)) {
+                return new FusedLocationSource(this);
+            }
+            return createRacingLocationSource();
+        }
+        // real time replay, unless told otherwise
+        double defaultTimeScale = intent.hasExtra(EXTRA_SOURCE_RATE) ? 0 : 1;
+        return pacedSource
+                .setTimeScale(intent.getDoubleExtra(EXTRA_SOURCE_TIME_SCALE, defaultTimeScale))
+                .setRate(intent.getDoubleExtra(EXTRA_SOURCE_RATE, 0));
     }
 
     /**
-     * Static handler for incoming messages from serviceProxy
+     * Creates source racing fused, GPS and network providers, all delivering on the main thread
      */
-    private static class ProxyMessageHandler extends Handler {
-
-        /**
-         * Weak reference to {@link TrackingService} to avoid mem leaks.
-         */
-        private final WeakReference<TrackingService> serviceWeakReference;
+    private LocationSource createRacingLocationSource() {
+        final Handler handler = new Handler();
+        RacingLocationSource.Scheduler scheduler = new RacingLocationSource.Scheduler() {
+            @Override
+            public long elapsedRealtimeNanos() {
+                // same time base as fixes, which have no monotonic time before API 17 anyway
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1
+                        ? SystemClock.elapsedRealtimeNanos()
+                        : TimeUnit.MILLISECONDS.toNanos(SystemClock.elapsedRealtime());
+            }
 
-        private ProxyMessageHandler(WeakReference<TrackingService> serviceWeakReference) {
-            this.serviceWeakReference = serviceWeakReference;
-        }
+            @Override
+            public void postDelayed(Runnable runnable, long delayMillis) {
+                handler.postDelayed(runnable, delayMillis);
+            }
 
-        @Override
-        public void handleMessage(Message msg) {
-            switch(msg.what) {
-                case MSG_LOG:
-                    // Simple log action
-                    Bundle data = msg.getData();
-                    String logString = data.getString(LOG_STRING_KEY);
-                    new Tale("Service instance count: " + instanceCount).at().tell();
-                    if(logString != null) {
-                        new Tale("Incoming log message: " + logString).at().tell();
-                    }
-                    break;
-                case MSG_GET_CURRENT_STATE:
-                    // Retrieve current state and broadcast back to serviceProxy
-                    try {
-                        serviceWeakReference.get().broadcastCurrentState();
-                    } catch (NullPointerException e) {
-                        new Tale("Service has died. Couldn't process MSG_GET_CURRENT_STATE").at().tell();
-                    }
-                    break;
+            @Override
+            public void removeCallbacks(Runnable runnable) {
+                handler.removeCallbacks(runnable);
             }
-        }
+        };
+        return new RacingLocationSource(scheduler,
+                new FusedLocationSource(this),
+                new PlatformLocationSource(this, LocationManager.GPS_PROVIDER),
+                new PlatformLocationSource(this, LocationManager.NETWORK_PROVIDER));
     }
-}
\ No newline at end of file
+}
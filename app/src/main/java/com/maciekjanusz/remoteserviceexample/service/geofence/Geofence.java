@@ -0,0 +1,30 @@
+package com.maciekjanusz.remoteserviceexample.service.geofence;
+
+/**
+ * Circular geofence.
+ */
+public class Geofence {
+
+    /**
+     * Caller assigned identifier, unique among fences of the service
+     */
+    public final int id;
+    public final double latitude;
+    public final double longitude;
+    /**
+     * Radius in meters
+     */
+    public final float radius;
+    /**
+     * Time after entering, after which dwell transition is reported, 0 for no dwell transitions
+     */
+    public final long dwellMillis;
+
+    public Geofence(int id, double latitude, double longitude, float radius, long dwellMillis) {
+        this.id = id;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.radius = radius;
+        this.dwellMillis = dwellMillis;
+    }
+}
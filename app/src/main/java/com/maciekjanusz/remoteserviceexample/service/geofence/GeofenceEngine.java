@@ -0,0 +1,190 @@
+package com.maciekjanusz.remoteserviceexample.service.geofence;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.tale.Tale;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Evaluates fixes against geofences and reports enter, exit and dwell transitions.
+ *
+ * Each fix is checked against the fences of its grid cells in {@link GeofenceIndex} and against
+ * the fences it's currently inside, so cost doesn't grow with total fence count.
+ *
+ * Updates are applied on a background thread, which builds a new index. Evaluation keeps
+ * using the current index meanwhile and swaps in the new one on the next fix, carrying over
+ * state of fences with unchanged ids. Fences removed while inside are dropped without
+ * exit transition.
+ *
+ * {@link #evaluate(LocationSample)} must be called from a single thread.
+ */
+public class GeofenceEngine {
+
+    public static final int TRANSITION_ENTER = 1;
+    public static final int TRANSITION_EXIT = 2;
+    public static final int TRANSITION_DWELL = 4;
+
+    private static final byte OUTSIDE = 0;
+    private static final byte INSIDE = 1;
+    private static final byte DWELLING = 2;
+
+    public interface TransitionListener {
+        /**
+         * @param fenceId id of the geofence
+         * @param transition one of TRANSITION_ constants
+         * @param sample fix which caused the transition
+         */
+        void onGeofenceTransition(int fenceId, int transition, LocationSample sample);
+    }
+
+    private final TransitionListener listener;
+    private final double cellDegrees;
+    private final ExecutorService indexBuilder = Executors.newSingleThreadExecutor();
+    private final AtomicReference<GeofenceIndex> pendingIndex = new AtomicReference<>();
+    /**
+     * Fences by id, owned by indexBuilder thread
+     */
+    private final Map<Integer, Geofence> fences = new HashMap<>();
+
+    /*
+        evaluation state, owned by evaluating thread
+     */
+    private GeofenceIndex index = GeofenceIndex.EMPTY;
+    private byte[] states = new byte[0];
+    private long[] enterTimes = new long[0];
+    /**
+     * Positions of fences in INSIDE or DWELLING state
+     */
+    private int[] active = new int[16];
+    private int activeCount = 0;
+
+    public GeofenceEngine(TransitionListener listener) {
+        this(listener, GeofenceIndex.DEFAULT_CELL_DEGREES);
+    }
+
+    public GeofenceEngine(TransitionListener listener, double cellDegrees) {
+        this.listener = listener;
+        this.cellDegrees = cellDegrees;
+    }
+
+    /**
+     * Schedules an update, which takes effect from one of the following fixes.
+     * @param update update encoded with {@link GeofenceUpdate#toBytes()}, decoded off the caller's
+     *               thread - a malformed one is dropped
+     */
+    public void update(final byte[] update) {
+        indexBuilder.execute(new Runnable() {
+            @Override
+            public void run() {
+                GeofenceUpdate decoded = GeofenceUpdate.fromBytes(update);
+                if (decoded == null) {
+                    new Tale("Dropping malformed geofence update of " + update.length + " bytes")
+                            .at().tell();
+                    return;
+                }
+                apply(decoded);
+            }
+        });
+    }
+
+    /**
+     * Schedules an update, which takes effect from one of the following fixes.
+     */
+    public void update(final GeofenceUpdate update) {
+        indexBuilder.execute(new Runnable() {
+            @Override
+            public void run() {
+                apply(update);
+            }
+        });
+    }
+
+    private void apply(GeofenceUpdate update) {
+        update.applyTo(fences);
+        // replaces a pending index which wasn't picked up yet - it's older than this one
+        pendingIndex.set(new GeofenceIndex(fences.values(), cellDegrees));
+    }
+
+    /**
+     * @return number of fences currently evaluated
+     */
+    public int size() {
+        return index.size();
+    }
+
+    public void evaluate(LocationSample sample) {
+        GeofenceIndex next = pendingIndex.getAndSet(null);
+        if (next != null) {
+            swap(next);
+        }
+        double latitude = sample.latitude;
+        double longitude = sample.longitude;
+
+        // exits and dwells among fences we're inside
+        for (int i = activeCount - 1; i >= 0; i--) {
+            int position = active[i];
+            if (!index.contains(position, latitude, longitude)) {
+                states[position] = OUTSIDE;
+                active[i] = active[--activeCount];
+                listener.onGeofenceTransition(index.ids[position], TRANSITION_EXIT, sample);
+            } else if (states[position] == INSIDE && index.dwellMillis[position] > 0
+                    && sample.time - enterTimes[position] >= index.dwellMillis[position]) {
+                states[position] = DWELLING;
+                listener.onGeofenceTransition(index.ids[position], TRANSITION_DWELL, sample);
+            }
+        }
+
+        // enters among candidates
+        for (int level = 0, levels = index.levelCount(); level < levels; level++) {
+            int cell = index.findCell(level, latitude, longitude);
+            if (cell >= 0) {
+                for (int i = index.cellStart(cell), end = index.cellEnd(cell); i < end; i++) {
+                    checkEnter(index.cellFence(i), sample);
+                }
+            }
+        }
+    }
+
+    private void checkEnter(int position, LocationSample sample) {
+        if (states[position] != OUTSIDE
+                || !index.contains(position, sample.latitude, sample.longitude)) {
+            return;
+        }
+        states[position] = INSIDE;
+        enterTimes[position] = sample.time;
+        if (activeCount == active.length) {
+            int[] grown = new int[active.length * 2];
+            System.arraycopy(active, 0, grown, 0, activeCount);
+            active = grown;
+        }
+        active[activeCount++] = position;
+        listener.onGeofenceTransition(index.ids[position], TRANSITION_ENTER, sample);
+    }
+
+    private void swap(GeofenceIndex next) {
+        byte[] nextStates = new byte[next.size()];
+        long[] nextEnterTimes = new long[next.size()];
+        int nextActiveCount = 0;
+        for (int i = 0; i < activeCount; i++) {
+            int position = active[i];
+            int nextPosition = next.positionOf(index.ids[position]);
+            if (nextPosition >= 0) {
+                nextStates[nextPosition] = states[position];
+                nextEnterTimes[nextPosition] = enterTimes[position];
+                active[nextActiveCount++] = nextPosition;
+            }
+        }
+        index = next;
+        states = nextStates;
+        enterTimes = nextEnterTimes;
+        activeCount = nextActiveCount;
+    }
+
+    public void shutdown() {
+        indexBuilder.shutdown();
+    }
+}
@@ -0,0 +1,284 @@
+package com.maciekjanusz.remoteserviceexample.service.geofence;
+
+import com.maciekjanusz.remoteserviceexample.service.Geo;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Immutable spatial index of geofences - a hierarchy of latitude / longitude grids, each
+ * {@link #LEVEL_FACTOR} times coarser than the previous one. Every fence is listed in the cells
+ * it overlaps on the finest level where that's at most {@link #MAX_CELLS_PER_FENCE} cells, so
+ * small fences stay in small cells and big ones in big cells. Finding fences which may contain
+ * a point costs one hash lookup per level in use plus the fences of those cells, regardless of
+ * total fence count and fence radii.
+ *
+ * Fences are addressed by position (0 until {@link #size()}) in parallel primitive arrays.
+ * Cells don't wrap around the antimeridian.
+ */
+public class GeofenceIndex {
+
+    /**
+     * Default size of the finest cells, about 1.1 km in latitude
+     */
+    public static final double DEFAULT_CELL_DEGREES = 0.01;
+
+    static final int MAX_CELLS_PER_FENCE = 64;
+
+    /**
+     * Cell size ratio of consecutive levels
+     */
+    static final int LEVEL_FACTOR = 8;
+
+    public static final GeofenceIndex EMPTY =
+            new GeofenceIndex(Collections.<Geofence>emptyList(), DEFAULT_CELL_DEGREES);
+
+    final int[] ids;
+    final double[] latitudes;
+    final double[] longitudes;
+    final float[] radii;
+    final long[] dwellMillis;
+
+    /**
+     * Cell sizes of levels which have fences, finest first
+     */
+    private final double[] levelDegrees;
+    /**
+     * Open addressing table of cells of all levels; fences of cell at slot s are
+     * cellFences[cellStarts[s]] until cellFences[cellStarts[s + 1]]
+     */
+    private final long[] cellKeys;
+    private final boolean[] cellUsed;
+    private final int[] cellStarts;
+    private final int[] cellFences;
+    /**
+     * Open addressing table of fence positions by id
+     */
+    private final int[] idSlots;
+
+    /**
+     * @param cellDegrees size of the finest cells, coarser levels are added until a cell spans
+     *                    the whole latitude range, so fences of any radius fit
+     */
+    public GeofenceIndex(Collection<Geofence> geofences, double cellDegrees) {
+        int levelCount = 1;
+        for (double degrees = cellDegrees; degrees < 180; degrees *= LEVEL_FACTOR) {
+            levelCount++;
+        }
+        double[] allDegrees = new double[levelCount];
+        allDegrees[0] = cellDegrees;
+        for (int level = 1; level < levelCount; level++) {
+            allDegrees[level] = allDegrees[level - 1] * LEVEL_FACTOR;
+        }
+
+        int count = geofences.size();
+        ids = new int[count];
+        latitudes = new double[count];
+        longitudes = new double[count];
+        radii = new float[count];
+        dwellMillis = new long[count];
+
+        // levels and cell ranges of fences
+        int[] levels = new int[count];
+        int[] firstRows = new int[count];
+        int[] firstColumns = new int[count];
+        int[] rows = new int[count];
+        int[] columns = new int[count];
+        boolean[] levelUsed = new boolean[levelCount];
+        int entries = 0;
+        int position = 0;
+        for (Geofence geofence : geofences) {
+            ids[position] = geofence.id;
+            latitudes[position] = geofence.latitude;
+            longitudes[position] = geofence.longitude;
+            radii[position] = geofence.radius;
+            dwellMillis[position] = geofence.dwellMillis;
+
+            double latitudeSpan = Math.min(180, geofence.radius / Geo.METERS_PER_DEGREE);
+            double cos = Math.cos(Math.toRadians(Math.min(89.9,
+                    Math.abs(geofence.latitude) + latitudeSpan)));
+            double longitudeSpan = Math.min(180, latitudeSpan / cos);
+            int level = 0;
+            do {
+                double degrees = allDegrees[level];
+                firstRows[position] = cell(geofence.latitude - latitudeSpan, degrees);
+                firstColumns[position] = cell(geofence.longitude - longitudeSpan, degrees);
+                rows[position] = cell(geofence.latitude + latitudeSpan, degrees)
+                        - firstRows[position] + 1;
+                columns[position] = cell(geofence.longitude + longitudeSpan, degrees)
+                        - firstColumns[position] + 1;
+            } while ((long) rows[position] * columns[position] > MAX_CELLS_PER_FENCE
+                    && ++level < levelCount);
+            levels[position] = level;
+            levelUsed[level] = true;
+            entries += rows[position] * columns[position];
+            position++;
+        }
+
+        // levels without fences aren't looked up
+        int usedCount = 0;
+        for (boolean used : levelUsed) {
+            usedCount += used ? 1 : 0;
+        }
+        levelDegrees = new double[usedCount];
+        int[] usedLevels = new int[levelCount];
+        usedCount = 0;
+        for (int level = 0; level < levelCount; level++) {
+            if (levelUsed[level]) {
+                usedLevels[level] = usedCount;
+                levelDegrees[usedCount++] = allDegrees[level];
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            levels[i] = usedLevels[levels[i]];
+        }
+
+        int capacity = tableCapacity(entries);
+        cellKeys = new long[capacity];
+        cellUsed = new boolean[capacity];
+        cellStarts = new int[capacity + 1];
+        cellFences = new int[entries];
+
+        // count fences per cell
+        int[] counts = new int[capacity];
+        for (int i = 0; i < count; i++) {
+            for (int row = firstRows[i]; row < firstRows[i] + rows[i]; row++) {
+                for (int column = firstColumns[i]; column < firstColumns[i] + columns[i]; column++) {
+                    counts[insertCell(key(levels[i], row, column))]++;
+                }
+            }
+        }
+        for (int slot = 0; slot < capacity; slot++) {
+            cellStarts[slot + 1] = cellStarts[slot] + counts[slot];
+        }
+        // fill, reusing counts as fill positions
+        for (int slot = 0; slot < capacity; slot++) {
+            counts[slot] = cellStarts[slot];
+        }
+        for (int i = 0; i < count; i++) {
+            for (int row = firstRows[i]; row < firstRows[i] + rows[i]; row++) {
+                for (int column = firstColumns[i]; column < firstColumns[i] + columns[i]; column++) {
+                    cellFences[counts[findCell(key(levels[i], row, column))]++] = i;
+                }
+            }
+        }
+
+        idSlots = new int[tableCapacity(count)];
+        Arrays.fill(idSlots, -1);
+        for (int i = 0; i < count; i++) {
+            int mask = idSlots.length - 1;
+            int slot = mix(ids[i]) & mask;
+            while (idSlots[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            idSlots[slot] = i;
+        }
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return position of fence with given id, or -1
+     */
+    public int positionOf(int id) {
+        int mask = idSlots.length - 1;
+        int slot = mix(id) & mask;
+        int position;
+        while ((position = idSlots[slot]) >= 0) {
+            if (ids[position] == id) {
+                return position;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return whether fence at position contains the point
+     */
+    public boolean contains(int position, double latitude, double longitude) {
+        return Geo.distanceMeters(latitudes[position], longitudes[position], latitude, longitude)
+                <= radii[position];
+    }
+
+    /**
+     * @return number of grid levels which have fences
+     */
+    public int levelCount() {
+        return levelDegrees.length;
+    }
+
+    /**
+     * Finds grid cell of a point, for {@link #cellStart(int)} and {@link #cellEnd(int)}.
+     * @param level level between 0 and {@link #levelCount()}
+     * @return cell slot or -1 if no fence overlaps the cell
+     */
+    public int findCell(int level, double latitude, double longitude) {
+        double degrees = levelDegrees[level];
+        return findCell(key(level, cell(latitude, degrees), cell(longitude, degrees)));
+    }
+
+    public int cellStart(int cell) {
+        return cellStarts[cell];
+    }
+
+    public int cellEnd(int cell) {
+        return cellStarts[cell + 1];
+    }
+
+    /**
+     * @return position of fence at index between cellStart and cellEnd of a cell
+     */
+    public int cellFence(int index) {
+        return cellFences[index];
+    }
+
+    private static int cell(double degrees, double cellDegrees) {
+        return (int) Math.floor(degrees / cellDegrees);
+    }
+
+    private static long key(int level, int row, int column) {
+        return ((long) level << 58) | ((long) (row & 0x1fffffff) << 29) | (column & 0x1fffffff);
+    }
+
+    private int insertCell(long key) {
+        int mask = cellKeys.length - 1;
+        int slot = mix(key) & mask;
+        while (cellUsed[slot]) {
+            if (cellKeys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        cellUsed[slot] = true;
+        cellKeys[slot] = key;
+        return slot;
+    }
+
+    private int findCell(long key) {
+        int mask = cellKeys.length - 1;
+        int slot = mix(key) & mask;
+        while (cellUsed[slot]) {
+            if (cellKeys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return power of two table size, at most half full with given number of keys
+     */
+    private static int tableCapacity(int keys) {
+        return Integer.highestOneBit(Math.max(keys, 1) * 2 - 1) << 1;
+    }
+
+    private static int mix(long key) {
+        key *= 0x9e3779b97f4a7c15L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
@@ -0,0 +1,87 @@
+package com.maciekjanusz.remoteserviceexample.service.geofence;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Batch of geofence transitions caused by one fix, encoded as
+ * {@link com.maciekjanusz.remoteserviceexample.service.TrackingService#EVENT_GEOFENCE_TRANSITIONS}
+ * payload: fence id, transition (int), time (long), latitude, longitude (double) per transition.
+ */
+public class GeofenceTransitions implements GeofenceEngine.TransitionListener {
+
+    private static final int TRANSITION_BYTES = 4 + 4 + 8 + 8 + 8;
+
+    public interface Listener {
+        /**
+         * @param transition one of GeofenceEngine.TRANSITION_ constants
+         */
+        void onGeofenceTransition(int fenceId, int transition, long time,
+                                  double latitude, double longitude);
+    }
+
+    private ByteBuffer buffer = ByteBuffer.allocate(TRANSITION_BYTES * 4);
+
+    @Override
+    public void onGeofenceTransition(int fenceId, int transition, LocationSample sample) {
+        if (buffer.remaining() < TRANSITION_BYTES) {
+            ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+        buffer.putInt(fenceId)
+                .putInt(transition)
+                .putLong(sample.time)
+                .putDouble(sample.latitude)
+                .putDouble(sample.longitude);
+    }
+
+    public boolean isEmpty() {
+        return buffer.position() == 0;
+    }
+
+    /**
+     * @return number of transitions collected since last {@link #clear()}
+     */
+    public int size() {
+        return buffer.position() / TRANSITION_BYTES;
+    }
+
+    /**
+     * @return buffer with transitions collected since last {@link #clear()}, ready for reading
+     */
+    public ByteBuffer encoded() {
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Removes the oldest transitions, keeping the order of the rest.
+     * @param count number of transitions to remove
+     */
+    public void dropOldest(int count) {
+        int bytes = Math.min(count, size()) * TRANSITION_BYTES;
+        buffer.flip();
+        buffer.position(bytes);
+        buffer.compact();
+    }
+
+    /**
+     * Starts a new batch.
+     */
+    public void clear() {
+        buffer.clear();
+    }
+
+    /**
+     * Decodes transitions of an event payload.
+     */
+    public static void read(ByteBuffer buffer, Listener listener) {
+        while (buffer.remaining() >= TRANSITION_BYTES) {
+            listener.onGeofenceTransition(buffer.getInt(), buffer.getInt(), buffer.getLong(),
+                    buffer.getDouble(), buffer.getDouble());
+        }
+    }
+}
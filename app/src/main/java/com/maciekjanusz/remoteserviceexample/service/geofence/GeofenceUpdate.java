@@ -0,0 +1,116 @@
+package com.maciekjanusz.remoteserviceexample.service.geofence;
+
+import android.support.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bulk change of the service's geofences: optional removal of all fences, then removal of fences
+ * by id, then addition (or replacement, for existing ids) of fences. Sent to the service encoded
+ * as a byte array, see {@link #toBytes()}.
+ *
+ * An update is limited by binder transaction size to about 30 000 fences - split bigger sets
+ * into several updates.
+ */
+public class GeofenceUpdate {
+
+    private static final int FENCE_BYTES = 4 + 8 + 8 + 4 + 8;
+
+    private boolean removeAll = false;
+    private final List<Integer> removals = new ArrayList<>();
+    private final List<Geofence> additions = new ArrayList<>();
+
+    public GeofenceUpdate removeAll() {
+        removeAll = true;
+        return this;
+    }
+
+    public GeofenceUpdate remove(int id) {
+        removals.add(id);
+        return this;
+    }
+
+    public GeofenceUpdate add(Geofence geofence) {
+        additions.add(geofence);
+        return this;
+    }
+
+    /**
+     * Applies this update to a set of fences.
+     * @param fences fences by id, modified in place
+     */
+    void applyTo(Map<Integer, Geofence> fences) {
+        if (removeAll) {
+            fences.clear();
+        }
+        for (Integer id : removals) {
+            fences.remove(id);
+        }
+        for (Geofence geofence : additions) {
+            fences.put(geofence.id, geofence);
+        }
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + removals.size() * 4
+                + 4 + additions.size() * FENCE_BYTES);
+        buffer.put((byte) (removeAll ? 1 : 0));
+        buffer.putInt(removals.size());
+        for (Integer id : removals) {
+            buffer.putInt(id);
+        }
+        buffer.putInt(additions.size());
+        for (Geofence geofence : additions) {
+            buffer.putInt(geofence.id)
+                    .putDouble(geofence.latitude)
+                    .putDouble(geofence.longitude)
+                    .putFloat(geofence.radius)
+                    .putLong(geofence.dwellMillis);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Decodes an update received from another process, so nothing about it is trusted.
+     * @param bytes update encoded with {@link #toBytes()}
+     * @return decoded update, or null if the bytes are malformed or describe an invalid fence
+     */
+    @Nullable
+    public static GeofenceUpdate fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        GeofenceUpdate update = new GeofenceUpdate();
+        if (buffer.remaining() < 1 + 4) {
+            return null;
+        }
+        update.removeAll = buffer.get() != 0;
+        int removals = buffer.getInt();
+        if (removals < 0 || removals > (buffer.remaining() - 4) / 4) {
+            return null;
+        }
+        for (int i = 0; i < removals; i++) {
+            update.removals.add(buffer.getInt());
+        }
+        int additions = buffer.getInt();
+        if (additions < 0 || additions != buffer.remaining() / FENCE_BYTES
+                || buffer.remaining() % FENCE_BYTES != 0) {
+            return null;
+        }
+        for (int i = 0; i < additions; i++) {
+            int id = buffer.getInt();
+            double latitude = buffer.getDouble();
+            double longitude = buffer.getDouble();
+            float radius = buffer.getFloat();
+            long dwellMillis = buffer.getLong();
+            // negated, so that NaN fails too
+            if (!(latitude >= -90 && latitude <= 90) || !(longitude >= -180 && longitude <= 180)
+                    || !(radius >= 0) || Float.isInfinite(radius) || dwellMillis < 0) {
+                return null;
+            }
+            update.additions.add(new Geofence(id, latitude, longitude, radius, dwellMillis));
+        }
+        return update;
+    }
+}
@@ -0,0 +1,144 @@
+package com.maciekjanusz.remoteserviceexample.service.heatmap;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash table of grid cells of one zoom level, keyed by {@link TileAggregate#key(int, int)},
+ * with visit count and dwell time in parallel primitive arrays. Grows at 3/4 load, never shrinks.
+ */
+class CellTable {
+
+    private long[] keys;
+    private boolean[] used;
+    private int[] visits;
+    private long[] dwellMillis;
+    private int size = 0;
+
+    /**
+     * @param capacity initial number of slots, a power of two
+     */
+    CellTable(int capacity) {
+        keys = new long[capacity];
+        used = new boolean[capacity];
+        visits = new int[capacity];
+        dwellMillis = new long[capacity];
+    }
+
+    /**
+     * @param other table to copy
+     */
+    CellTable(CellTable other) {
+        keys = other.keys.clone();
+        used = other.used.clone();
+        visits = other.visits.clone();
+        dwellMillis = other.dwellMillis.clone();
+        size = other.size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void addVisit(long key) {
+        int slot = insert(key);
+        visits[slot]++;
+    }
+
+    void addDwell(long key, long millis) {
+        int slot = insert(key);
+        dwellMillis[slot] += millis;
+    }
+
+    void put(long key, int visitCount, long dwell) {
+        int slot = insert(key);
+        visits[slot] = visitCount;
+        dwellMillis[slot] = dwell;
+    }
+
+    /**
+     * @return slot of the cell, or -1 if it has never been visited
+     */
+    int find(long key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; used[slot]; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    int visits(int slot) {
+        return visits[slot];
+    }
+
+    long dwellMillis(int slot) {
+        return dwellMillis[slot];
+    }
+
+    /**
+     * @return keys of all cells, in ascending order
+     */
+    long[] sortedKeys() {
+        long[] sorted = new long[size];
+        int count = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (used[slot]) {
+                sorted[count++] = keys[slot];
+            }
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private int insert(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if ((size + 1) * 4 > keys.length * 3) {
+            grow();
+            return insert(key);
+        }
+        used[slot] = true;
+        keys[slot] = key;
+        size++;
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        int[] oldVisits = visits;
+        long[] oldDwell = dwellMillis;
+        int capacity = oldKeys.length * 2;
+        keys = new long[capacity];
+        used = new boolean[capacity];
+        visits = new int[capacity];
+        dwellMillis = new long[capacity];
+        int mask = capacity - 1;
+        for (int old = 0; old < oldKeys.length; old++) {
+            if (oldUsed[old]) {
+                int slot = hash(oldKeys[old]) & mask;
+                while (used[slot]) {
+                    slot = (slot + 1) & mask;
+                }
+                used[slot] = true;
+                keys[slot] = oldKeys[old];
+                visits[slot] = oldVisits[old];
+                dwellMillis[slot] = oldDwell[old];
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
@@ -0,0 +1,95 @@
+package com.maciekjanusz.remoteserviceexample.service.heatmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Answer to a viewport query of the {@link TileAggregate}, encoded as
+ * {@link com.maciekjanusz.remoteserviceexample.service.TrackingService#EVENT_HEATMAP} payload:
+ * query id, zoom, cell count (int), then tile x, tile y, visits (int), dwell millis (long)
+ * per visited cell. Cells nobody has visited aren't listed.
+ *
+ * {@link com.maciekjanusz.remoteserviceexample.service.TrackingService#MSG_QUERY_HEATMAP} payload
+ * is built by {@link #query(int, double, double, double, double)}.
+ */
+public class HeatmapCells {
+
+    static final int HEADER_BYTES = 4 + 4 + 4;
+    static final int CELL_BYTES = 4 + 4 + 4 + 8;
+    public static final int QUERY_BYTES = 4 + 8 + 8 + 8 + 8;
+
+    public interface Listener {
+        /**
+         * Starts an answer, followed by cellCount calls of {@link #onHeatmapCell}
+         * @param zoom zoom level of the cells' tile coordinates
+         */
+        void onHeatmapStart(int queryId, int zoom, int cellCount);
+
+        /**
+         * @param x tile x at the answer's zoom, see {@link TileAggregate#tileLongitude(int, int)}
+         * @param y tile y at the answer's zoom, see {@link TileAggregate#tileLatitude(int, int)}
+         */
+        void onHeatmapCell(int x, int y, int visits, long dwellMillis);
+    }
+
+    private final ByteBuffer buffer =
+            ByteBuffer.allocate(HEADER_BYTES + TileAggregate.MAX_QUERY_CELLS * CELL_BYTES);
+
+    /**
+     * Starts a new answer, dropping the previous one.
+     */
+    void start(int queryId, int zoom) {
+        buffer.clear();
+        buffer.putInt(queryId).putInt(zoom).putInt(0);
+    }
+
+    void add(int x, int y, int visits, long dwellMillis) {
+        buffer.putInt(x).putInt(y).putInt(visits).putLong(dwellMillis);
+    }
+
+    /**
+     * @return number of cells added since {@link #start(int, int)}
+     */
+    public int size() {
+        return (buffer.position() - HEADER_BYTES) / CELL_BYTES;
+    }
+
+    /**
+     * @return buffer with the answer, ready for reading
+     */
+    public ByteBuffer encoded() {
+        buffer.putInt(8, size());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes a viewport query. A viewport with west greater than east crosses the antimeridian.
+     * @param queryId id echoed in the answer
+     */
+    public static byte[] query(int queryId, double south, double west, double north, double east) {
+        return ByteBuffer.allocate(QUERY_BYTES)
+                .putInt(queryId)
+                .putDouble(south)
+                .putDouble(west)
+                .putDouble(north)
+                .putDouble(east)
+                .array();
+    }
+
+    /**
+     * Decodes an answer of an event payload.
+     */
+    public static void read(ByteBuffer buffer, Listener listener) {
+        if (buffer.remaining() < HEADER_BYTES) {
+            return;
+        }
+        int queryId = buffer.getInt();
+        int zoom = buffer.getInt();
+        int count = Math.min(buffer.getInt(), buffer.remaining() / CELL_BYTES);
+        listener.onHeatmapStart(queryId, zoom, count);
+        for (int i = 0; i < count; i++) {
+            listener.onHeatmapCell(buffer.getInt(), buffer.getInt(), buffer.getInt(),
+                    buffer.getLong());
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.maciekjanusz.remoteserviceexample.service.heatmap;
+
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Persisted {@link TileAggregate}. Saves replace the file atomically, so a crash leaves either
+ * the old or the new aggregate - its {@link TileAggregate#fixCount()} tells how much of the track
+ * log it covers, the rest is caught up on load.
+ */
+public class HeatmapFile {
+
+    private final File file;
+    private final File tempFile;
+
+    public HeatmapFile(File file) {
+        this.file = file;
+        this.tempFile = new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * @return saved aggregate, or null if none has been saved yet
+     * @throws IOException if the file can't be read
+     */
+    @Nullable
+    public TileAggregate load() throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            return TileAggregate.readFrom(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @throws IOException if the aggregate can't be written, the file is left unchanged then
+     */
+    public void save(TileAggregate aggregate) throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        try {
+            aggregate.writeTo(out);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Couldn't replace " + file);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.maciekjanusz.remoteserviceexample.service.heatmap;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Incrementally maintained heatmap of the track - visit count and dwell time of every visited
+ * cell of the web mercator tile grid, at each of {@link #ZOOMS}. Every fix is added in constant
+ * time and without allocation (once the tables have grown), so views of months of track never
+ * rescan the fixes. Tiles nest, so cells of all levels are found by shifting the finest tile
+ * coordinates, and the tables are only touched when a fix leaves the finest cell - dwell
+ * in the current cell is accumulated until then.
+ *
+ * A visit is an entry into a cell: a fix in a different cell than the previous one, or the first
+ * fix after a gap longer than {@link #MAX_GAP_MILLIS}. Time between consecutive fixes counts
+ * as dwell in the cell of the earlier fix, unless it's such a gap.
+ *
+ * Viewport queries pick the finest zoom whose grid covers the viewport with at most
+ * {@link #MAX_QUERY_CELLS} cells and look each of them up, so their cost is bounded by the
+ * viewport and doesn't grow with history.
+ */
+public class TileAggregate {
+
+    /**
+     * Zoom levels of the aggregate, from about 600 km down to about 150 m cells at the equator
+     */
+    static final int[] ZOOMS = {6, 10, 14, 18};
+    private static final int MAX_ZOOM = ZOOMS[ZOOMS.length - 1];
+
+    /**
+     * Initial cell table sizes per zoom level. The finest level gains cells fastest - it starts
+     * big enough for about 12 thousand cells, so that it doesn't rehash on every new area early on.
+     */
+    private static final int[] INITIAL_CAPACITIES = {64, 256, 1024, 16384};
+
+    /**
+     * Maximum number of cells a viewport query looks at, the whole world at the coarsest zoom
+     */
+    public static final int MAX_QUERY_CELLS = 4096;
+
+    static final long MAX_GAP_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Latitude limit of the web mercator projection
+     */
+    static final double MAX_LATITUDE = 85.0511287798;
+
+    private static final int MAGIC = 0x48454154; // HEAT
+    private static final int VERSION = 1;
+
+    private final CellTable[] levels = new CellTable[ZOOMS.length];
+    /**
+     * Cell of the previous fix per zoom level, valid if {@link #hasPrevious} is set
+     */
+    private final long[] previousKeys = new long[ZOOMS.length];
+    private long previousTime;
+    private boolean hasPrevious = false;
+    /**
+     * Dwell in the cells of the previous fix not added to the tables yet
+     */
+    private long pendingDwellMillis = 0;
+    private long fixCount = 0;
+
+    public TileAggregate() {
+        for (int level = 0; level < levels.length; level++) {
+            levels[level] = new CellTable(INITIAL_CAPACITIES[level]);
+        }
+    }
+
+    private TileAggregate(TileAggregate other) {
+        for (int level = 0; level < levels.length; level++) {
+            levels[level] = new CellTable(other.levels[level]);
+        }
+    }
+
+    /**
+     * @return independent copy of the aggregate, made of plain array copies - so that it can be
+     * written out on another thread while this one keeps being updated
+     */
+    public TileAggregate copy() {
+        TileAggregate copy = new TileAggregate(this);
+        System.arraycopy(previousKeys, 0, copy.previousKeys, 0, previousKeys.length);
+        copy.previousTime = previousTime;
+        copy.hasPrevious = hasPrevious;
+        copy.pendingDwellMillis = pendingDwellMillis;
+        copy.fixCount = fixCount;
+        return copy;
+    }
+
+    /**
+     * @return number of fixes added so far
+     */
+    public long fixCount() {
+        return fixCount;
+    }
+
+    public void add(LocationSample sample) {
+        int x = tile(mercatorX(sample.longitude), MAX_ZOOM);
+        int y = tile(mercatorY(sample.latitude), MAX_ZOOM);
+        long millis = sample.time - previousTime;
+        boolean continued = hasPrevious && millis >= 0 && millis <= MAX_GAP_MILLIS;
+        if (continued) {
+            pendingDwellMillis += millis;
+        }
+        if (!continued || key(x, y) != previousKeys[levels.length - 1]) {
+            flushDwell();
+            for (int level = 0; level < levels.length; level++) {
+                int shift = MAX_ZOOM - ZOOMS[level];
+                long key = key(x >> shift, y >> shift);
+                if (!continued || key != previousKeys[level]) {
+                    levels[level].addVisit(key);
+                }
+                previousKeys[level] = key;
+            }
+        }
+        previousTime = sample.time;
+        hasPrevious = true;
+        fixCount++;
+    }
+
+    /**
+     * Adds accumulated dwell to the cells of the previous fix.
+     */
+    private void flushDwell() {
+        if (pendingDwellMillis > 0) {
+            for (int level = 0; level < levels.length; level++) {
+                levels[level].addDwell(previousKeys[level], pendingDwellMillis);
+            }
+            pendingDwellMillis = 0;
+        }
+    }
+
+    /**
+     * Writes visited cells of the viewport into the answer. A viewport with west greater than east
+     * crosses the antimeridian.
+     */
+    public void query(int queryId, double south, double west, double north, double east,
+                      HeatmapCells answer) {
+        flushDwell();
+        int level = ZOOMS.length - 1;
+        while (level > 0 && viewportCells(south, west, north, east, ZOOMS[level]) > MAX_QUERY_CELLS) {
+            level--;
+        }
+        int zoom = ZOOMS[level];
+        int mask = (1 << zoom) - 1;
+        int x0 = tile(mercatorX(west), zoom);
+        int width = viewportWidth(west, east, zoom);
+        int yFrom = tile(mercatorY(Math.max(south, north)), zoom);
+        int yTo = tile(mercatorY(Math.min(south, north)), zoom);
+        CellTable cells = levels[level];
+
+        answer.start(queryId, zoom);
+        for (int y = yFrom; y <= yTo; y++) {
+            for (int i = 0; i < width; i++) {
+                int x = (x0 + i) & mask;
+                int slot = cells.find(key(x, y));
+                if (slot >= 0) {
+                    answer.add(x, y, cells.visits(slot), cells.dwellMillis(slot));
+                }
+            }
+        }
+    }
+
+    private static long viewportCells(double south, double west, double north, double east,
+                                      int zoom) {
+        long height = Math.abs(tile(mercatorY(south), zoom) - tile(mercatorY(north), zoom)) + 1;
+        return height * viewportWidth(west, east, zoom);
+    }
+
+    private static int viewportWidth(double west, double east, int zoom) {
+        int tiles = 1 << zoom;
+        int x0 = tile(mercatorX(west), zoom);
+        int x1 = tile(mercatorX(east), zoom);
+        if (west > east && x1 >= x0) {
+            // wraps all the way around
+            return tiles;
+        }
+        return ((x1 - x0) & (tiles - 1)) + 1;
+    }
+
+    /**
+     * @return number of visited cells at the zoom, 0 if it's not one of {@link #ZOOMS}
+     */
+    public int cellCount(int zoom) {
+        for (int level = 0; level < ZOOMS.length; level++) {
+            if (ZOOMS[level] == zoom) {
+                return levels[level].size();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return longitude of the western edge of tile column x
+     */
+    public static double tileLongitude(int x, int zoom) {
+        return (double) x / (1 << zoom) * 360 - 180;
+    }
+
+    /**
+     * @return latitude of the northern edge of tile row y
+     */
+    public static double tileLatitude(int y, int zoom) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2.0 * y / (1 << zoom)))));
+    }
+
+    /**
+     * @return position in the projection, 0 at -180 to 1 at 180 degrees
+     */
+    private static double mercatorX(double longitude) {
+        return (longitude + 180) / 360;
+    }
+
+    /**
+     * @return position in the projection, 0 at north to 1 at south limit
+     */
+    private static double mercatorY(double latitude) {
+        double sin = Math.sin(Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude))));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    private static int tile(double mercator, int zoom) {
+        int tiles = 1 << zoom;
+        return Math.max(0, Math.min(tiles - 1, (int) Math.floor(mercator * tiles)));
+    }
+
+    static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    /**
+     * Writes the aggregate compactly: cells of each level sorted, keys delta and all values
+     * varint encoded.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        flushDwell();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(fixCount);
+        out.writeLong(previousTime);
+        out.writeBoolean(hasPrevious);
+        out.writeInt(levels.length);
+        for (int level = 0; level < levels.length; level++) {
+            CellTable cells = levels[level];
+            out.writeInt(ZOOMS[level]);
+            out.writeLong(previousKeys[level]);
+            out.writeInt(cells.size());
+            long previousKey = 0;
+            for (long key : cells.sortedKeys()) {
+                int slot = cells.find(key);
+                writeVarint(out, key - previousKey);
+                writeVarint(out, cells.visits(slot));
+                writeVarint(out, cells.dwellMillis(slot));
+                previousKey = key;
+            }
+        }
+    }
+
+    /**
+     * Reads an aggregate written by {@link #writeTo(DataOutput)}.
+     * @throws IOException if it can't be read, or has been written with different zoom levels
+     */
+    public static TileAggregate readFrom(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a heatmap");
+        }
+        TileAggregate aggregate = new TileAggregate();
+        aggregate.fixCount = in.readLong();
+        aggregate.previousTime = in.readLong();
+        aggregate.hasPrevious = in.readBoolean();
+        if (in.readInt() != ZOOMS.length) {
+            throw new IOException("Heatmap zoom levels changed");
+        }
+        for (int level = 0; level < ZOOMS.length; level++) {
+            if (in.readInt() != ZOOMS[level]) {
+                throw new IOException("Heatmap zoom levels changed");
+            }
+            aggregate.previousKeys[level] = in.readLong();
+            int size = in.readInt();
+            long key = 0;
+            for (int i = 0; i < size; i++) {
+                key += readVarint(in);
+                aggregate.levels[level].put(key, (int) readVarint(in), readVarint(in));
+            }
+        }
+        return aggregate;
+    }
+
+    private static void writeVarint(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
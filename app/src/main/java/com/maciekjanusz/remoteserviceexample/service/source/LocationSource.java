@@ -0,0 +1,20 @@
+package com.maciekjanusz.remoteserviceexample.service.source;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSampleListener;
+
+/**
+ * Source of location fixes for {@link com.maciekjanusz.remoteserviceexample.service.LocationRetriever}.
+ */
+public interface LocationSource {
+
+    /**
+     * Starts producing fixes.
+     * @param listener listener for the fixes; the thread it is called on is implementation specific
+     */
+    void start(LocationSampleListener listener);
+
+    /**
+     * Stops producing fixes. No more fixes are delivered after this method returns.
+     */
+    void stop();
+}
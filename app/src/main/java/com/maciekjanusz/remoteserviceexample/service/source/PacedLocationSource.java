@@ -0,0 +1,142 @@
+package com.maciekjanusz.remoteserviceexample.service.source;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.LocationSampleListener;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Base for sources which produce a predetermined sequence of fixes, emitted on their own thread
+ * at a configurable pace:
+ * - time scale - fixes are spaced by their own timestamps, divided by the scale
+ * (1 - real time, 10 - ten times faster),
+ * - rate - fixed number of fixes per second, regardless of their timestamps,
+ * - neither - as fast as the listener consumes them.
+ *
+ * The sequence itself never depends on wall clock, so two runs produce identical fixes.
+ * For fully synchronous runs (tests, benchmarks) use {@link #drain(LocationSampleListener, int)}.
+ */
+public abstract class PacedLocationSource implements LocationSource {
+
+    private volatile double timeScale = 0;
+    private volatile double rate = 0;
+
+    private Thread thread;
+
+    /**
+     * Produces next fix of the sequence.
+     * @param out sample to fill
+     * @return false if the sequence has ended
+     */
+    protected abstract boolean next(LocationSample out);
+
+    /**
+     * Releases resources held by this source. Called once the sequence ends or source is stopped.
+     */
+    protected void close() {
+    }
+
+    /**
+     * Paces fixes by their timestamps.
+     * @param timeScale replay speed relative to real time, 0 disables time based pacing
+     */
+    public PacedLocationSource setTimeScale(double timeScale) {
+        this.timeScale = timeScale;
+        return this;
+    }
+
+    /**
+     * Paces fixes at fixed rate. Ignored if time scale is set.
+     * @param fixesPerSecond rate, 0 disables rate based pacing
+     */
+    public PacedLocationSource setRate(double fixesPerSecond) {
+        this.rate = fixesPerSecond;
+        return this;
+    }
+
+    @Override
+    public synchronized void start(final LocationSampleListener listener) {
+        if (thread != null) {
+            throw new IllegalStateException("Source already started");
+        }
+        thread = new Thread(getClass().getSimpleName()) {
+            @Override
+            public void run() {
+                try {
+                    emit(listener);
+                } finally {
+                    close();
+                }
+            }
+        };
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        Thread running;
+        synchronized (this) {
+            running = thread;
+        }
+        if (running != null) {
+            running.interrupt();
+            if (running != Thread.currentThread()) {
+                try {
+                    running.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Emits fixes synchronously on the calling thread, without pacing.
+     * @param listener listener for the fixes
+     * @param maxFixes maximum number of fixes to emit
+     * @return number of fixes emitted
+     */
+    public int drain(LocationSampleListener listener, int maxFixes) {
+        LocationSample sample = new LocationSample();
+        int count = 0;
+        while (count < maxFixes && next(sample)) {
+            listener.onLocationSample(sample);
+            count++;
+        }
+        return count;
+    }
+
+    private void emit(LocationSampleListener listener) {
+        LocationSample sample = new LocationSample();
+        Thread current = Thread.currentThread();
+        long startNanos = System.nanoTime();
+        long firstTime = 0;
+        long count = 0;
+        while (!current.isInterrupted() && next(sample)) {
+            long dueNanos;
+            double scale = timeScale;
+            double fixesPerSecond = rate;
+            if (count == 0) {
+                firstTime = sample.time;
+            }
+            if (scale > 0) {
+                dueNanos = startNanos
+                        + (long) (TimeUnit.MILLISECONDS.toNanos(sample.time - firstTime) / scale);
+            } else if (fixesPerSecond > 0) {
+                dueNanos = startNanos + (long) (count * TimeUnit.SECONDS.toNanos(1) / fixesPerSecond);
+            } else {
+                dueNanos = 0;
+            }
+            long waitNanos;
+            while ((waitNanos = dueNanos - System.nanoTime()) > 0 && !current.isInterrupted()) {
+                LockSupport.parkNanos(waitNanos);
+            }
+            if (current.isInterrupted()) {
+                break;
+            }
+            listener.onLocationSample(sample);
+            count++;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.maciekjanusz.remoteserviceexample.service.source;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Looper;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.LocationSampleListener;
+import com.maciekjanusz.tale.Tale;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Source of fixes from a single platform {@link LocationManager} provider, e.g. GPS or network,
+ * independent of Play Services. Fixes are delivered on the main thread.
+ */
+public class PlatformLocationSource implements LocationSource, LocationListener {
+
+    /**
+     * Minimum time between updates, matching the fused source
+     */
+    private static final long REQUEST_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    private final LocationManager locationManager;
+    private final String provider;
+    private LocationSampleListener locationListener;
+    /**
+     * Sample reused for every received location
+     */
+    private final LocationSample sample = new LocationSample();
+
+    /**
+     * @param provider one of LocationManager provider names
+     */
+    public PlatformLocationSource(Context context, String provider) {
+        this.locationManager = (LocationManager) context.getApplicationContext()
+                .getSystemService(Context.LOCATION_SERVICE);
+        this.provider = provider;
+    }
+
+    @Override
+    public void start(LocationSampleListener listener) {
+        this.locationListener = listener;
+        if (!locationManager.isProviderEnabled(provider)) {
+            new Tale("Provider " + provider + " disabled").at().tell();
+        }
+        try {
+            // registering works for disabled providers too, updates start once enabled
+            locationManager.requestLocationUpdates(provider, REQUEST_INTERVAL_MILLIS, 0, this,
+                    Looper.getMainLooper());
+        } catch (SecurityException | IllegalArgumentException e) {
+            new Tale("Couldn't request " + provider + " updates: " + e).at().tell();
+        }
+    }
+
+    @Override
+    public void stop() {
+        locationManager.removeUpdates(this);
+    }
+
+    @Override
+    public void onLocationChanged(Location location) {
+        locationListener.onLocationSample(sample.set(location));
+    }
+
+    @Override
+    public void onStatusChanged(String provider, int status, Bundle extras) {
+
+    }
+
+    @Override
+    public void onProviderEnabled(String provider) {
+
+    }
+
+    @Override
+    public void onProviderDisabled(String provider) {
+
+    }
+
+    @Override
+    public String toString() {
+        return provider;
+    }
+}
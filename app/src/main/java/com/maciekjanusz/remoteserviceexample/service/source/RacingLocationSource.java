@@ -0,0 +1,276 @@
+package com.maciekjanusz.remoteserviceexample.service.source;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.LocationSampleListener;
+import com.maciekjanusz.tale.Tale;
+import com.maciekjanusz.tale.TaleLimit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Source running several sources at once, e.g. fused, GPS and network, so that the first
+ * acceptable fix of any of them gets through as soon as possible.
+ *
+ * Fixes are arbitrated by age and accuracy - a fix is forwarded only if it's better than the last
+ * forwarded one, and the source it came from becomes the leader. Once the leader has delivered
+ * {@link #STABLE_FIXES} accurate fixes in a row the other sources are stopped to save power;
+ * they're started again when the leader degrades or goes quiet for {@link #LEADER_TIMEOUT_MILLIS}.
+ *
+ * Not thread safe - sources and the scheduler are expected to call back on a single thread.
+ */
+public class RacingLocationSource implements LocationSource {
+
+    /**
+     * Clock and timer, e.g. backed by a Handler and SystemClock
+     */
+    public interface Scheduler {
+        /**
+         * @return monotonic time, on the same time base as {@link LocationSample#elapsedRealtimeNanos}
+         */
+        long elapsedRealtimeNanos();
+
+        void postDelayed(Runnable runnable, long delayMillis);
+
+        void removeCallbacks(Runnable runnable);
+    }
+
+    /**
+     * Worst accuracy (meters) of the first forwarded fix
+     */
+    static final float MAX_FIRST_FIX_ACCURACY = 200;
+    /**
+     * Worst accuracy loss (meters) accepted from the leader, so that its track doesn't stall
+     * on slightly worse fixes
+     */
+    static final float MAX_LEADER_ACCURACY_LOSS = 200;
+    /**
+     * Fixes older than that on arrival, e.g. cached ones, are ignored
+     */
+    static final long MAX_FIX_AGE_NANOS = TimeUnit.SECONDS.toNanos(30);
+    /**
+     * Fix newer than the last forwarded one by that much is better regardless of accuracy
+     */
+    static final long SIGNIFICANTLY_NEWER_NANOS = TimeUnit.MINUTES.toNanos(2);
+    /**
+     * Accuracy (meters) of a fix counted towards the leader being stable
+     */
+    static final float STABLE_ACCURACY = 25;
+    /**
+     * Number of consecutive stable fixes of the leader after which the other sources are stopped
+     */
+    static final int STABLE_FIXES = 5;
+    /**
+     * Leader silence after which the other sources are started again
+     */
+    static final long LEADER_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * Limit of the source switch log, sources of similar accuracy may take turns on every fix
+     */
+    private static final TaleLimit SWITCH_LOG_LIMIT = TaleLimit.perSecond(1);
+
+    private final LocationSource[] sources;
+    private final SourceListener[] sourceListeners;
+    private final boolean[] running;
+    private final Scheduler scheduler;
+
+    private LocationSampleListener locationListener;
+    private boolean started = false;
+
+    /**
+     * Copy of the last forwarded fix, valid if {@link #hasBest} is set
+     */
+    private final LocationSample best = new LocationSample();
+    private boolean hasBest = false;
+    private int leader = -1;
+    private int stableFixes = 0;
+    private boolean othersStopped = false;
+    private long lastLeaderFixNanos;
+
+    /**
+     * Checks whether the leader hasn't gone quiet, while the other sources are stopped
+     */
+    private final Runnable watchdog = new Runnable() {
+        @Override
+        public void run() {
+            long silence = scheduler.elapsedRealtimeNanos() - lastLeaderFixNanos;
+            if (silence >= TimeUnit.MILLISECONDS.toNanos(LEADER_TIMEOUT_MILLIS)) {
+                new Tale("Source " + sources[leader] + " silent, restarting others").at().tell();
+                startOthers();
+            } else {
+                scheduler.postDelayed(this,
+                        LEADER_TIMEOUT_MILLIS - TimeUnit.NANOSECONDS.toMillis(silence));
+            }
+        }
+    };
+
+    /**
+     * @param sources sources to race, in order of preference when equally good
+     */
+    public RacingLocationSource(Scheduler scheduler, LocationSource... sources) {
+        if (sources.length == 0) {
+            throw new IllegalArgumentException("No sources");
+        }
+        this.scheduler = scheduler;
+        this.sources = sources.clone();
+        sourceListeners = new SourceListener[sources.length];
+        running = new boolean[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            sourceListeners[i] = new SourceListener(i);
+        }
+    }
+
+    @Override
+    public void start(LocationSampleListener listener) {
+        this.locationListener = listener;
+        started = true;
+        hasBest = false;
+        leader = -1;
+        stableFixes = 0;
+        othersStopped = false;
+        for (int i = 0; i < sources.length; i++) {
+            startSource(i);
+        }
+    }
+
+    @Override
+    public void stop() {
+        started = false;
+        scheduler.removeCallbacks(watchdog);
+        for (int i = 0; i < sources.length; i++) {
+            stopSource(i);
+        }
+    }
+
+    /**
+     * @return index of the source whose fixes are being forwarded, -1 before the first fix
+     */
+    public int leader() {
+        return leader;
+    }
+
+    /**
+     * @return whether the source at given index is running
+     */
+    public boolean isRunning(int index) {
+        return running[index];
+    }
+
+    private void onSourceSample(int index, LocationSample sample) {
+        if (!started || !isBetter(index, sample)) {
+            return;
+        }
+        if (index != leader) {
+            if (leader >= 0 && SWITCH_LOG_LIMIT.allow()) {
+                new Tale("Switching source " + sources[leader] + " -> " + sources[index]).at().tell();
+            }
+            leader = index;
+            stableFixes = 0;
+        }
+        best.set(sample);
+        hasBest = true;
+        lastLeaderFixNanos = scheduler.elapsedRealtimeNanos();
+
+        if (accuracy(sample) <= STABLE_ACCURACY) {
+            stableFixes++;
+            if (!othersStopped && stableFixes >= STABLE_FIXES) {
+                stopOthers();
+            }
+        } else {
+            stableFixes = 0;
+            if (othersStopped) {
+                new Tale("Source " + sources[leader] + " degraded, restarting others").at().tell();
+                startOthers();
+            }
+        }
+        locationListener.onLocationSample(sample);
+    }
+
+    /**
+     * Decides whether the fix should replace the last forwarded one - a fix of the same age
+     * or older is never better, a much newer one always is, otherwise the more accurate one wins.
+     */
+    private boolean isBetter(int index, LocationSample sample) {
+        if (sample.elapsedRealtimeNanos != 0
+                && scheduler.elapsedRealtimeNanos() - sample.elapsedRealtimeNanos > MAX_FIX_AGE_NANOS) {
+            return false;
+        }
+        if (!hasBest) {
+            return accuracy(sample) <= MAX_FIRST_FIX_ACCURACY;
+        }
+        long newer = newerByNanos(sample, best);
+        if (newer > SIGNIFICANTLY_NEWER_NANOS) {
+            return true;
+        } else if (newer <= 0) {
+            return false;
+        }
+        float accuracyLoss = accuracy(sample) - accuracy(best);
+        return accuracyLoss <= 0 || (index == leader && accuracyLoss <= MAX_LEADER_ACCURACY_LOSS);
+    }
+
+    /**
+     * Compares fixes by monotonic time if both have it, wall clock time otherwise
+     */
+    private static long newerByNanos(LocationSample sample, LocationSample other) {
+        if (sample.elapsedRealtimeNanos != 0 && other.elapsedRealtimeNanos != 0) {
+            return sample.elapsedRealtimeNanos - other.elapsedRealtimeNanos;
+        }
+        return TimeUnit.MILLISECONDS.toNanos(sample.time - other.time);
+    }
+
+    private static float accuracy(LocationSample sample) {
+        return sample.has(LocationSample.HAS_ACCURACY) ? sample.accuracy : Float.MAX_VALUE;
+    }
+
+    private void stopOthers() {
+        new Tale("Source " + sources[leader] + " stable, stopping others").at().tell();
+        for (int i = 0; i < sources.length; i++) {
+            if (i != leader) {
+                stopSource(i);
+            }
+        }
+        othersStopped = true;
+        scheduler.postDelayed(watchdog, LEADER_TIMEOUT_MILLIS);
+    }
+
+    private void startOthers() {
+        scheduler.removeCallbacks(watchdog);
+        othersStopped = false;
+        stableFixes = 0;
+        for (int i = 0; i < sources.length; i++) {
+            startSource(i);
+        }
+    }
+
+    private void startSource(int index) {
+        if (!running[index]) {
+            running[index] = true;
+            sources[index].start(sourceListeners[index]);
+        }
+    }
+
+    private void stopSource(int index) {
+        if (running[index]) {
+            running[index] = false;
+            sources[index].stop();
+        }
+    }
+
+    /**
+     * Listener of a single source, tagging its fixes with the source index
+     */
+    private class SourceListener implements LocationSampleListener {
+        private final int index;
+
+        SourceListener(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void onLocationSample(LocationSample sample) {
+            if (running[index]) {
+                onSourceSample(index, sample);
+            }
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package com.maciekjanusz.remoteserviceexample.service.source;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Source streaming fixes from a recorded track, reading it incrementally so that
+ * track length doesn't matter. Two formats are supported:
+ *
+ * CSV - one fix per line: time,latitude,longitude[,altitude[,speed[,bearing[,accuracy]]]]
+ * where time is either milliseconds since epoch or ISO 8601 UTC timestamp and optional
+ * columns may be left empty. Lines starting with '#' and a header line are skipped.
+ *
+ * GPX - trkpt / rtept elements with lat, lon attributes and optional ele, time, speed, course
+ * and accuracy children (namespaced extension elements, e.g. gpxtpx:speed, are recognized as well).
+ */
+public class ReplayLocationSource extends PacedLocationSource {
+
+    public enum Format {
+        CSV, GPX
+    }
+
+    private final BufferedReader reader;
+    private final Format format;
+    /**
+     * Builder reused for GPX tags and text
+     */
+    private final StringBuilder token = new StringBuilder();
+    /**
+     * Character read ahead by GPX scanner, or -1
+     */
+    private int pushback = -1;
+
+    public ReplayLocationSource(Reader reader, Format format) {
+        this.reader = reader instanceof BufferedReader
+                ? (BufferedReader) reader : new BufferedReader(reader);
+        this.format = format;
+    }
+
+    /**
+     * Creates replay source for a track file, guessing the format by file extension.
+     * @param file .gpx or .csv file
+     * @return replay source
+     * @throws IOException if file can't be opened
+     */
+    public static ReplayLocationSource fromFile(File file) throws IOException {
+        Format format = file.getName().toLowerCase().endsWith(".gpx") ? Format.GPX : Format.CSV;
+        return new ReplayLocationSource(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"), format);
+    }
+
+    @Override
+    protected boolean next(LocationSample out) {
+        try {
+            return format == Format.GPX ? nextGpx(out) : nextCsv(out);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    protected void close() {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /*
+        CSV
+     */
+    private boolean nextCsv(LocationSample out) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+            try {
+                parseCsvLine(line, out);
+                return true;
+            } catch (NumberFormatException e) {
+                // header or malformed line
+            }
+        }
+        return false;
+    }
+
+    private static void parseCsvLine(String line, LocationSample out) {
+        out.reset();
+        int column = 0;
+        int start = 0;
+        int length = line.length();
+        while (start <= length) {
+            int end = line.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            String field = line.substring(start, end).trim();
+            if (!field.isEmpty()) {
+                switch (column) {
+                    case 0:
+                        out.time = field.indexOf('T') > 0
+                                ? parseIsoTime(field) : Long.parseLong(field);
+                        break;
+                    case 1:
+                        out.latitude = Double.parseDouble(field);
+                        break;
+                    case 2:
+                        out.longitude = Double.parseDouble(field);
+                        break;
+                    case 3:
+                        out.altitude = Double.parseDouble(field);
+                        out.flags |= LocationSample.HAS_ALTITUDE;
+                        break;
+                    case 4:
+                        out.speed = Float.parseFloat(field);
+                        out.flags |= LocationSample.HAS_SPEED;
+                        break;
+                    case 5:
+                        out.bearing = Float.parseFloat(field);
+                        out.flags |= LocationSample.HAS_BEARING;
+                        break;
+                    case 6:
+                        out.accuracy = Float.parseFloat(field);
+                        out.flags |= LocationSample.HAS_ACCURACY;
+                        break;
+                }
+            } else if (column < 3) {
+                throw new NumberFormatException("Missing mandatory column " + column);
+            }
+            column++;
+            start = end + 1;
+        }
+        if (column < 3) {
+            throw new NumberFormatException("Too few columns: " + line);
+        }
+        out.elapsedRealtimeNanos = out.time * 1000000L;
+    }
+
+    /*
+        GPX
+     */
+    private boolean nextGpx(LocationSample out) throws IOException {
+        String tag;
+        while (true) {
+            do {
+                tag = nextTag();
+                if (tag == null) {
+                    return false;
+                }
+            } while (!isPointTag(elementName(tag)));
+
+            out.reset();
+            try {
+                out.latitude = Double.parseDouble(attribute(tag, "lat"));
+                out.longitude = Double.parseDouble(attribute(tag, "lon"));
+                break;
+            } catch (RuntimeException e) {
+                // malformed point, skip it
+            }
+        }
+        if (tag.endsWith("/")) {
+            return true;
+        }
+        while ((tag = nextTag()) != null) {
+            if (tag.startsWith("/")) {
+                if (isPointTag(elementName(tag.substring(1)))) {
+                    break;
+                }
+                continue;
+            }
+            if (tag.endsWith("/")) {
+                continue;
+            }
+            String element = elementName(tag);
+            String text = nextText();
+            try {
+                switch (element) {
+                    case "ele":
+                        out.altitude = Double.parseDouble(text);
+                        out.flags |= LocationSample.HAS_ALTITUDE;
+                        break;
+                    case "time":
+                        out.time = parseIsoTime(text);
+                        break;
+                    case "speed":
+                        out.speed = Float.parseFloat(text);
+                        out.flags |= LocationSample.HAS_SPEED;
+                        break;
+                    case "course":
+                        out.bearing = Float.parseFloat(text);
+                        out.flags |= LocationSample.HAS_BEARING;
+                        break;
+                    case "accuracy":
+                        out.accuracy = Float.parseFloat(text);
+                        out.flags |= LocationSample.HAS_ACCURACY;
+                        break;
+                }
+            } catch (RuntimeException e) {
+                // ignore malformed optional value
+            }
+        }
+        out.elapsedRealtimeNanos = out.time * 1000000L;
+        return true;
+    }
+
+    private static boolean isPointTag(String name) {
+        return "trkpt".equals(name) || "rtept".equals(name);
+    }
+
+    private int read() throws IOException {
+        if (pushback >= 0) {
+            int c = pushback;
+            pushback = -1;
+            return c;
+        }
+        return reader.read();
+    }
+
+    /**
+     * Skips to the next element tag and returns its content between angle brackets,
+     * skipping declarations and comments.
+     * @return tag content or null at the end of stream
+     */
+    private String nextTag() throws IOException {
+        int c;
+        while (true) {
+            while ((c = read()) != '<') {
+                if (c < 0) {
+                    return null;
+                }
+            }
+            token.setLength(0);
+            while ((c = read()) != '>') {
+                if (c < 0) {
+                    return null;
+                }
+                token.append((char) c);
+                if (token.length() == 3 && token.charAt(0) == '!'
+                        && token.charAt(1) == '-' && token.charAt(2) == '-') {
+                    skipComment();
+                    break;
+                }
+            }
+            if (c == '>' && token.length() > 0
+                    && token.charAt(0) != '?' && token.charAt(0) != '!') {
+                return token.toString().trim();
+            }
+        }
+    }
+
+    private void skipComment() throws IOException {
+        int dashes = 0;
+        int c;
+        while ((c = read()) >= 0) {
+            if (c == '>' && dashes >= 2) {
+                return;
+            }
+            dashes = c == '-' ? dashes + 1 : 0;
+        }
+    }
+
+    /**
+     * Reads element text up to the next tag.
+     */
+    private String nextText() throws IOException {
+        token.setLength(0);
+        int c;
+        while ((c = read()) >= 0 && c != '<') {
+            token.append((char) c);
+        }
+        if (c == '<') {
+            pushback = c;
+        }
+        return token.toString().trim();
+    }
+
+    /**
+     * @return local element name, without namespace prefix and attributes
+     */
+    private static String elementName(String tag) {
+        int end = 0;
+        int length = tag.length();
+        while (end < length && !Character.isWhitespace(tag.charAt(end)) && tag.charAt(end) != '/') {
+            end++;
+        }
+        int colon = tag.lastIndexOf(':', end - 1);
+        return tag.substring(colon + 1, end);
+    }
+
+    private static String attribute(String tag, String name) {
+        int index = 0;
+        while ((index = tag.indexOf(name, index)) >= 0) {
+            int after = index + name.length();
+            boolean separated = index > 0 && Character.isWhitespace(tag.charAt(index - 1));
+            int eq = after;
+            while (eq < tag.length() && Character.isWhitespace(tag.charAt(eq))) {
+                eq++;
+            }
+            if (separated && eq < tag.length() && tag.charAt(eq) == '=') {
+                int quote = eq + 1;
+                while (Character.isWhitespace(tag.charAt(quote))) {
+                    quote++;
+                }
+                char quoteChar = tag.charAt(quote);
+                return tag.substring(quote + 1, tag.indexOf(quoteChar, quote + 1));
+            }
+            index = after;
+        }
+        throw new IllegalArgumentException("No attribute " + name + " in " + tag);
+    }
+
+    /**
+     * Parses ISO 8601 timestamps like 2015-09-20T10:15:30Z, 2015-09-20T10:15:30.250+02:00
+     * @return milliseconds since epoch
+     */
+    static long parseIsoTime(String text) {
+        try {
+            Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            calendar.clear();
+            calendar.set(Integer.parseInt(text.substring(0, 4)),
+                    Integer.parseInt(text.substring(5, 7)) - 1,
+                    Integer.parseInt(text.substring(8, 10)),
+                    Integer.parseInt(text.substring(11, 13)),
+                    Integer.parseInt(text.substring(14, 16)),
+                    Integer.parseInt(text.substring(17, 19)));
+            long millis = calendar.getTimeInMillis();
+            int index = 19;
+            if (index < text.length() && text.charAt(index) == '.') {
+                int fractionStart = ++index;
+                while (index < text.length() && Character.isDigit(text.charAt(index))) {
+                    index++;
+                }
+                String fraction = (text.substring(fractionStart, index) + "00").substring(0, 3);
+                millis += Integer.parseInt(fraction);
+            }
+            if (index < text.length() && text.charAt(index) != 'Z') {
+                int sign = text.charAt(index) == '-' ? -1 : 1;
+                int hours = Integer.parseInt(text.substring(index + 1, index + 3));
+                int minutes = text.length() >= index + 6
+                        ? Integer.parseInt(text.substring(index + 4, index + 6)) : 0;
+                millis -= sign * (hours * 3600000L + minutes * 60000L);
+            }
+            return millis;
+        } catch (IndexOutOfBoundsException e) {
+            throw new NumberFormatException("Invalid timestamp: " + text);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.maciekjanusz.remoteserviceexample.service.source;
+
+import com.maciekjanusz.remoteserviceexample.service.Geo;
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import java.util.Random;
+
+/**
+ * Source generating a pseudo random, but fully deterministic track: a walk with slowly drifting
+ * heading, varying speed, altitude and accuracy, and occasional stops. Fixes are spaced by a fixed
+ * interval of virtual time, starting at a fixed timestamp, so the same seed always gives the
+ * same sequence.
+ */
+public class SyntheticLocationSource extends PacedLocationSource {
+
+    private final Random random;
+    private final long intervalMillis;
+    private final long count;
+
+    private double latitude;
+    private double longitude;
+    private double altitude = 100;
+    private double heading;
+    private double speed;
+    private final double cruiseSpeed;
+    private long time;
+    private long emitted = 0;
+    /**
+     * Number of fixes left until current stop ends
+     */
+    private int stopLeft = 0;
+
+    /**
+     * @param seed random seed
+     * @param latitude start latitude
+     * @param longitude start longitude
+     * @param startTime timestamp of the first fix, millis since epoch
+     * @param intervalMillis virtual time between fixes
+     * @param cruiseSpeed average speed in meters per second
+     * @param count number of fixes to generate, or 0 for an endless track
+     */
+    public SyntheticLocationSource(long seed, double latitude, double longitude, long startTime,
+                                   long intervalMillis, double cruiseSpeed, long count) {
+        this.random = new Random(seed);
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.time = startTime;
+        this.intervalMillis = intervalMillis;
+        this.cruiseSpeed = cruiseSpeed;
+        this.speed = cruiseSpeed;
+        this.count = count;
+        this.heading = random.nextDouble() * 2 * Math.PI;
+    }
+
+    /**
+     * Endless walk with 1 s fixes starting in Warsaw.
+     * @param seed random seed
+     */
+    public SyntheticLocationSource(long seed) {
+        this(seed, 52.2297, 21.0122, 1442743200000L, 1000, 1.4, 0);
+    }
+
+    @Override
+    protected boolean next(LocationSample out) {
+        if (count > 0 && emitted >= count) {
+            return false;
+        }
+        if (emitted > 0) {
+            advance();
+        }
+        emitted++;
+
+        out.latitude = latitude;
+        out.longitude = longitude;
+        out.altitude = altitude;
+        out.speed = (float) speed;
+        out.bearing = (float) ((Math.toDegrees(heading) + 360) % 360);
+        out.accuracy = (float) (3 + Math.abs(random.nextGaussian()) * 4);
+        out.time = time;
+        out.elapsedRealtimeNanos = time * 1000000L;
+        out.flags = LocationSample.HAS_ALTITUDE | LocationSample.HAS_SPEED
+                | LocationSample.HAS_BEARING | LocationSample.HAS_ACCURACY;
+        return true;
+    }
+
+    private void advance() {
+        time += intervalMillis;
+        if (stopLeft > 0) {
+            stopLeft--;
+            speed = 0;
+            return;
+        }
+        if (random.nextInt(500) == 0) {
+            stopLeft = 10 + random.nextInt(50);
+        }
+        heading += random.nextGaussian() * 0.1;
+        speed = Math.max(0.2, cruiseSpeed + random.nextGaussian() * cruiseSpeed * 0.2);
+        altitude += random.nextGaussian() * 0.3;
+
+        double distance = speed * intervalMillis / 1000.0;
+        double latitudeRadians = Math.toRadians(latitude);
+        latitude += Math.toDegrees(distance * Math.cos(heading) / Geo.EARTH_RADIUS_METERS);
+        longitude += Math.toDegrees(distance * Math.sin(heading)
+                / (Geo.EARTH_RADIUS_METERS * Math.cos(latitudeRadians)));
+    }
+}
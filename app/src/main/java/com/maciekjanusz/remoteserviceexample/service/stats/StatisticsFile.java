@@ -0,0 +1,64 @@
+package com.maciekjanusz.remoteserviceexample.service.stats;
+
+import android.support.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Persisted {@link TrackStatistics}. Saves replace the file atomically, so a crash leaves either
+ * the old or the new statistics - their {@link TrackSummary#fixCount} tells how much of the track
+ * log they cover, the rest is caught up on load.
+ */
+public class StatisticsFile {
+
+    private final File file;
+    private final File tempFile;
+
+    public StatisticsFile(File file) {
+        this.file = file;
+        this.tempFile = new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * @return saved statistics, or null if none have been saved yet
+     * @throws IOException if the file can't be read
+     */
+    @Nullable
+    public TrackStatistics load() throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            return TrackStatistics.readFrom(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @throws IOException if the statistics can't be written, the file is left unchanged then
+     */
+    public void save(TrackStatistics statistics) throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        DataOutputStream out = new DataOutputStream(fileOut);
+        try {
+            statistics.writeTo(out);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Couldn't replace " + file);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.maciekjanusz.remoteserviceexample.service.stats;
+
+import com.maciekjanusz.remoteserviceexample.service.Geo;
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.track.TrackRecords;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incrementally maintained {@link TrackSummary} - every fix updates it in constant time and
+ * without allocation, so the summary never has to be recomputed from the track.
+ *
+ * A segment between consecutive fixes counts as moving when its speed is at least
+ * {@link #MOVING_SPEED}. Reported speed of the later fix is used if present. Otherwise speed
+ * is derived from the displacement from an anchor fix, which stays put until a fix gets further
+ * from it than the accuracy of both - so that position jitter doesn't add up to distance, while
+ * slow movement with steps shorter than the accuracy still does. Time since the anchor counts as
+ * stopped until then, and is moved to moving time along with the displacement if its average
+ * speed turns out to be at least {@link #MOVING_SPEED}. Segments longer than
+ * {@link #MAX_GAP_MILLIS} (tracking paused, signal lost) count neither to time nor distance.
+ *
+ * Elevation gain and loss only count changes of at least {@link #ELEVATION_THRESHOLD}
+ * from the last counted altitude, which filters out altitude noise.
+ *
+ * The whole state can be persisted with {@link #writeTo(DataOutput)}, so that it's caught up
+ * from where it was saved instead of recomputed from the whole track.
+ */
+public class TrackStatistics {
+
+    /**
+     * Meters per second
+     */
+    static final float MOVING_SPEED = 0.5f;
+    static final long MAX_GAP_MILLIS = 5 * 60 * 1000;
+    /**
+     * Meters
+     */
+    static final double ELEVATION_THRESHOLD = 3;
+
+    private static final int MAGIC = 0x53544154; // STAT
+    private static final int VERSION = 1;
+    private static final int STATE_SIZE = TrackSummary.SIZE + 2 * TrackRecords.RECORD_SIZE
+            + 1 + 8 + 8 + 1 + 8 + 4;
+
+    private final TrackSummary summary = new TrackSummary();
+
+    private final LocationSample previous = new LocationSample();
+    private boolean hasPrevious = false;
+    /**
+     * Reference of derived speed, valid if {@link #hasPrevious} is set
+     */
+    private final LocationSample anchor = new LocationSample();
+    /**
+     * Time since the anchor counted as stopped so far, excluding gaps
+     */
+    private long anchorMillis = 0;
+    private double elevationReference;
+    private boolean hasElevationReference = false;
+    private double accuracySum = 0;
+    private int accuracyCount = 0;
+
+    public void add(LocationSample sample) {
+        if (summary.fixCount++ == 0) {
+            summary.startTime = sample.time;
+        }
+        summary.lastTime = sample.time;
+
+        float speed = sample.has(LocationSample.HAS_SPEED) ? sample.speed : 0;
+        boolean derived = false;
+        if (hasPrevious) {
+            long millis = sample.time - previous.time;
+            if (millis > 0 && millis <= MAX_GAP_MILLIS) {
+                if (sample.has(LocationSample.HAS_SPEED)) {
+                    addSegment(speed, Geo.distanceMeters(previous.latitude, previous.longitude,
+                            sample.latitude, sample.longitude), millis);
+                } else {
+                    speed = addDerivedSegment(sample, millis);
+                    derived = true;
+                }
+            }
+        }
+        if (!derived) {
+            moveAnchor(sample);
+        }
+        summary.currentSpeed = speed;
+        if (speed > summary.maxSpeed) {
+            summary.maxSpeed = speed;
+        }
+
+        if (sample.has(LocationSample.HAS_ACCURACY)) {
+            accuracySum += sample.accuracy;
+            accuracyCount++;
+            summary.currentAccuracy = sample.accuracy;
+            summary.averageAccuracy = (float) (accuracySum / accuracyCount);
+        } else {
+            summary.currentAccuracy = 0;
+        }
+
+        if (sample.has(LocationSample.HAS_ALTITUDE)) {
+            if (!hasElevationReference) {
+                elevationReference = sample.altitude;
+                hasElevationReference = true;
+            } else {
+                double change = sample.altitude - elevationReference;
+                if (change >= ELEVATION_THRESHOLD) {
+                    summary.elevationGain += change;
+                    elevationReference = sample.altitude;
+                } else if (change <= -ELEVATION_THRESHOLD) {
+                    summary.elevationLoss -= change;
+                    elevationReference = sample.altitude;
+                }
+            }
+        }
+
+        previous.set(sample);
+        hasPrevious = true;
+    }
+
+    private void addSegment(float speed, double distance, long millis) {
+        if (speed >= MOVING_SPEED) {
+            summary.distance += distance;
+            summary.movingMillis += millis;
+        } else {
+            summary.stoppedMillis += millis;
+        }
+    }
+
+    /**
+     * Counts a segment without reported speed against the anchor, moving the anchor to the fix
+     * once it's out of accuracy.
+     * @return derived speed, 0 while the fix is within accuracy of the anchor
+     */
+    private float addDerivedSegment(LocationSample sample, long millis) {
+        double distance = Geo.distanceMeters(anchor.latitude, anchor.longitude,
+                sample.latitude, sample.longitude);
+        if (distance <= Math.max(anchor.accuracy, sample.accuracy)) {
+            summary.stoppedMillis += millis;
+            anchorMillis += millis;
+            return 0;
+        }
+        long anchorSegmentMillis = anchorMillis + millis;
+        float speed = (float) (distance * 1000 / anchorSegmentMillis);
+        if (speed >= MOVING_SPEED) {
+            // time since the anchor was moving after all
+            summary.stoppedMillis -= anchorMillis;
+            summary.movingMillis += anchorSegmentMillis;
+            summary.distance += distance;
+        } else {
+            // drifting away slower than that is stopped
+            summary.stoppedMillis += millis;
+        }
+        moveAnchor(sample);
+        return speed;
+    }
+
+    private void moveAnchor(LocationSample sample) {
+        anchor.set(sample);
+        anchorMillis = 0;
+    }
+
+    /**
+     * @return live summary, updated by every {@link #add(LocationSample)}
+     */
+    public TrackSummary summary() {
+        return summary;
+    }
+
+    /**
+     * @return independent copy, e.g. to be written out on another thread
+     */
+    public TrackStatistics copy() {
+        TrackStatistics copy = new TrackStatistics();
+        copy.summary.set(summary);
+        copy.previous.set(previous);
+        copy.hasPrevious = hasPrevious;
+        copy.anchor.set(anchor);
+        copy.anchorMillis = anchorMillis;
+        copy.elevationReference = elevationReference;
+        copy.hasElevationReference = hasElevationReference;
+        copy.accuracySum = accuracySum;
+        copy.accuracyCount = accuracyCount;
+        return copy;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        ByteBuffer state = ByteBuffer.allocate(STATE_SIZE);
+        summary.write(state);
+        TrackRecords.write(previous, state);
+        TrackRecords.write(anchor, state);
+        state.put((byte) (hasPrevious ? 1 : 0))
+                .putLong(anchorMillis)
+                .putDouble(elevationReference)
+                .put((byte) (hasElevationReference ? 1 : 0))
+                .putDouble(accuracySum)
+                .putInt(accuracyCount);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.write(state.array());
+    }
+
+    /**
+     * Reads statistics written by {@link #writeTo(DataOutput)}.
+     * @throws IOException if they can't be read
+     */
+    public static TrackStatistics readFrom(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not track statistics");
+        }
+        byte[] bytes = new byte[STATE_SIZE];
+        in.readFully(bytes);
+        ByteBuffer state = ByteBuffer.wrap(bytes);
+        TrackStatistics statistics = new TrackStatistics();
+        statistics.summary.read(state);
+        TrackRecords.read(state, statistics.previous);
+        TrackRecords.read(state, statistics.anchor);
+        statistics.hasPrevious = state.get() != 0;
+        statistics.anchorMillis = state.getLong();
+        statistics.elevationReference = state.getDouble();
+        statistics.hasElevationReference = state.get() != 0;
+        statistics.accuracySum = state.getDouble();
+        statistics.accuracyCount = state.getInt();
+        return statistics;
+    }
+}
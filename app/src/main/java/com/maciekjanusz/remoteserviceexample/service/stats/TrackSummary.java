@@ -0,0 +1,129 @@
+package com.maciekjanusz.remoteserviceexample.service.stats;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Aggregate statistics of the recorded track, as maintained by {@link TrackStatistics}
+ * and published by the service in
+ * {@link com.maciekjanusz.remoteserviceexample.service.TrackingService#EVENT_TRACK_SUMMARY}.
+ * Mutable, so that receivers can decode every summary into the same instance.
+ */
+public class TrackSummary {
+
+    /**
+     * Encoded size in bytes
+     */
+    public static final int SIZE = 4 + 8 + 8 * 4 + 4 * 4 + 8 * 2;
+
+    public int fixCount;
+    /**
+     * Distance travelled while moving, in meters
+     */
+    public double distance;
+    public long movingMillis;
+    public long stoppedMillis;
+    public long startTime;
+    /**
+     * Time of the last fix, milliseconds since epoch
+     */
+    public long lastTime;
+    /**
+     * Highest speed in meters per second, reported or derived from positions
+     */
+    public float maxSpeed;
+    /**
+     * Speed of the last fix
+     */
+    public float currentSpeed;
+    public double elevationGain;
+    public double elevationLoss;
+    /**
+     * Accuracy of the last fix in meters, 0 if unknown
+     */
+    public float currentAccuracy;
+    /**
+     * Mean of accuracies reported so far, 0 if none
+     */
+    public float averageAccuracy;
+
+    /**
+     * @return distance over moving time in meters per second
+     */
+    public float averageMovingSpeed() {
+        return movingMillis > 0 ? (float) (distance * 1000 / movingMillis) : 0;
+    }
+
+    /**
+     * @return distance over total time in meters per second
+     */
+    public float averageSpeed() {
+        long totalMillis = movingMillis + stoppedMillis;
+        return totalMillis > 0 ? (float) (distance * 1000 / totalMillis) : 0;
+    }
+
+    public void set(TrackSummary other) {
+        fixCount = other.fixCount;
+        distance = other.distance;
+        movingMillis = other.movingMillis;
+        stoppedMillis = other.stoppedMillis;
+        startTime = other.startTime;
+        lastTime = other.lastTime;
+        maxSpeed = other.maxSpeed;
+        currentSpeed = other.currentSpeed;
+        elevationGain = other.elevationGain;
+        elevationLoss = other.elevationLoss;
+        currentAccuracy = other.currentAccuracy;
+        averageAccuracy = other.averageAccuracy;
+    }
+
+    public void write(ByteBuffer buffer) {
+        buffer.putInt(fixCount)
+                .putDouble(distance)
+                .putLong(movingMillis)
+                .putLong(stoppedMillis)
+                .putLong(startTime)
+                .putLong(lastTime)
+                .putFloat(maxSpeed)
+                .putFloat(currentSpeed)
+                .putFloat(currentAccuracy)
+                .putFloat(averageAccuracy)
+                .putDouble(elevationGain)
+                .putDouble(elevationLoss);
+    }
+
+    /**
+     * Decodes summary written by {@link #write(ByteBuffer)} into this instance.
+     * @return false if buffer has too few bytes remaining
+     */
+    public boolean read(ByteBuffer buffer) {
+        if (buffer.remaining() < SIZE) {
+            return false;
+        }
+        fixCount = buffer.getInt();
+        distance = buffer.getDouble();
+        movingMillis = buffer.getLong();
+        stoppedMillis = buffer.getLong();
+        startTime = buffer.getLong();
+        lastTime = buffer.getLong();
+        maxSpeed = buffer.getFloat();
+        currentSpeed = buffer.getFloat();
+        currentAccuracy = buffer.getFloat();
+        averageAccuracy = buffer.getFloat();
+        elevationGain = buffer.getDouble();
+        elevationLoss = buffer.getDouble();
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "TrackSummary{" +
+                "fixCount=" + fixCount +
+                ", distance=" + distance +
+                ", movingMillis=" + movingMillis +
+                ", stoppedMillis=" + stoppedMillis +
+                ", maxSpeed=" + maxSpeed +
+                ", elevationGain=" + elevationGain +
+                ", elevationLoss=" + elevationLoss +
+                '}';
+    }
+}
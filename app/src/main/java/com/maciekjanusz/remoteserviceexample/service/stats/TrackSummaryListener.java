@@ -0,0 +1,11 @@
+package com.maciekjanusz.remoteserviceexample.service.stats;
+
+/**
+ * Receiver of track summaries published by the service.
+ */
+public interface TrackSummaryListener {
+    /**
+     * @param summary latest summary, reused by the caller after this call returns
+     */
+    void onTrackSummary(TrackSummary summary);
+}
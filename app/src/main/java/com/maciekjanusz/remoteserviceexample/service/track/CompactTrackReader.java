@@ -0,0 +1,154 @@
+package com.maciekjanusz.remoteserviceexample.service.track;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import static com.maciekjanusz.remoteserviceexample.service.track.CompactTrackWriter.ACCURACY_SCALE;
+import static com.maciekjanusz.remoteserviceexample.service.track.CompactTrackWriter.ALTITUDE_SCALE;
+import static com.maciekjanusz.remoteserviceexample.service.track.CompactTrackWriter.BEARING_SCALE;
+import static com.maciekjanusz.remoteserviceexample.service.track.CompactTrackWriter.DEGREE_SCALE;
+import static com.maciekjanusz.remoteserviceexample.service.track.CompactTrackWriter.SPEED_SCALE;
+
+/**
+ * Streaming reader of the compact binary track format written by {@link CompactTrackWriter}.
+ * Reads the channel incrementally through a fixed buffer, decoding records into the caller's
+ * sample, so neither memory use nor allocations grow with track length.
+ */
+public class CompactTrackReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private boolean headerRead = false;
+    private boolean endOfStream = false;
+
+    private long previousTime;
+    private long previousLatitude;
+    private long previousLongitude;
+    private long previousAltitude;
+
+    public CompactTrackReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        buffer.flip();
+    }
+
+    /**
+     * Reads next record.
+     * @param out sample to read into
+     * @return false at the end of the stream
+     * @throws IOException on read error, bad header or truncated stream
+     */
+    public boolean next(LocationSample out) throws IOException {
+        if (!headerRead) {
+            if (!ensure(5)) {
+                throw new IOException("Not a compact track stream");
+            }
+            if (buffer.getInt() != CompactTrackWriter.MAGIC) {
+                throw new IOException("Not a compact track stream");
+            }
+            byte version = buffer.get();
+            if (version > CompactTrackWriter.VERSION) {
+                throw new IOException("Unsupported compact track version " + version);
+            }
+            headerRead = true;
+        }
+        if (!ensure(1)) {
+            return false;
+        }
+        // length prefix takes at most 2 bytes for records within MAX_RECORD_BYTES
+        ensure(2);
+        long length = getVarint();
+        if (length < 0 || length > buffer.capacity() - 5) {
+            throw new IOException("Corrupted compact track record length " + length);
+        }
+        if (!ensure((int) length)) {
+            throw new IOException("Compact track stream truncated");
+        }
+        // fields are decoded within the record only
+        int limit = buffer.limit();
+        int end = buffer.position() + (int) length;
+        buffer.limit(end);
+        try {
+            decode(out);
+        } finally {
+            buffer.limit(limit);
+        }
+        // skip fields this version doesn't know
+        buffer.position(end);
+        return true;
+    }
+
+    private void decode(LocationSample out) throws IOException {
+        out.flags = (int) getVarint();
+        previousTime += unzigzag(getVarint());
+        previousLatitude += unzigzag(getVarint());
+        previousLongitude += unzigzag(getVarint());
+        out.time = previousTime;
+        out.latitude = previousLatitude / DEGREE_SCALE;
+        out.longitude = previousLongitude / DEGREE_SCALE;
+        out.elapsedRealtimeNanos = 0;
+
+        if (out.has(LocationSample.HAS_ALTITUDE)) {
+            previousAltitude += unzigzag(getVarint());
+            out.altitude = previousAltitude / ALTITUDE_SCALE;
+        } else {
+            out.altitude = 0;
+        }
+        out.speed = out.has(LocationSample.HAS_SPEED)
+                ? (float) (getVarint() / SPEED_SCALE) : 0;
+        out.bearing = out.has(LocationSample.HAS_BEARING)
+                ? (float) (getVarint() / BEARING_SCALE) : 0;
+        out.accuracy = out.has(LocationSample.HAS_ACCURACY)
+                ? (float) (getVarint() / ACCURACY_SCALE) : 0;
+    }
+
+    /**
+     * @throws IOException if the varint runs past the buffered bytes or is longer than 64 bits
+     */
+    private long getVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Corrupted compact track record");
+            }
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupted compact track record");
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads from channel until at least given number of bytes is buffered.
+     * @return false if the stream ended before that
+     */
+    private boolean ensure(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return true;
+        }
+        buffer.compact();
+        while (buffer.position() < bytes && !endOfStream) {
+            if (channel.read(buffer) < 0) {
+                endOfStream = true;
+            }
+        }
+        buffer.flip();
+        return buffer.remaining() >= bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
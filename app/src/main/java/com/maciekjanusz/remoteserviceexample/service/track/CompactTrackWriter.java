@@ -0,0 +1,103 @@
+package com.maciekjanusz.remoteserviceexample.service.track;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the track in the compact binary format:
+ *
+ * header: magic (int) "TRKC", version (byte)
+ * records: length (varint) followed by that many bytes of:
+ *     flags (varint), time delta in ms, latitude and longitude deltas in 1e-7 degree
+ *     (zigzag varints), then - depending on flags - altitude delta in cm (zigzag varint),
+ *     speed in cm/s, bearing in 0.1 degree and accuracy in cm (varints).
+ *
+ * Deltas are relative to the previous record (zero for the first one). Length prefix lets readers
+ * skip fields appended by future versions. Typical record takes 12 - 20 bytes, against
+ * {@link TrackRecords#RECORD_SIZE} of the raw format. See {@link CompactTrackReader}.
+ */
+public class CompactTrackWriter extends TrackWriter {
+
+    public static final int MAGIC = 0x54524b43;
+    public static final byte VERSION = 1;
+
+    static final double DEGREE_SCALE = 1e7,
+            ALTITUDE_SCALE = 100,
+            SPEED_SCALE = 100,
+            BEARING_SCALE = 10,
+            ACCURACY_SCALE = 100;
+
+    /**
+     * Upper bound of a record payload
+     */
+    static final int MAX_RECORD_BYTES = 64;
+
+    private final ByteBuffer record = ByteBuffer.allocate(MAX_RECORD_BYTES);
+
+    private long previousTime;
+    private long previousLatitude;
+    private long previousLongitude;
+    private long previousAltitude;
+
+    @Override
+    protected void writeTrack(TrackLog trackLog, long fromRecord, long toRecord)
+            throws IOException {
+        ensure(5);
+        buffer.putInt(MAGIC).put(VERSION);
+        previousTime = previousLatitude = previousLongitude = previousAltitude = 0;
+        TrackLog.Cursor cursor = cursor(trackLog, fromRecord);
+        while (next(cursor, toRecord)) {
+            encode(sample);
+            ensure(5 + record.remaining());
+            putVarint(buffer, record.remaining());
+            buffer.put(record);
+        }
+    }
+
+    /**
+     * Encodes the sample into {@link #record}, ready for reading.
+     */
+    private void encode(LocationSample sample) {
+        record.clear();
+        long latitude = Math.round(sample.latitude * DEGREE_SCALE);
+        long longitude = Math.round(sample.longitude * DEGREE_SCALE);
+
+        putVarint(record, sample.flags & 0xffffffffL);
+        putVarint(record, zigzag(sample.time - previousTime));
+        putVarint(record, zigzag(latitude - previousLatitude));
+        putVarint(record, zigzag(longitude - previousLongitude));
+        previousTime = sample.time;
+        previousLatitude = latitude;
+        previousLongitude = longitude;
+
+        if (sample.has(LocationSample.HAS_ALTITUDE)) {
+            long altitude = Math.round(sample.altitude * ALTITUDE_SCALE);
+            putVarint(record, zigzag(altitude - previousAltitude));
+            previousAltitude = altitude;
+        }
+        if (sample.has(LocationSample.HAS_SPEED)) {
+            putVarint(record, Math.round(Math.max(0, sample.speed) * SPEED_SCALE));
+        }
+        if (sample.has(LocationSample.HAS_BEARING)) {
+            putVarint(record, Math.round(Math.max(0, sample.bearing) * BEARING_SCALE));
+        }
+        if (sample.has(LocationSample.HAS_ACCURACY)) {
+            putVarint(record, Math.round(Math.max(0, sample.accuracy) * ACCURACY_SCALE));
+        }
+        record.flip();
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
@@ -0,0 +1,66 @@
+package com.maciekjanusz.remoteserviceexample.service.track;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import java.io.IOException;
+
+/**
+ * Writes the track as a GeoJSON Feature with LineString geometry, with point timestamps in
+ * the "coordTimes" property array (the convention used by togeojson and others).
+ * The property and the geometry are written in two passes over the track log, so that
+ * nothing needs to be held in memory between them.
+ */
+public class GeoJsonTrackWriter extends TrackWriter {
+
+    /**
+     * Upper bound of bytes written per point, in either pass
+     */
+    private static final int MAX_POINT_BYTES = 96;
+
+    private static final byte[]
+            HEADER = ascii("{\"type\":\"Feature\",\"properties\":{\"coordTimes\":["),
+            GEOMETRY = ascii("]},\"geometry\":{\"type\":\"LineString\",\"coordinates\":["),
+            FOOTER = ascii("]}}\n");
+
+    @Override
+    protected void writeTrack(TrackLog trackLog, long fromRecord, long toRecord)
+            throws IOException {
+        ensure(HEADER.length);
+        put(HEADER);
+        TrackLog.Cursor cursor = cursor(trackLog, fromRecord);
+        boolean first = true;
+        while (next(cursor, toRecord)) {
+            ensure(MAX_POINT_BYTES);
+            if (!first) {
+                put(',');
+            }
+            first = false;
+            put('"');
+            putIsoTime(sample.time);
+            put('"');
+        }
+
+        ensure(GEOMETRY.length);
+        put(GEOMETRY);
+        cursor = cursor(trackLog, fromRecord);
+        first = true;
+        while (next(cursor, toRecord)) {
+            ensure(MAX_POINT_BYTES);
+            if (!first) {
+                put(',');
+            }
+            first = false;
+            put('[');
+            putFixed(sample.longitude, 7);
+            put(',');
+            putFixed(sample.latitude, 7);
+            if (sample.has(LocationSample.HAS_ALTITUDE)) {
+                put(',');
+                putFixed(sample.altitude, 2);
+            }
+            put(']');
+        }
+        ensure(FOOTER.length);
+        put(FOOTER);
+    }
+}
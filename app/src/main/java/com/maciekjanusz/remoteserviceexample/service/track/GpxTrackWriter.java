@@ -0,0 +1,99 @@
+package com.maciekjanusz.remoteserviceexample.service.track;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import java.io.IOException;
+
+/**
+ * Writes the track as GPX 1.1, a single trk with a single trkseg. Speed, course and accuracy,
+ * which GPX 1.1 has no elements for, go into trkpt extensions - in a namespace of their own
+ * ({@link #EXTENSIONS_NAMESPACE}), as GPX requires of extension elements.
+ */
+public class GpxTrackWriter extends TrackWriter {
+
+    /**
+     * Upper bound of bytes written per point
+     */
+    private static final int MAX_POINT_BYTES = 384;
+
+    /**
+     * Namespace of the extension elements, bound to the "rse" prefix
+     */
+    public static final String EXTENSIONS_NAMESPACE = "urn:maciekjanusz:remoteserviceexample:gpx:1";
+
+    private static final byte[]
+            HEADER = ascii("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<gpx version=\"1.1\" creator=\"RemoteServiceExample\""
+                    + " xmlns=\"http://www.topografix.com/GPX/1/1\""
+                    + " xmlns:rse=\"" + EXTENSIONS_NAMESPACE + "\">\n<trk><trkseg>\n"),
+            FOOTER = ascii("</trkseg></trk></gpx>\n"),
+            POINT_START = ascii("<trkpt lat=\""),
+            POINT_LON = ascii("\" lon=\""),
+            POINT_ATTRS_END = ascii("\">"),
+            POINT_END = ascii("</trkpt>\n"),
+            ELE_START = ascii("<ele>"),
+            ELE_END = ascii("</ele>"),
+            TIME_START = ascii("<time>"),
+            TIME_END = ascii("</time>"),
+            EXTENSIONS_START = ascii("<extensions>"),
+            EXTENSIONS_END = ascii("</extensions>"),
+            SPEED_START = ascii("<rse:speed>"),
+            SPEED_END = ascii("</rse:speed>"),
+            COURSE_START = ascii("<rse:course>"),
+            COURSE_END = ascii("</rse:course>"),
+            ACCURACY_START = ascii("<rse:accuracy>"),
+            ACCURACY_END = ascii("</rse:accuracy>");
+
+    private static final int EXTENSION_FLAGS = LocationSample.HAS_SPEED
+            | LocationSample.HAS_BEARING | LocationSample.HAS_ACCURACY;
+
+    @Override
+    protected void writeTrack(TrackLog trackLog, long fromRecord, long toRecord)
+            throws IOException {
+        ensure(HEADER.length);
+        put(HEADER);
+        TrackLog.Cursor cursor = cursor(trackLog, fromRecord);
+        while (next(cursor, toRecord)) {
+            ensure(MAX_POINT_BYTES);
+            writePoint(sample);
+        }
+        ensure(FOOTER.length);
+        put(FOOTER);
+    }
+
+    private void writePoint(LocationSample sample) {
+        put(POINT_START);
+        putFixed(sample.latitude, 7);
+        put(POINT_LON);
+        putFixed(sample.longitude, 7);
+        put(POINT_ATTRS_END);
+        if (sample.has(LocationSample.HAS_ALTITUDE)) {
+            put(ELE_START);
+            putFixed(sample.altitude, 2);
+            put(ELE_END);
+        }
+        put(TIME_START);
+        putIsoTime(sample.time);
+        put(TIME_END);
+        if ((sample.flags & EXTENSION_FLAGS) != 0) {
+            put(EXTENSIONS_START);
+            if (sample.has(LocationSample.HAS_SPEED)) {
+                put(SPEED_START);
+                putFixed(sample.speed, 2);
+                put(SPEED_END);
+            }
+            if (sample.has(LocationSample.HAS_BEARING)) {
+                put(COURSE_START);
+                putFixed(sample.bearing, 1);
+                put(COURSE_END);
+            }
+            if (sample.has(LocationSample.HAS_ACCURACY)) {
+                put(ACCURACY_START);
+                putFixed(sample.accuracy, 1);
+                put(ACCURACY_END);
+            }
+            put(EXTENSIONS_END);
+        }
+        put(POINT_END);
+    }
+}
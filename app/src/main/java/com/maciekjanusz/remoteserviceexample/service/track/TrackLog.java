@@ -0,0 +1,190 @@
+package com.maciekjanusz.remoteserviceexample.service.track;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Append-only file of {@link TrackRecords} - the persisted track of the service.
+ *
+ * Appends go through a small buffer and are written out every {@link #BUFFERED_RECORDS} records
+ * or on {@link #flush()}. Only one thread may append / flush, while any number of threads
+ * may read records which have been flushed, through {@link Cursor} or
+ * {@link #transferTo(long, long, WritableByteChannel)}.
+ */
+public class TrackLog {
+
+    private static final int BUFFERED_RECORDS = 64;
+
+    private final FileChannel channel;
+    private final ByteBuffer writeBuffer =
+            ByteBuffer.allocate(BUFFERED_RECORDS * TrackRecords.RECORD_SIZE);
+
+    /**
+     * Number of records written to the file, safe to read from any thread
+     */
+    private volatile long flushedRecords;
+
+    /**
+     * Opens or creates track log file. A partially written record at the end
+     * (left by a crash) is discarded.
+     * @param path log file
+     * @throws IOException if file can't be opened
+     */
+    public TrackLog(File path) throws IOException {
+        this(new RandomAccessFile(path, "rw").getChannel());
+    }
+
+    TrackLog(FileChannel channel) throws IOException {
+        this.channel = channel;
+        flushedRecords = channel.size() / TrackRecords.RECORD_SIZE;
+        channel.truncate(flushedRecords * TrackRecords.RECORD_SIZE);
+    }
+
+    /**
+     * Appends a record. It counts in {@link #size()} once this method has buffered it, even if
+     * the flush that follows throws - the buffer is then written out by the next flush.
+     * @throws IOException if the buffer is full because the last flush has failed, and fails again
+     */
+    public void append(LocationSample sample) throws IOException {
+        if (!writeBuffer.hasRemaining()) {
+            flush();
+        }
+        TrackRecords.write(sample, writeBuffer);
+        if (!writeBuffer.hasRemaining()) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes out buffered records, making them visible to readers. If writing fails, the records
+     * stay buffered and the whole buffer is written again by the next flush.
+     */
+    public void flush() throws IOException {
+        if (writeBuffer.position() == 0) {
+            return;
+        }
+        ByteBuffer pending = writeBuffer.duplicate();
+        pending.flip();
+        int records = pending.remaining() / TrackRecords.RECORD_SIZE;
+        long position = flushedRecords * TrackRecords.RECORD_SIZE;
+        while (pending.hasRemaining()) {
+            position += channel.write(pending, position);
+        }
+        writeBuffer.clear();
+        flushedRecords += records;
+    }
+
+    /**
+     * @return number of records appended, including buffered ones. Appending thread only.
+     */
+    public long size() {
+        return flushedRecords + writeBuffer.position() / TrackRecords.RECORD_SIZE;
+    }
+
+    /**
+     * @return number of records readers can see
+     */
+    public long flushedSize() {
+        return flushedRecords;
+    }
+
+    /**
+     * Copies a range of raw records to a channel, letting the platform avoid
+     * intermediate copies where it can.
+     * @param fromRecord index of the first record
+     * @param toRecord index past the last record, not greater than {@link #flushedSize()}
+     * @param target channel to write to
+     * @throws IOException on read or write error
+     */
+    public void transferTo(long fromRecord, long toRecord, WritableByteChannel target)
+            throws IOException {
+        long position = fromRecord * TrackRecords.RECORD_SIZE;
+        long end = toRecord * TrackRecords.RECORD_SIZE;
+        while (position < end) {
+            long transferred = channel.transferTo(position, end - position, target);
+            if (transferred <= 0) {
+                throw new IOException("Track transfer stalled at " + position);
+            }
+            position += transferred;
+        }
+    }
+
+    /**
+     * @param fromRecord index of the first record to read
+     * @param bufferRecords number of records read from the file at once
+     * @return new cursor
+     */
+    public Cursor cursor(long fromRecord, int bufferRecords) {
+        return new Cursor(fromRecord, bufferRecords);
+    }
+
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Sequential reader of flushed records, with a buffer of its own.
+     * A cursor may be used by one thread at a time.
+     */
+    public class Cursor {
+
+        private final ByteBuffer readBuffer;
+        private long nextRecord;
+
+        private Cursor(long fromRecord, int bufferRecords) {
+            this.nextRecord = fromRecord;
+            this.readBuffer = ByteBuffer.allocate(bufferRecords * TrackRecords.RECORD_SIZE);
+            readBuffer.flip();
+        }
+
+        /**
+         * @return index of the record to be returned by next call to {@link #next(LocationSample)}
+         */
+        public long position() {
+            return nextRecord;
+        }
+
+        /**
+         * Reads next record.
+         * @param out sample to read into
+         * @return false if there are no more flushed records
+         */
+        public boolean next(LocationSample out) throws IOException {
+            if (!readBuffer.hasRemaining() && !fill()) {
+                return false;
+            }
+            TrackRecords.read(readBuffer, out);
+            nextRecord++;
+            return true;
+        }
+
+        private boolean fill() throws IOException {
+            long available = flushedRecords - nextRecord;
+            if (available <= 0) {
+                return false;
+            }
+            readBuffer.clear();
+            int bytes = (int) Math.min(readBuffer.capacity(), available * TrackRecords.RECORD_SIZE);
+            readBuffer.limit(bytes);
+            long position = nextRecord * TrackRecords.RECORD_SIZE;
+            while (readBuffer.hasRemaining()) {
+                int read = channel.read(readBuffer, position + readBuffer.position());
+                if (read < 0) {
+                    throw new IOException("Unexpected end of track log");
+                }
+            }
+            readBuffer.flip();
+            return true;
+        }
+    }
+}
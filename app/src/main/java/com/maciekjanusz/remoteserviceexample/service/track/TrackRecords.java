@@ -0,0 +1,56 @@
+package com.maciekjanusz.remoteserviceexample.service.track;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed size binary record of a single fix, used both by {@link TrackLog} on disk
+ * and by the track export stream:
+ *
+ * time (long), latitude (double), longitude (double), altitude (double),
+ * speed (float), bearing (float), accuracy (float), flags (int)
+ *
+ * Monotonic elapsedRealtimeNanos is not stored, it has no meaning outside of the current boot.
+ */
+public final class TrackRecords {
+
+    public static final int RECORD_SIZE = 48;
+
+    /**
+     * Magic number opening the export stream, "TRK1"
+     */
+    public static final int STREAM_MAGIC = 0x54524b31;
+
+    private TrackRecords() {
+    }
+
+    /**
+     * Writes sample as a record at buffer's position.
+     */
+    public static void write(LocationSample sample, ByteBuffer buffer) {
+        buffer.putLong(sample.time)
+                .putDouble(sample.latitude)
+                .putDouble(sample.longitude)
+                .putDouble(sample.altitude)
+                .putFloat(sample.speed)
+                .putFloat(sample.bearing)
+                .putFloat(sample.accuracy)
+                .putInt(sample.flags);
+    }
+
+    /**
+     * Reads record at buffer's position into sample.
+     */
+    public static void read(ByteBuffer buffer, LocationSample sample) {
+        sample.time = buffer.getLong();
+        sample.latitude = buffer.getDouble();
+        sample.longitude = buffer.getDouble();
+        sample.altitude = buffer.getDouble();
+        sample.speed = buffer.getFloat();
+        sample.bearing = buffer.getFloat();
+        sample.accuracy = buffer.getFloat();
+        sample.flags = buffer.getInt();
+        sample.elapsedRealtimeNanos = 0;
+    }
+}
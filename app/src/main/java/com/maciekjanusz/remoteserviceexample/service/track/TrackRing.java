@@ -0,0 +1,250 @@
+package com.maciekjanusz.remoteserviceexample.service.track;
+
+import android.support.annotation.Nullable;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import java.io.IOException;
+
+/**
+ * In-memory store of the most recent fixes, laid out as parallel primitive columns
+ * (struct of arrays) - about 48 bytes per fix and no objects per fix, unlike a list of samples.
+ *
+ * Records are addressed by absolute index, counted from the first record ever appended, so
+ * that indexes stay valid as the ring wraps - records from {@link #firstIndex()} until
+ * {@link #endIndex()} are available. When full, appending evicts the oldest record, which is
+ * either dropped or spilled to a {@link TrackLog}.
+ *
+ * Reads go through primitive column getters, {@link #get(long, LocationSample)} or
+ * {@link #scan(long, long, Visitor)} - nothing gets boxed. Not thread safe.
+ */
+public class TrackRing {
+
+    public interface Visitor {
+        /**
+         * @param ring ring being scanned, for reading columns of the record
+         * @param index absolute index of the record
+         * @return false to stop the scan
+         */
+        boolean visit(TrackRing ring, long index);
+    }
+
+    private final int mask;
+    @Nullable
+    private final TrackLog spillLog;
+    /**
+     * Sample reused for spilling
+     */
+    private final LocationSample spilled;
+
+    private final long[] times;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final double[] altitudes;
+    private final float[] speeds;
+    private final float[] bearings;
+    private final float[] accuracies;
+    private final int[] flags;
+
+    private long firstIndex = 0;
+    private long endIndex = 0;
+
+    /**
+     * Creates ring dropping the oldest records when full.
+     * @param capacity number of records, rounded up to a power of two
+     */
+    public TrackRing(int capacity) {
+        this(capacity, 0, null);
+    }
+
+    /**
+     * @param capacity number of records, rounded up to a power of two
+     * @param startIndex absolute index of the first record to be appended
+     * @param spillLog log to append evicted records to, or null to drop them
+     */
+    public TrackRing(int capacity, long startIndex, @Nullable TrackLog spillLog) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1);
+        mask = size - 1;
+        this.spillLog = spillLog;
+        spilled = spillLog != null ? new LocationSample() : null;
+        times = new long[size];
+        latitudes = new double[size];
+        longitudes = new double[size];
+        altitudes = new double[size];
+        speeds = new float[size];
+        bearings = new float[size];
+        accuracies = new float[size];
+        flags = new int[size];
+        firstIndex = startIndex;
+        endIndex = startIndex;
+    }
+
+    /**
+     * Appends sample, evicting the oldest record if full.
+     * @return absolute index of the appended record
+     * @throws IOException if evicted record can't be spilled, the ring is left unchanged then
+     */
+    public long append(LocationSample sample) throws IOException {
+        if (endIndex - firstIndex > mask) {
+            if (spillLog != null) {
+                spillLog.append(get(firstIndex, spilled));
+            }
+            firstIndex++;
+        }
+        int slot = (int) (endIndex & mask);
+        times[slot] = sample.time;
+        latitudes[slot] = sample.latitude;
+        longitudes[slot] = sample.longitude;
+        altitudes[slot] = sample.altitude;
+        speeds[slot] = sample.speed;
+        bearings[slot] = sample.bearing;
+        accuracies[slot] = sample.accuracy;
+        flags[slot] = sample.flags;
+        return endIndex++;
+    }
+
+    /**
+     * Spills all records to the spill log, if any, and empties the ring.
+     */
+    public void spillAll() throws IOException {
+        if (spillLog != null) {
+            for (; firstIndex < endIndex; firstIndex++) {
+                spillLog.append(get(firstIndex, spilled));
+            }
+        }
+        firstIndex = endIndex;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public int size() {
+        return (int) (endIndex - firstIndex);
+    }
+
+    public boolean isEmpty() {
+        return endIndex == firstIndex;
+    }
+
+    /**
+     * @return absolute index of the oldest record held
+     */
+    public long firstIndex() {
+        return firstIndex;
+    }
+
+    /**
+     * @return absolute index the next appended record will get
+     */
+    public long endIndex() {
+        return endIndex;
+    }
+
+    /**
+     * Copies record into sample.
+     * @param index absolute index, between firstIndex and endIndex
+     * @return the sample
+     */
+    public LocationSample get(long index, LocationSample out) {
+        int slot = slot(index);
+        out.time = times[slot];
+        out.latitude = latitudes[slot];
+        out.longitude = longitudes[slot];
+        out.altitude = altitudes[slot];
+        out.speed = speeds[slot];
+        out.bearing = bearings[slot];
+        out.accuracy = accuracies[slot];
+        out.flags = flags[slot];
+        out.elapsedRealtimeNanos = 0;
+        return out;
+    }
+
+    public long time(long index) {
+        return times[slot(index)];
+    }
+
+    public double latitude(long index) {
+        return latitudes[slot(index)];
+    }
+
+    public double longitude(long index) {
+        return longitudes[slot(index)];
+    }
+
+    public double altitude(long index) {
+        return altitudes[slot(index)];
+    }
+
+    public float speed(long index) {
+        return speeds[slot(index)];
+    }
+
+    public float bearing(long index) {
+        return bearings[slot(index)];
+    }
+
+    public float accuracy(long index) {
+        return accuracies[slot(index)];
+    }
+
+    public int flags(long index) {
+        return flags[slot(index)];
+    }
+
+    /**
+     * Finds the first record not older than given time, with binary search - fix times
+     * are expected to be non-decreasing.
+     * @return absolute index, endIndex if all records are older
+     */
+    public long indexOfTime(long time) {
+        long low = firstIndex;
+        long high = endIndex;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (times[(int) (middle & mask)] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Visits records in index order.
+     * @param from absolute index of the first record, clamped to the records held
+     * @param to absolute index after the last record, clamped to the records held
+     * @return number of records visited
+     */
+    public int scan(long from, long to, Visitor visitor) {
+        from = Math.max(from, firstIndex);
+        to = Math.min(to, endIndex);
+        int visited = 0;
+        for (long index = from; index < to; index++) {
+            visited++;
+            if (!visitor.visit(this, index)) {
+                break;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Visits records with time in range, in index order.
+     * @param fromTime inclusive
+     * @param toTime exclusive
+     * @return number of records visited
+     */
+    public int scanTime(long fromTime, long toTime, Visitor visitor) {
+        return scan(indexOfTime(fromTime), indexOfTime(toTime), visitor);
+    }
+
+    private int slot(long index) {
+        if (index < firstIndex || index >= endIndex) {
+            throw new IndexOutOfBoundsException("Index " + index + " not in ["
+                    + firstIndex + ", " + endIndex + ")");
+        }
+        return (int) (index & mask);
+    }
+}
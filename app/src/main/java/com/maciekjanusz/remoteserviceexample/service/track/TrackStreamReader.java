@@ -0,0 +1,78 @@
+package com.maciekjanusz.remoteserviceexample.service.track;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Client side reader of a track export stream: {@link TrackRecords#STREAM_MAGIC}
+ * followed by records, until end of stream. Reads the channel incrementally through a fixed
+ * buffer, so memory use doesn't depend on the track length.
+ * Blocking - use it off the main thread.
+ */
+public class TrackStreamReader implements Closeable {
+
+    private static final int BUFFER_RECORDS = 256;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_RECORDS * TrackRecords.RECORD_SIZE);
+    private boolean headerRead = false;
+    private boolean endOfStream = false;
+
+    public TrackStreamReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        buffer.flip();
+    }
+
+    /**
+     * Reads next record, blocking until it arrives.
+     * @param out sample to read into
+     * @return false at the end of the stream
+     * @throws IOException on read error, bad header or truncated stream
+     */
+    public boolean next(LocationSample out) throws IOException {
+        if (!headerRead) {
+            if (!ensure(4)) {
+                throw new IOException("Empty track stream");
+            }
+            if (buffer.getInt() != TrackRecords.STREAM_MAGIC) {
+                throw new IOException("Not a track stream");
+            }
+            headerRead = true;
+        }
+        if (!ensure(TrackRecords.RECORD_SIZE)) {
+            if (buffer.hasRemaining()) {
+                throw new IOException("Track stream truncated");
+            }
+            return false;
+        }
+        TrackRecords.read(buffer, out);
+        return true;
+    }
+
+    /**
+     * Reads from channel until at least given number of bytes is buffered.
+     * @return false if the stream ended before that
+     */
+    private boolean ensure(int bytes) throws IOException {
+        if (buffer.remaining() >= bytes) {
+            return true;
+        }
+        buffer.compact();
+        while (buffer.position() < bytes && !endOfStream) {
+            if (channel.read(buffer) < 0) {
+                endOfStream = true;
+            }
+        }
+        buffer.flip();
+        return buffer.remaining() >= bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,199 @@
+package com.maciekjanusz.remoteserviceexample.service.track;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Base for streaming track writers. A writer reads records from {@link TrackLog} through a cursor
+ * and encodes them into a fixed size buffer, which is written out to the channel whenever it fills
+ * up - so memory use doesn't depend on track length, and no objects are created per point.
+ * The helpers below format numbers and timestamps as ASCII straight into the buffer.
+ *
+ * A writer instance is not thread safe, but may be reused for subsequent exports.
+ */
+public abstract class TrackWriter {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int CURSOR_RECORDS = 256;
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+
+    protected final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    /**
+     * Sample reused for every record read
+     */
+    protected final LocationSample sample = new LocationSample();
+    /**
+     * Scratch space for digits, filled from the end
+     */
+    private final byte[] digits = new byte[20];
+
+    private WritableByteChannel channel;
+
+    /**
+     * Writes a range of the track to the channel. The channel is not closed.
+     * @param trackLog track to read
+     * @param fromRecord index of the first record
+     * @param toRecord index past the last record, not greater than {@link TrackLog#flushedSize()}
+     * @param channel channel to write to
+     * @throws IOException on read or write error
+     */
+    public void write(TrackLog trackLog, long fromRecord, long toRecord, WritableByteChannel channel)
+            throws IOException {
+        this.channel = channel;
+        buffer.clear();
+        try {
+            writeTrack(trackLog, fromRecord, toRecord);
+            flush();
+        } finally {
+            this.channel = null;
+        }
+    }
+
+    /**
+     * Encodes the track range. Implementations call {@link #ensure(int)} before each chunk of output.
+     */
+    protected abstract void writeTrack(TrackLog trackLog, long fromRecord, long toRecord)
+            throws IOException;
+
+    /**
+     * Reads next record of the range into {@link #sample}.
+     * @return false at the end of the range
+     */
+    protected boolean next(TrackLog.Cursor cursor, long toRecord) throws IOException {
+        return cursor.position() < toRecord && cursor.next(sample);
+    }
+
+    protected TrackLog.Cursor cursor(TrackLog trackLog, long fromRecord) {
+        return trackLog.cursor(fromRecord, CURSOR_RECORDS);
+    }
+
+    /**
+     * Makes sure the buffer has room for given number of bytes, writing it out if needed.
+     */
+    protected void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    protected void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Puts an ASCII literal; literals are expected as static byte arrays, see {@link #ascii(String)}.
+     */
+    protected void put(byte[] literal) {
+        buffer.put(literal);
+    }
+
+    protected void put(char c) {
+        buffer.put((byte) c);
+    }
+
+    protected void putLong(long value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                // can't be negated, but never happens with track values
+                value = Long.MAX_VALUE;
+            } else {
+                value = -value;
+            }
+        }
+        int position = digits.length;
+        do {
+            digits[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        buffer.put(digits, position, digits.length - position);
+    }
+
+    /**
+     * Puts a number with fixed count of decimal places, e.g. 52.2297000
+     * @param decimals number of decimal places, 0 - 9
+     */
+    protected void putFixed(double value, int decimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            value = 0;
+        }
+        long scale = POWERS_OF_TEN[decimals];
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0) {
+            buffer.put((byte) '-');
+        }
+        putLong(scaled / scale);
+        if (decimals > 0) {
+            buffer.put((byte) '.');
+            long fraction = scaled % scale;
+            for (int i = decimals - 1; i >= 0; i--) {
+                buffer.put((byte) ('0' + (fraction / POWERS_OF_TEN[i]) % 10));
+            }
+        }
+    }
+
+    /**
+     * Puts UTC timestamp in ISO 8601 format, e.g. 2015-09-20T10:00:00.000Z
+     * @param millis milliseconds since epoch
+     */
+    protected void putIsoTime(long millis) {
+        long days = millis / 86400000L;
+        long millisOfDay = millis % 86400000L;
+        if (millisOfDay < 0) {
+            millisOfDay += 86400000L;
+            days--;
+        }
+        // civil from days, after Howard Hinnant's algorithm
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        long month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        putPadded(year, 4);
+        put('-');
+        putPadded(month, 2);
+        put('-');
+        putPadded(day, 2);
+        put('T');
+        putPadded(millisOfDay / 3600000L, 2);
+        put(':');
+        putPadded(millisOfDay / 60000L % 60, 2);
+        put(':');
+        putPadded(millisOfDay / 1000L % 60, 2);
+        put('.');
+        putPadded(millisOfDay % 1000L, 3);
+        put('Z');
+    }
+
+    private void putPadded(long value, int width) {
+        for (int i = width - 1; i >= 0; i--) {
+            buffer.put((byte) ('0' + (value / POWERS_OF_TEN[i]) % 10));
+        }
+    }
+
+    /**
+     * @return ASCII bytes of the literal, meant for static constants
+     */
+    protected static byte[] ascii(String literal) {
+        byte[] bytes = new byte[literal.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) literal.charAt(i);
+        }
+        return bytes;
+    }
+}
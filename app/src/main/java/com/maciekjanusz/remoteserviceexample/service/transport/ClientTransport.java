@@ -0,0 +1,110 @@
+package com.maciekjanusz.remoteserviceexample.service.transport;
+
+import android.support.annotation.Nullable;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Client (UI process) end of the channel between {@link com.maciekjanusz.remoteserviceexample.service.ServiceProxy}
+ * and the tracking service. Hides whatever carries the messages - Messenger binder and broadcasts
+ * on a device, or an in-process loopback on a plain JVM.
+ */
+public interface ClientTransport {
+
+    /**
+     * Sets the receiver of connection state changes and service events.
+     * @param callbacks callbacks, called on the transport's delivery thread
+     */
+    void setCallbacks(Callbacks callbacks);
+
+    /**
+     * Starts the service and connects to it.
+     */
+    void startService();
+
+    /**
+     * Stops the service.
+     */
+    void stopService();
+
+    /**
+     * Connects to the service, if it is running.
+     */
+    void connect();
+
+    /**
+     * Drops the connection to the service.
+     */
+    void disconnect();
+
+    /**
+     * Starts delivering service events to {@link Callbacks}.
+     */
+    void attach();
+
+    /**
+     * Stops delivering service events. Call only once after {@link #attach()}.
+     */
+    void detach();
+
+    /**
+     * @return true if commands can be sent to the service
+     */
+    boolean isConnected();
+
+    /**
+     * @return whether the payload can be carried to the service by {@link #send(int, Object)}
+     */
+    boolean canCarry(@Nullable Object payload);
+
+    /**
+     * Sends a command to the service.
+     * @param what command identifier, one of TrackingService.MSG_* constants
+     * @param payload command argument (may be null) - a String, byte[] or, for
+     *                transports that cross process boundary, a Parcelable
+     * @return true if the command has been handed over, false if the service can't be reached
+     */
+    boolean send(int what, @Nullable Object payload);
+
+    /**
+     * Sends several commands in a single transaction, the service handles them in order.
+     * @param whats command identifiers
+     * @param payloads command arguments, like in {@link #send(int, Object)}
+     * @param count number of commands, from the beginning of the arrays
+     * @return true if all commands have been handed over, false otherwise
+     */
+    boolean sendBatch(int[] whats, Object[] payloads, int count);
+
+    /**
+     * Sends a command carrying the write end of a new pipe, for the service to stream
+     * a response of any size into (the service gets it as a WritableByteChannel payload).
+     * @param what command identifier
+     * @return read end of the pipe, blocking
+     * @throws IOException if pipe can't be created or command can't be sent
+     */
+    ReadableByteChannel requestStream(int what) throws IOException;
+
+    interface Callbacks {
+        void onConnected();
+
+        void onDisconnected();
+
+        /**
+         * Called with a location fix published by the service.
+         * The sample is reused by the transport after this call returns.
+         */
+        void onLocation(LocationSample sample);
+
+        /**
+         * Called with an event published by the service.
+         * The buffer is reused by the transport after this call returns.
+         * @param what event identifier, one of TrackingService.EVENT_* constants
+         * @param payload encoded event, between buffer's position and limit
+         */
+        void onEvent(int what, ByteBuffer payload);
+    }
+}
@@ -0,0 +1,306 @@
+package com.maciekjanusz.remoteserviceexample.service.transport;
+
+import android.support.annotation.Nullable;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.LocationSampleListener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pure java, in-process pair of transports for running the proxy and service logic on a plain JVM.
+ *
+ * Each side gets its own dispatch thread standing in for the process main thread, so delivery is
+ * asynchronous and ordered just like with Messenger and broadcasts. Messages travel in a fixed set
+ * of preallocated slots (samples are copied, as if parcelled), which makes the transport itself
+ * garbage free and gives natural backpressure when a side falls behind.
+ */
+public class LoopbackTransport {
+
+    private static final int KIND_CONNECTED = 0,
+            KIND_DISCONNECTED = 1,
+            KIND_COMMAND = 2,
+            KIND_LOCATION = 3,
+            KIND_INPUT = 4,
+            KIND_EVENT = 5;
+
+    private final Dispatcher clientDispatcher;
+    private final Dispatcher serviceDispatcher;
+
+    private final Client client = new Client();
+    private final Service service = new Service();
+
+    private volatile ClientTransport.Callbacks callbacks;
+    private volatile ServiceTransport.CommandHandler commandHandler;
+
+    private volatile boolean serviceRunning = false;
+    private volatile boolean connected = false;
+    private volatile boolean attached = false;
+
+    /**
+     * @param capacity number of in-flight messages per direction
+     */
+    public LoopbackTransport(int capacity) {
+        clientDispatcher = new Dispatcher("loopback-client", capacity);
+        serviceDispatcher = new Dispatcher("loopback-service", capacity);
+        clientDispatcher.start();
+        serviceDispatcher.start();
+    }
+
+    public ClientTransport client() {
+        return client;
+    }
+
+    public ServiceTransport service() {
+        return service;
+    }
+
+    /**
+     * Returns listener which hands samples over to the service dispatch thread, the way location
+     * callbacks get serialized on the service main thread on a device.
+     * @param target listener to be called on the service dispatch thread
+     * @return listener that can be called from any thread
+     */
+    public LocationSampleListener serviceInput(final LocationSampleListener target) {
+        return new LocationSampleListener() {
+            @Override
+            public void onLocationSample(LocationSample sample) {
+                serviceDispatcher.post(KIND_INPUT, 0, null, sample, target);
+            }
+        };
+    }
+
+    /**
+     * Stops both dispatch threads. Messages still in flight are dropped.
+     */
+    public void shutdown() {
+        clientDispatcher.interrupt();
+        serviceDispatcher.interrupt();
+    }
+
+    private void dispatch(Slot slot) {
+        switch (slot.kind) {
+            case KIND_CONNECTED:
+                callbacks.onConnected();
+                break;
+            case KIND_DISCONNECTED:
+                callbacks.onDisconnected();
+                break;
+            case KIND_COMMAND:
+                commandHandler.onCommand(slot.what, slot.payload);
+                break;
+            case KIND_LOCATION:
+                // receiver might have gone away while the message was in flight
+                if (attached) {
+                    callbacks.onLocation(slot.sample);
+                }
+                break;
+            case KIND_INPUT:
+                slot.target.onLocationSample(slot.sample);
+                break;
+            case KIND_EVENT:
+                if (attached) {
+                    callbacks.onEvent(slot.what, slot.event);
+                }
+                break;
+        }
+    }
+
+    private class Client implements ClientTransport {
+
+        @Override
+        public void setCallbacks(Callbacks callbacks) {
+            LoopbackTransport.this.callbacks = callbacks;
+        }
+
+        @Override
+        public void startService() {
+            serviceRunning = true;
+            connect();
+        }
+
+        @Override
+        public void stopService() {
+            serviceRunning = false;
+            if (connected) {
+                connected = false;
+                clientDispatcher.post(KIND_DISCONNECTED, 0, null, null, null);
+            }
+        }
+
+        @Override
+        public void connect() {
+            if (serviceRunning && !connected) {
+                connected = true;
+                clientDispatcher.post(KIND_CONNECTED, 0, null, null, null);
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            connected = false;
+        }
+
+        @Override
+        public void attach() {
+            attached = true;
+        }
+
+        @Override
+        public void detach() {
+            attached = false;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean canCarry(@Nullable Object payload) {
+            // in process, anything goes
+            return true;
+        }
+
+        @Override
+        public boolean send(int what, @Nullable Object payload) {
+            return connected && serviceDispatcher.post(KIND_COMMAND, what, payload, null, null);
+        }
+
+        @Override
+        public boolean sendBatch(int[] whats, Object[] payloads, int count) {
+            // in-process posts are cheap, no need for a batch message
+            for (int i = 0; i < count; i++) {
+                if (!send(whats[i], payloads[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public ReadableByteChannel requestStream(int what) throws IOException {
+            Pipe pipe = Pipe.open();
+            if (!send(what, pipe.sink())) {
+                pipe.sink().close();
+                pipe.source().close();
+                throw new IOException("Service not connected");
+            }
+            return pipe.source();
+        }
+    }
+
+    private class Service implements ServiceTransport {
+
+        @Override
+        public void setCommandHandler(CommandHandler commandHandler) {
+            LoopbackTransport.this.commandHandler = commandHandler;
+        }
+
+        @Override
+        public void publishLocation(LocationSample sample) {
+            if (attached) {
+                clientDispatcher.post(KIND_LOCATION, 0, null, sample, null);
+            }
+        }
+
+        @Override
+        public void publishEvent(int what, ByteBuffer payload) {
+            if (attached) {
+                clientDispatcher.post(KIND_EVENT, what, payload, null, null);
+            }
+        }
+    }
+
+    /**
+     * Preallocated message holder
+     */
+    private static class Slot {
+        int kind;
+        int what;
+        Object payload;
+        LocationSampleListener target;
+        final LocationSample sample = new LocationSample();
+        /**
+         * Copy of event payload, grown as needed
+         */
+        ByteBuffer event = ByteBuffer.allocate(128);
+    }
+
+    /**
+     * Thread delivering messages in order, one at a time.
+     * Free and pending slots circulate between two bounded queues, so that posting doesn't allocate.
+     */
+    private class Dispatcher extends Thread {
+
+        private final BlockingQueue<Slot> free;
+        private final BlockingQueue<Slot> pending;
+
+        Dispatcher(String name, int capacity) {
+            super(name);
+            setDaemon(true);
+            free = new ArrayBlockingQueue<>(capacity);
+            pending = new ArrayBlockingQueue<>(capacity);
+            for (int i = 0; i < capacity; i++) {
+                free.add(new Slot());
+            }
+        }
+
+        /**
+         * Blocks while all slots are in flight.
+         * @return false if interrupted while waiting for a free slot
+         */
+        boolean post(int kind, int what, Object payload, LocationSample sample,
+                     LocationSampleListener target) {
+            Slot slot;
+            try {
+                slot = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            slot.kind = kind;
+            slot.what = what;
+            slot.payload = payload;
+            slot.target = target;
+            if (sample != null) {
+                slot.sample.set(sample);
+            }
+            if (payload instanceof ByteBuffer) {
+                // events are copied, like samples
+                ByteBuffer event = (ByteBuffer) payload;
+                if (slot.event.capacity() < event.remaining()) {
+                    slot.event = ByteBuffer.allocate(event.remaining());
+                }
+                slot.event.clear();
+                slot.event.put(event).flip();
+                slot.payload = null;
+            }
+            pending.add(slot);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    Slot slot = pending.take();
+                    try {
+                        dispatch(slot);
+                    } finally {
+                        slot.payload = null;
+                        slot.target = null;
+                        free.add(slot);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // shutdown
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.maciekjanusz.remoteserviceexample.service.transport;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.support.annotation.Nullable;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.TrackingService;
+import com.maciekjanusz.tale.Tale;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.ACTION_LOCATION_ACQUIRED;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.ACTION_SERVICE_EVENT;
+
+/**
+ * {@link ClientTransport} sending commands through a Messenger bound to {@link TrackingService}
+ * and receiving service events as broadcasts.
+ */
+public class MessengerClientTransport implements ClientTransport {
+
+    /**
+     * Bundle key under which command payload is stored
+     */
+    static final String KEY_PAYLOAD = "key:payload";
+
+    /**
+     * Message carrying a batch of commands - identifiers under {@link #KEY_BATCH},
+     * payloads under {@link #KEY_PAYLOAD} suffixed with command's position
+     */
+    static final int MSG_BATCH = -1;
+    static final String KEY_BATCH = "key:batch";
+
+    /**
+     * Extras of {@link TrackingService#ACTION_SERVICE_EVENT} broadcast
+     */
+    static final String
+            EXTRA_EVENT = "extra_event",
+            EXTRA_EVENT_PAYLOAD = "extra_event_payload";
+
+    /**
+     * Context for registering/unregistering receivers, starting service etc.
+     */
+    private final Context context;
+    /**
+     * Intent for starting service
+     */
+    private final Intent serviceIntent;
+    /**
+     * Receiver of connection changes and service events
+     */
+    private Callbacks callbacks;
+
+    /**
+     * Messenger for interprocess service communication
+     */
+    private Messenger serviceMessenger;
+    /**
+     * Sample reused for every received location broadcast
+     */
+    private final LocationSample receivedSample = new LocationSample();
+    /**
+     * Broadcast receiver for service callbacks
+     */
+    private final BroadcastReceiver serviceMessageReceiver = new ServiceMessageReceiver();
+    /**
+     * Service connection impl.
+     */
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder iBinder) {
+            // establish messenger
+            serviceMessenger = new Messenger(iBinder);
+            callbacks.onConnected();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            callbacks.onDisconnected();
+            // messenger is now obsolete
+            serviceMessenger = null;
+        }
+    };
+
+    public MessengerClientTransport(Context context) {
+        this.context = context;
+        this.serviceIntent = new Intent(context, TrackingService.class);
+    }
+
+    @Override
+    public void setCallbacks(Callbacks callbacks) {
+        this.callbacks = callbacks;
+    }
+
+    @Override
+    public void startService() {
+        // unbind and then rebind service
+        disconnect();
+        connect();
+        context.startService(serviceIntent);
+    }
+
+    @Override
+    public void stopService() {
+        context.stopService(serviceIntent);
+    }
+
+    @Override
+    public void connect() {
+        boolean result = context.getApplicationContext()
+                .bindService(serviceIntent, serviceConnection, Context.BIND_ABOVE_CLIENT);
+        new Tale(result ? "Succesfully bound to service." : "Failed to bind to service.").at().tell();
+    }
+
+    @Override
+    public void disconnect() {
+        context.getApplicationContext().unbindService(serviceConnection);
+        // no onServiceDisconnected callback for unbinding, the messenger is obsolete anyway
+        serviceMessenger = null;
+    }
+
+    /**
+     * Registers {@link #serviceMessageReceiver} with proper IntentFilter
+     */
+    @Override
+    public void attach() {
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(ACTION_LOCATION_ACQUIRED);
+        intentFilter.addAction(ACTION_SERVICE_EVENT);
+        context.registerReceiver(serviceMessageReceiver, intentFilter);
+    }
+
+    /**
+     * Unregisters {@link #serviceMessageReceiver}.
+     */
+    @Override
+    public void detach() {
+        context.unregisterReceiver(serviceMessageReceiver);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return serviceMessenger != null;
+    }
+
+    @Override
+    public boolean canCarry(@Nullable Object payload) {
+        // With IPC the payload can only be something a Bundle can carry
+        return payload == null || payload instanceof String || payload instanceof byte[]
+                || payload instanceof Parcelable;
+    }
+
+    @Override
+    public boolean send(int what, @Nullable Object payload) {
+        Messenger messenger = serviceMessenger;
+        if (messenger == null) {
+            return false;
+        }
+        // obtain message and set data
+        Message message = Message.obtain();
+        message.what = what;
+        if (payload != null) {
+            Bundle data = new Bundle();
+            if (!putPayload(data, KEY_PAYLOAD, payload)) {
+                return false;
+            }
+            message.setData(data);
+        }
+        return send(messenger, message);
+    }
+
+    @Override
+    public boolean sendBatch(int[] whats, Object[] payloads, int count) {
+        Messenger messenger = serviceMessenger;
+        if (messenger == null) {
+            return false;
+        }
+        Message message = Message.obtain();
+        message.what = MSG_BATCH;
+        Bundle data = new Bundle();
+        data.putIntArray(KEY_BATCH, Arrays.copyOf(whats, count));
+        for (int i = 0; i < count; i++) {
+            if (payloads[i] != null && !putPayload(data, KEY_PAYLOAD + i, payloads[i])) {
+                return false;
+            }
+        }
+        message.setData(data);
+        return send(messenger, message);
+    }
+
+    /**
+     * @return false if payload can't be carried by a Bundle
+     */
+    private static boolean putPayload(Bundle data, String key, Object payload) {
+        // With IPC the payload can only be something a Bundle can carry
+        if (payload instanceof String) {
+            data.putString(key, (String) payload);
+        } else if (payload instanceof byte[]) {
+            data.putByteArray(key, (byte[]) payload);
+        } else if (payload instanceof Parcelable) {
+            data.putParcelable(key, (Parcelable) payload);
+        } else {
+            new Tale("payload is not parcelable.").at().tell();
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean send(Messenger messenger, Message message) {
+        try {
+            messenger.send(message);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public ReadableByteChannel requestStream(int what) throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        try {
+            if (!send(what, pipe[1])) {
+                pipe[0].close();
+                throw new IOException("Service not connected");
+            }
+        } finally {
+            // the service holds its own duplicate now, ours would keep the pipe from ending
+            pipe[1].close();
+        }
+        return new ParcelFileDescriptor.AutoCloseInputStream(pipe[0]).getChannel();
+    }
+
+    private class ServiceMessageReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent == null) return;
+
+            /**
+             * Remember to add actions to intent filter as well
+             */
+            switch (intent.getAction()) {
+                case ACTION_LOCATION_ACQUIRED:
+                    if (SampleExtras.read(intent, receivedSample)) {
+                        callbacks.onLocation(receivedSample);
+                    }
+                    break;
+                case ACTION_SERVICE_EVENT:
+                    byte[] payload = intent.getByteArrayExtra(EXTRA_EVENT_PAYLOAD);
+                    if (payload != null) {
+                        callbacks.onEvent(intent.getIntExtra(EXTRA_EVENT, -1),
+                                ByteBuffer.wrap(payload));
+                    }
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.maciekjanusz.remoteserviceexample.service.transport;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.tale.Tale;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.ACTION_LOCATION_ACQUIRED;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.ACTION_SERVICE_EVENT;
+import static com.maciekjanusz.remoteserviceexample.service.transport.MessengerClientTransport.EXTRA_EVENT;
+import static com.maciekjanusz.remoteserviceexample.service.transport.MessengerClientTransport.EXTRA_EVENT_PAYLOAD;
+import static com.maciekjanusz.remoteserviceexample.service.transport.MessengerClientTransport.KEY_BATCH;
+import static com.maciekjanusz.remoteserviceexample.service.transport.MessengerClientTransport.KEY_PAYLOAD;
+import static com.maciekjanusz.remoteserviceexample.service.transport.MessengerClientTransport.MSG_BATCH;
+
+/**
+ * {@link ServiceTransport} receiving commands through a Messenger binder
+ * and publishing events as broadcasts.
+ */
+public class MessengerServiceTransport implements ServiceTransport {
+
+    /**
+     * Context for sending broadcasts
+     */
+    private final Context context;
+    /**
+     * Messenger with {@link ProxyMessageHandler} for incoming IPC communication messages
+     * from serviceProxy
+     */
+    private final Messenger bindMessenger =
+            new Messenger(new ProxyMessageHandler(new WeakReference<>(this)));
+    /**
+     * Intent for broadcasting location back to serviceProxy
+     */
+    private final Intent locationBroadcastIntent = new Intent(ACTION_LOCATION_ACQUIRED);
+    /**
+     * Intent for broadcasting other events
+     */
+    private final Intent eventBroadcastIntent = new Intent(ACTION_SERVICE_EVENT);
+    /**
+     * Encoder of location broadcast extras
+     */
+    private final SampleExtras sampleExtras = new SampleExtras();
+    /**
+     * Last event payload array, reused for the next event of the same size
+     */
+    private byte[] eventBytes = new byte[0];
+
+    private CommandHandler commandHandler;
+
+    public MessengerServiceTransport(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * @return binder to be returned from Service#onBind
+     */
+    public IBinder getBinder() {
+        return bindMessenger.getBinder();
+    }
+
+    @Override
+    public void setCommandHandler(CommandHandler commandHandler) {
+        this.commandHandler = commandHandler;
+    }
+
+    @Override
+    public void publishLocation(LocationSample sample) {
+        sampleExtras.write(sample, locationBroadcastIntent);
+        context.sendBroadcast(locationBroadcastIntent);
+    }
+
+    @Override
+    public void publishEvent(int what, ByteBuffer payload) {
+        // the intent is parcelled by sendBroadcast, so the array can be reused afterwards
+        if (eventBytes.length != payload.remaining()) {
+            eventBytes = new byte[payload.remaining()];
+        }
+        payload.get(eventBytes);
+        eventBroadcastIntent.putExtra(EXTRA_EVENT, what);
+        eventBroadcastIntent.putExtra(EXTRA_EVENT_PAYLOAD, eventBytes);
+        context.sendBroadcast(eventBroadcastIntent);
+    }
+
+    /**
+     * Static handler for incoming messages from serviceProxy
+     */
+    private static class ProxyMessageHandler extends Handler {
+
+        /**
+         * Weak reference to {@link MessengerServiceTransport} to avoid mem leaks.
+         */
+        private final WeakReference<MessengerServiceTransport> transportWeakReference;
+
+        private ProxyMessageHandler(WeakReference<MessengerServiceTransport> transportWeakReference) {
+            this.transportWeakReference = transportWeakReference;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            MessengerServiceTransport transport = transportWeakReference.get();
+            if (transport == null || transport.commandHandler == null) {
+                new Tale("Service has died. Couldn't process message " + msg.what).at().tell();
+                return;
+            }
+            Bundle data = msg.peekData();
+            if (msg.what == MSG_BATCH) {
+                int[] whats = data != null ? data.getIntArray(KEY_BATCH) : null;
+                if (whats != null) {
+                    for (int i = 0; i < whats.length; i++) {
+                        transport.commandHandler.onCommand(whats[i],
+                                payload(data, KEY_PAYLOAD + i));
+                    }
+                }
+            } else {
+                transport.commandHandler.onCommand(msg.what,
+                        data != null ? payload(data, KEY_PAYLOAD) : null);
+            }
+        }
+
+        private static Object payload(Bundle data, String key) {
+            Object payload = data.get(key);
+            if (payload instanceof ParcelFileDescriptor) {
+                // write end of a stream request pipe
+                payload = new ParcelFileDescriptor.AutoCloseOutputStream(
+                        (ParcelFileDescriptor) payload).getChannel();
+            }
+            return payload;
+        }
+    }
+}
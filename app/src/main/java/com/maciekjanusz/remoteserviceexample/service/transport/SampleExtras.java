@@ -0,0 +1,46 @@
+package com.maciekjanusz.remoteserviceexample.service.transport;
+
+import android.content.Intent;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.track.TrackRecords;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes and reads {@link LocationSample} as a single byte array intent extra - a track record
+ * followed by elapsedRealtimeNanos - so that no Location object, nor boxed primitives of separate
+ * extras, need to be created on either side of the broadcast.
+ *
+ * The written array is reused for every sample, which is fine as long as the intent
+ * gets sent (parcelled) before the next write.
+ */
+final class SampleExtras {
+
+    private static final String EXTRA_SAMPLE = "extra_sample";
+
+    private static final int SIZE = TrackRecords.RECORD_SIZE + 8;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+
+    void write(LocationSample sample, Intent intent) {
+        buffer.clear();
+        TrackRecords.write(sample, buffer);
+        buffer.putLong(sample.elapsedRealtimeNanos);
+        intent.putExtra(EXTRA_SAMPLE, buffer.array());
+    }
+
+    /**
+     * @return false if the intent carries no sample
+     */
+    static boolean read(Intent intent, LocationSample sample) {
+        byte[] bytes = intent.getByteArrayExtra(EXTRA_SAMPLE);
+        if (bytes == null || bytes.length < SIZE) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        TrackRecords.read(buffer, sample);
+        sample.elapsedRealtimeNanos = buffer.getLong();
+        return true;
+    }
+}
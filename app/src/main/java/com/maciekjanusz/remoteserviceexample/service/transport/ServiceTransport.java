@@ -0,0 +1,41 @@
+package com.maciekjanusz.remoteserviceexample.service.transport;
+
+import android.support.annotation.Nullable;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Service end of the channel between the tracking service and its clients.
+ * See {@link ClientTransport}.
+ */
+public interface ServiceTransport {
+
+    /**
+     * Sets the receiver of commands sent through {@link ClientTransport#send(int, Object)}
+     * and {@link ClientTransport#requestStream(int)} - the latter carry a
+     * {@link java.nio.channels.WritableByteChannel} payload, which the handler has to close.
+     * @param commandHandler handler, called on the service's main thread
+     */
+    void setCommandHandler(CommandHandler commandHandler);
+
+    /**
+     * Publishes a location fix to the clients.
+     * The sample may be reused by the caller after this method returns.
+     * @param sample location fix to publish
+     */
+    void publishLocation(LocationSample sample);
+
+    /**
+     * Publishes an event other than location fix to the clients.
+     * The buffer may be reused by the caller after this method returns.
+     * @param what event identifier, one of TrackingService.EVENT_* constants
+     * @param payload encoded event - remaining bytes of the buffer, which get consumed
+     */
+    void publishEvent(int what, ByteBuffer payload);
+
+    interface CommandHandler {
+        void onCommand(int what, @Nullable Object payload);
+    }
+}
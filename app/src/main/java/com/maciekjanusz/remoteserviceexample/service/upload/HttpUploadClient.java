@@ -0,0 +1,73 @@
+package com.maciekjanusz.remoteserviceexample.service.upload;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads batches as HTTP POST requests:
+ *
+ * Content-Type: application/octet-stream, Content-Encoding: gzip - the compact track format
+ * X-Track-From, X-Track-To - record range of the batch, for the backend to deduplicate retries
+ *
+ * Any 2xx response acknowledges the batch.
+ */
+public class HttpUploadClient implements UploadClient {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(15);
+    private static final int READ_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(30);
+
+    private final URL url;
+    private final byte[] drainBuffer = new byte[512];
+
+    public HttpUploadClient(URL url) {
+        this.url = url;
+    }
+
+    @Override
+    public void upload(long fromRecord, long toRecord, byte[] body, int length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setFixedLengthStreamingMode(length);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setRequestProperty("X-Track-From", Long.toString(fromRecord));
+            connection.setRequestProperty("X-Track-To", Long.toString(toRecord));
+
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(body, 0, length);
+            } finally {
+                out.close();
+            }
+
+            int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw new IOException("Upload rejected with HTTP " + status);
+            }
+            drain(connection.getInputStream());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Reads the response out, so that the connection can be reused
+     */
+    private void drain(InputStream in) throws IOException {
+        try {
+            while (in.read(drainBuffer) >= 0) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.maciekjanusz.remoteserviceexample.service.upload;
+
+import com.maciekjanusz.remoteserviceexample.service.track.CompactTrackWriter;
+import com.maciekjanusz.remoteserviceexample.service.track.TrackLog;
+import com.maciekjanusz.tale.Tale;
+import com.maciekjanusz.tale.TaleLimit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Ships the persisted track to a backend, in batches read straight from the {@link TrackLog}.
+ *
+ * A batch is uploaded once it's full ({@link #setBatchLimits(int, long) max records}) or its first
+ * record has been waiting for the max delay, so the radio wakes up rarely. Batches are encoded
+ * in the compact track format and gzipped. The {@link UploadCursor} is committed only after the
+ * backend acknowledges a batch - a failed or interrupted upload is retried from the same record,
+ * with exponential backoff, also across service restarts.
+ *
+ * Runs on a thread of its own, reading records the service has flushed to the track log. The thread
+ * is never interrupted: the track log's channel would get closed for the service too.
+ */
+public class TrackUploader {
+
+    static final int DEFAULT_MAX_BATCH_RECORDS = 2048;
+    static final long DEFAULT_MAX_BATCH_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(15);
+    static final long DEFAULT_POLL_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    static final long DEFAULT_INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    static final long DEFAULT_MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private static final TaleLimit FAILURE_LOG_LIMIT = TaleLimit.perSecond(1);
+
+    private final TrackLog trackLog;
+    private final UploadCursor cursor;
+    private final UploadClient client;
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+
+    private int maxBatchRecords = DEFAULT_MAX_BATCH_RECORDS;
+    private long maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_BATCH_DELAY_MILLIS);
+    private long pollIntervalMillis = DEFAULT_POLL_INTERVAL_MILLIS;
+    private long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    private long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+    /**
+     * Encoder and body buffer, reused for every batch
+     */
+    private final CompactTrackWriter writer = new CompactTrackWriter();
+    private final BodyBuffer body = new BodyBuffer();
+
+    /**
+     * Monotonic time records have been first seen waiting for upload, -1 if none wait
+     */
+    private long pendingSince = -1;
+    private int failures = 0;
+    private volatile boolean stopped = false;
+
+    private final Runnable checkTask = new Runnable() {
+        @Override
+        public void run() {
+            if (stopped) {
+                return;
+            }
+            long delay;
+            try {
+                delay = check();
+            } catch (RuntimeException e) {
+                // a bug in the encoder or client mustn't end uploads for good
+                failures++;
+                delay = backoffMillis(failures);
+                if (FAILURE_LOG_LIMIT.allow()) {
+                    new Tale("Upload check failed (" + failures + "x), retrying in " + delay
+                            + " ms: " + e).at().tell();
+                }
+            }
+            if (!stopped) {
+                executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    };
+
+    public TrackUploader(TrackLog trackLog, UploadCursor cursor, UploadClient client) {
+        this.trackLog = trackLog;
+        this.cursor = cursor;
+        this.client = client;
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * @param maxRecords maximum number of records in a batch
+     * @param maxDelayMillis longest time a record waits for its batch to fill up
+     * @return this uploader
+     */
+    public TrackUploader setBatchLimits(int maxRecords, long maxDelayMillis) {
+        this.maxBatchRecords = maxRecords;
+        this.maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        return this;
+    }
+
+    /**
+     * @param pollIntervalMillis interval of checking the track log for new records
+     * @return this uploader
+     */
+    public TrackUploader setPollInterval(long pollIntervalMillis) {
+        this.pollIntervalMillis = pollIntervalMillis;
+        return this;
+    }
+
+    /**
+     * @param initialMillis delay of the first retry, doubled with every consecutive failure
+     * @param maxMillis maximum delay between retries
+     * @return this uploader
+     */
+    public TrackUploader setBackoff(long initialMillis, long maxMillis) {
+        this.initialBackoffMillis = initialMillis;
+        this.maxBackoffMillis = maxMillis;
+        return this;
+    }
+
+    /**
+     * Starts uploading in background. Call once.
+     */
+    public void start() {
+        executor.execute(checkTask);
+    }
+
+    /**
+     * Stops uploading. An upload in progress isn't interrupted, it completes or fails in background
+     * - either way it's committed or retried by the next start, as usual.
+     */
+    public void stop() {
+        stopped = true;
+        executor.shutdown();
+    }
+
+    /**
+     * Uploads a batch if one is due.
+     * @return delay of the next check in milliseconds
+     */
+    private long check() {
+        long from = cursor.position();
+        long flushed = trackLog.flushedSize();
+        if (from > flushed) {
+            new Tale("Track log shorter than upload cursor, starting over").at().tell();
+            from = 0;
+        }
+        long available = flushed - from;
+        if (available == 0) {
+            pendingSince = -1;
+            return pollIntervalMillis;
+        }
+        long now = System.nanoTime();
+        if (pendingSince < 0) {
+            pendingSince = now;
+        }
+        long waited = now - pendingSince;
+        if (available < maxBatchRecords && waited < maxBatchDelayNanos) {
+            return Math.min(pollIntervalMillis,
+                    TimeUnit.NANOSECONDS.toMillis(maxBatchDelayNanos - waited) + 1);
+        }
+
+        long to = from + Math.min(available, maxBatchRecords);
+        try {
+            encode(from, to);
+            client.upload(from, to, body.bytes(), body.size());
+            cursor.commit(to);
+        } catch (IOException e) {
+            failures++;
+            long backoff = backoffMillis(failures);
+            if (FAILURE_LOG_LIMIT.allow()) {
+                new Tale("Upload of records " + from + "-" + to + " failed (" + failures
+                        + "x), retrying in " + backoff + " ms: " + e).at().tell();
+            }
+            return backoff;
+        }
+        failures = 0;
+        if (to == flushed) {
+            pendingSince = -1;
+            return pollIntervalMillis;
+        }
+        // backlog - records left over have been waiting since pendingSince already
+        return 0;
+    }
+
+    /**
+     * @return initial backoff doubled per consecutive failure, capped at the maximum
+     */
+    long backoffMillis(int failures) {
+        long backoff = initialBackoffMillis;
+        for (int i = 1; i < failures && backoff < maxBackoffMillis; i++) {
+            backoff *= 2;
+        }
+        return Math.min(backoff, maxBackoffMillis);
+    }
+
+    /**
+     * Encodes records into {@link #body}: compact track format, gzipped.
+     */
+    private void encode(long from, long to) throws IOException {
+        body.reset();
+        GZIPOutputStream gzip = new GZIPOutputStream(body, 8192);
+        try {
+            writer.write(trackLog, from, to, Channels.newChannel(gzip));
+        } finally {
+            gzip.close();
+        }
+    }
+
+    /**
+     * Byte array stream exposing its array, so that the body isn't copied
+     */
+    private static class BodyBuffer extends ByteArrayOutputStream {
+        BodyBuffer() {
+            super(64 * 1024);
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+}
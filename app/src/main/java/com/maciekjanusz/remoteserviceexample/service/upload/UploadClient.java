@@ -0,0 +1,20 @@
+package com.maciekjanusz.remoteserviceexample.service.upload;
+
+import java.io.IOException;
+
+/**
+ * Sends a batch of track records to the backend, see {@link TrackUploader}.
+ */
+public interface UploadClient {
+
+    /**
+     * Uploads a batch, blocking until the backend acknowledges it. The same range may be uploaded
+     * again if the acknowledgment gets lost, so the backend should treat ranges idempotently.
+     * @param fromRecord track log index of the first record in the batch
+     * @param toRecord track log index past the last record
+     * @param body gzip compressed batch in the compact track format
+     * @param length number of body bytes, from the beginning of the array
+     * @throws IOException if the batch hasn't been acknowledged
+     */
+    void upload(long fromRecord, long toRecord, byte[] body, int length) throws IOException;
+}
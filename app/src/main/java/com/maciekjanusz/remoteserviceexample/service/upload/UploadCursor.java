@@ -0,0 +1,69 @@
+package com.maciekjanusz.remoteserviceexample.service.upload;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Persisted position of the upload in the track log - index of the first record not acknowledged
+ * by the backend yet. Commits replace the file atomically, so a crash leaves either the old
+ * or the new position.
+ */
+public class UploadCursor {
+
+    private final File file;
+    private final File tempFile;
+    private long position;
+
+    /**
+     * Opens the cursor, starting at 0 if the file doesn't exist yet.
+     * @throws IOException if the file can't be read
+     */
+    public UploadCursor(File file) throws IOException {
+        this.file = file;
+        this.tempFile = new File(file.getPath() + ".tmp");
+        position = read(file);
+    }
+
+    public synchronized long position() {
+        return position;
+    }
+
+    /**
+     * Persists new position.
+     * @throws IOException if the position can't be written, it's left unchanged then
+     */
+    public synchronized void commit(long position) throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        DataOutputStream out = new DataOutputStream(fileOut);
+        try {
+            out.writeLong(position);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("Couldn't replace " + file);
+        }
+        this.position = position;
+    }
+
+    private static long read(File file) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+        } catch (FileNotFoundException e) {
+            return 0;
+        }
+        try {
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.maciekjanusz.remoteserviceexample;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TextBufferTest {
+
+    private final TextBuffer buffer = new TextBuffer(4);
+
+    @Test
+    public void formatsIntegers() {
+        assertEquals("0", buffer.clear().append(0).toString());
+        assertEquals("-1234567", buffer.clear().append(-1234567).toString());
+        assertEquals("1:02:03", buffer.clear().append(1).append(':').append(2, 2)
+                .append(':').append(3, 2).toString());
+        assertEquals(String.valueOf(Long.MIN_VALUE), buffer.clear().append(Long.MIN_VALUE).toString());
+    }
+
+    @Test
+    public void formatsFixedPoint() {
+        assertEquals("52.123457, 21.000001", buffer.clear().append(52.1234567, 6)
+                .append(", ").append(21.000001, 6).toString());
+        assertEquals("-0.5", buffer.clear().append(-0.45, 1).toString());
+        assertEquals("0.0", buffer.clear().append(-0.01, 1).toString());
+        assertEquals("10", buffer.clear().append(9.6, 0).toString());
+        assertEquals("1.5 m/s", buffer.clear().append(1.5f, 1).append(" m/s").toString());
+    }
+
+    @Test
+    public void reusesBuffer() {
+        buffer.clear().append("a long text growing the buffer");
+        assertEquals(30, buffer.length());
+        assertEquals("ok", buffer.clear().append("ok").toString());
+    }
+}
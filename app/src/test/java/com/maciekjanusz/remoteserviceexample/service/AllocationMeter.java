@@ -0,0 +1,52 @@
+package com.maciekjanusz.remoteserviceexample.service;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures bytes allocated by all live threads, using the HotSpot specific thread MX bean.
+ * Threads which terminate between {@link #start()} and {@link #bytes()} are not accounted for,
+ * so keep the measured threads alive for the whole measurement.
+ */
+public class AllocationMeter {
+
+    private final com.sun.management.ThreadMXBean threadBean;
+    private long startBytes;
+
+    public AllocationMeter() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        threadBean = bean instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) bean : null;
+    }
+
+    /**
+     * @return false if the JVM doesn't support allocation measurement
+     */
+    public boolean isSupported() {
+        return threadBean != null && threadBean.isThreadAllocatedMemorySupported();
+    }
+
+    public void start() {
+        startBytes = totalAllocatedBytes();
+    }
+
+    /**
+     * @return bytes allocated since {@link #start()}, or -1 if not supported
+     */
+    public long bytes() {
+        return isSupported() ? totalAllocatedBytes() - startBytes : -1;
+    }
+
+    private long totalAllocatedBytes() {
+        if (!isSupported()) {
+            return 0;
+        }
+        long total = 0;
+        for (long bytes : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,191 @@
+package com.maciekjanusz.remoteserviceexample.service;
+
+import android.support.annotation.Nullable;
+
+import com.maciekjanusz.remoteserviceexample.service.track.TrackLog;
+import com.maciekjanusz.remoteserviceexample.service.track.TrackRecords;
+import com.maciekjanusz.remoteserviceexample.service.transport.ServiceTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.EVENT_TRACK_SNAPSHOT;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.EVENT_TRACK_SUMMARY;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_ATTACH_CONSUMER;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_DETACH_CONSUMER;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_GET_CURRENT_STATE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link TrackingEngine} publishing only to attached consumers, with catch-up on attach.
+ */
+public class ConsumerDeliveryTest {
+
+    private File trackFile;
+    private TrackLog trackLog;
+    private RecordingTransport transport;
+    private TrackingEngine engine;
+    private final LocationSample sample = new LocationSample();
+
+    @Before
+    public void setUp() throws Exception {
+        trackFile = File.createTempFile("consumers", ".log");
+        trackLog = new TrackLog(trackFile);
+        transport = new RecordingTransport();
+        engine = new TrackingEngine(transport, trackLog);
+    }
+
+    @After
+    public void tearDown() {
+        engine.close();
+        trackFile.delete();
+    }
+
+    @Test
+    public void recordsWithoutIpcWhileNoConsumers() throws Exception {
+        fixes(0, 10);
+        assertEquals(0, transport.locations);
+        assertTrue(transport.events.isEmpty());
+        assertEquals(10, trackLog.size());
+        assertFalse(engine.hasConsumers());
+    }
+
+    @Test
+    public void answersCurrentStateOnlyToConsumers() {
+        fixes(0, 10);
+        engine.onCommand(MSG_GET_CURRENT_STATE, null);
+        assertEquals(0, transport.locations);
+        assertTrue(transport.events.isEmpty());
+
+        engine.onCommand(MSG_ATTACH_CONSUMER, lastFixTime(9000));
+        transport.events.clear();
+        engine.onCommand(MSG_GET_CURRENT_STATE, null);
+        assertEquals(1, transport.locations);
+        assertEquals(EVENT_TRACK_SUMMARY, (int) transport.events.get(0));
+    }
+
+    @Test
+    public void catchesUpAttachingConsumer() {
+        fixes(0, 10);
+        engine.onCommand(MSG_ATTACH_CONSUMER, lastFixTime(Long.MIN_VALUE));
+        assertEquals(10, snapshotTimes().size());
+        assertEquals(EVENT_TRACK_SUMMARY, (int) transport.events.get(1));
+
+        fixes(10, 12);
+        assertEquals(2, transport.locations);
+
+        engine.onCommand(MSG_DETACH_CONSUMER, null);
+        fixes(12, 20);
+        assertEquals(2, transport.locations);
+
+        // consumer has seen fixes until 11
+        transport.events.clear();
+        transport.snapshots.clear();
+        engine.onCommand(MSG_ATTACH_CONSUMER, lastFixTime(11000));
+        List<Long> times = snapshotTimes();
+        assertEquals(8, times.size());
+        assertEquals(12000, (long) times.get(0));
+        assertEquals(19000, (long) times.get(7));
+    }
+
+    @Test
+    public void limitsSnapshotToMostRecentFixes() {
+        fixes(0, TrackingEngine.MAX_SNAPSHOT_FIXES + 100);
+        engine.onCommand(MSG_ATTACH_CONSUMER, null);
+        List<Long> times = snapshotTimes();
+        assertEquals(TrackingEngine.MAX_SNAPSHOT_FIXES, times.size());
+        assertEquals(100000, (long) times.get(0));
+
+        // nothing missed, no snapshot
+        transport.snapshots.clear();
+        engine.onCommand(MSG_ATTACH_CONSUMER,
+                lastFixTime((TrackingEngine.MAX_SNAPSHOT_FIXES + 99) * 1000L));
+        assertTrue(transport.snapshots.isEmpty());
+        assertTrue(engine.hasConsumers());
+
+        engine.detachAllConsumers();
+        fixes(1000, 1001);
+        assertFalse(engine.hasConsumers());
+        assertEquals(0, transport.locations);
+    }
+
+    @Test
+    public void catchesUpFromTrackOfPreviousRun() throws Exception {
+        int fixes = TrackingEngine.RECENT_TRACK_CAPACITY + 100;
+        fixes(0, fixes);
+        trackLog.flush();
+        engine.close();
+
+        // a restarted service only reads the tail of the log into the recent track
+        trackLog = new TrackLog(trackFile);
+        engine = new TrackingEngine(transport, trackLog);
+        assertEquals(100, engine.recentTrack().firstIndex());
+        assertEquals(fixes, engine.recentTrack().endIndex());
+        engine.onCommand(MSG_ATTACH_CONSUMER, lastFixTime((fixes - 11) * 1000L));
+        List<Long> times = snapshotTimes();
+        assertEquals(10, times.size());
+        assertEquals((fixes - 1) * 1000L, (long) times.get(9));
+    }
+
+    private void fixes(int from, int to) {
+        for (int i = from; i < to; i++) {
+            sample.reset();
+            sample.time = i * 1000L;
+            sample.latitude = 52 + i * 1e-4;
+            sample.longitude = 21;
+            engine.onLocationSample(sample);
+        }
+    }
+
+    private static byte[] lastFixTime(long time) {
+        return ByteBuffer.allocate(8).putLong(time).array();
+    }
+
+    private List<Long> snapshotTimes() {
+        List<Long> times = new ArrayList<>();
+        LocationSample record = new LocationSample();
+        for (ByteBuffer snapshot : transport.snapshots) {
+            while (snapshot.hasRemaining()) {
+                TrackRecords.read(snapshot, record);
+                times.add(record.time);
+            }
+        }
+        return times;
+    }
+
+    /**
+     * Synchronous transport recording what gets published
+     */
+    private static class RecordingTransport implements ServiceTransport {
+        int locations = 0;
+        final List<Integer> events = new ArrayList<>();
+        final List<ByteBuffer> snapshots = new ArrayList<>();
+
+        @Override
+        public void setCommandHandler(CommandHandler commandHandler) {
+        }
+
+        @Override
+        public void publishLocation(LocationSample sample) {
+            locations++;
+        }
+
+        @Override
+        public void publishEvent(int what, ByteBuffer payload) {
+            events.add(what);
+            ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+            copy.put(payload).flip();
+            if (what == EVENT_TRACK_SNAPSHOT) {
+                snapshots.add(copy);
+            }
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package com.maciekjanusz.remoteserviceexample.service;
+
+import android.support.annotation.Nullable;
+
+import com.maciekjanusz.remoteserviceexample.service.geofence.Geofence;
+import com.maciekjanusz.remoteserviceexample.service.geofence.GeofenceUpdate;
+import com.maciekjanusz.remoteserviceexample.service.source.LocationSource;
+import com.maciekjanusz.remoteserviceexample.service.source.SyntheticLocationSource;
+import com.maciekjanusz.remoteserviceexample.service.stats.TrackSummary;
+import com.maciekjanusz.remoteserviceexample.service.stats.TrackSummaryListener;
+import com.maciekjanusz.remoteserviceexample.service.track.TrackLog;
+import com.maciekjanusz.remoteserviceexample.service.transport.ClientTransport;
+import com.maciekjanusz.remoteserviceexample.service.transport.LoopbackTransport;
+import com.maciekjanusz.remoteserviceexample.service.transport.ServiceTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * GC / allocation benchmark of the path a fix takes from a background {@link LocationSource}
+ * thread: {@link LocationRetriever}, {@link SampleHandoff} with its pool over to the main thread,
+ * {@link TrackingEngine} (persisting, statistics, geofences), transport and {@link ServiceProxy}
+ * listeners. Run {@link #main(String[])} for a longer run with -Dpipeline.fixes.
+ *
+ * The main thread runs posted tasks from a single slot and the transport delivers synchronously.
+ * Threads handing messages over through blocking queues (like {@link LoopbackTransport}) allocate
+ * a lock queue node whenever one of them waits - as often as scheduling makes them, which would
+ * swamp what's measured.
+ */
+public class SamplePipelineAllocationTest {
+
+    /**
+     * Enough for the JIT to compile the hot path, so that escape analysis is in effect
+     */
+    private static final int WARM_UP_FIXES = 200000;
+
+    private File trackFile;
+    private DirectTransport transport;
+    private TrackingEngine engine;
+    private ServiceProxy proxy;
+    private MainThread mainThread;
+    private LocationRetriever retriever;
+    private Counter counter;
+
+    @Before
+    public void setUp() throws Exception {
+        trackFile = File.createTempFile("pipeline", ".log");
+        transport = new DirectTransport();
+        engine = new TrackingEngine(transport, new TrackLog(trackFile));
+        proxy = new ServiceProxy(transport);
+        counter = new Counter();
+        proxy.addLocationListener(counter);
+        proxy.addTrackSummaryListener(counter);
+        proxy.attach();
+        proxy.toggleService();
+        assertTrue("service not connected", transport.isConnected());
+
+        GeofenceUpdate update = new GeofenceUpdate();
+        for (int i = 0; i < 1000; i++) {
+            update.add(new Geofence(i, 52 + (i % 40) * 0.005, 21 + (i / 40) * 0.005, 150, 60000));
+        }
+        proxy.updateGeofences(update);
+
+        mainThread = new MainThread();
+        mainThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (retriever != null) {
+            retriever.stopRetrievingLocation();
+        }
+        mainThread.interrupt();
+        mainThread.join();
+        engine.close();
+        trackFile.delete();
+    }
+
+    @Test
+    public void pipelineDoesntAllocatePerFix() throws Exception {
+        Result result = run(200000);
+        result.print();
+        assertEquals(200000, result.fixes);
+        assertTrue("no summaries", result.summaries > 0);
+        if (result.allocatedBytes >= 0) {
+            // the smallest object takes 16 bytes - what's left is the periodic state saves
+            assertTrue("allocated " + result.allocatedBytes, result.bytesPerFix() < 8);
+        }
+    }
+
+    @Test
+    public void poolStopsAllocatingAfterWarmUp() {
+        LocationSamplePool pool = new LocationSamplePool(4);
+        LocationSample[] held = new LocationSample[4];
+        for (int round = 0; round < 1000; round++) {
+            for (int i = 0; i < held.length; i++) {
+                held[i] = pool.acquire();
+            }
+            for (LocationSample sample : held) {
+                pool.release(sample);
+            }
+        }
+        assertEquals(0, pool.misses());
+        pool.acquire();
+        for (int i = 0; i < held.length; i++) {
+            held[i] = pool.acquire();
+        }
+        assertEquals(1, pool.misses());
+    }
+
+    public static void main(String[] args) throws Exception {
+        SamplePipelineAllocationTest test = new SamplePipelineAllocationTest();
+        test.setUp();
+        try {
+            test.run(Integer.getInteger("pipeline.fixes", 2000000)).print();
+        } finally {
+            test.tearDown();
+        }
+    }
+
+    private Result run(int fixes) throws Exception {
+        GatedSource source = new GatedSource(WARM_UP_FIXES + fixes);
+        retriever = new LocationRetriever(source);
+        retriever.startRetrievingLocation(
+                new SampleHandoff(mainThread, engine, TrackingService.HANDOFF_CAPACITY));
+        source.permit(WARM_UP_FIXES);
+        counter.await(WARM_UP_FIXES);
+
+        AllocationMeter allocationMeter = new AllocationMeter();
+        long gcCount = gcCount();
+        int summaries = counter.summaries;
+        long allocated = -1;
+        if (allocationMeter.isSupported()) {
+            allocationMeter.start();
+        }
+        long start = System.nanoTime();
+        // the source thread stays alive, waiting for more, so its allocation is accounted for
+        source.permit(WARM_UP_FIXES + fixes);
+        counter.await(WARM_UP_FIXES + fixes);
+        long elapsed = System.nanoTime() - start;
+        if (allocationMeter.isSupported()) {
+            allocated = allocationMeter.bytes();
+        }
+        return new Result(counter.fixes - WARM_UP_FIXES, counter.summaries - summaries, elapsed, allocated,
+                gcCount() - gcCount);
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    /**
+     * Synthetic source emitting on its own thread as many fixes as the test permits
+     */
+    private static class GatedSource extends SyntheticLocationSource {
+        private volatile int permitted = 0;
+        private int emitted = 0;
+
+        GatedSource(int count) {
+            super(9, 52.1, 21.1, 1442743200000L, 1000, 4, count);
+        }
+
+        void permit(int fixes) {
+            permitted = fixes;
+        }
+
+        @Override
+        protected boolean next(LocationSample out) {
+            while (emitted >= permitted) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            emitted++;
+            return super.next(out);
+        }
+    }
+
+    /**
+     * Stand-in for the main looper, running one posted task at a time - enough for
+     * {@link SampleHandoff}, which posts only when its previous drain task has finished
+     */
+    private static class MainThread extends Thread implements Executor {
+        private final AtomicReference<Runnable> posted = new AtomicReference<>();
+
+        MainThread() {
+            super("main-looper");
+            setDaemon(true);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (!posted.compareAndSet(null, command)) {
+                throw new RejectedExecutionException("A task is already posted");
+            }
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                Runnable task = posted.getAndSet(null);
+                if (task != null) {
+                    task.run();
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts deliveries on the main thread
+     */
+    private static class Counter implements LocationSampleListener, TrackSummaryListener {
+        volatile int fixes = 0;
+        volatile int summaries = 0;
+
+        @Override
+        public void onLocationSample(LocationSample sample) {
+            fixes++;
+        }
+
+        @Override
+        public void onTrackSummary(TrackSummary summary) {
+            summaries++;
+        }
+
+        void await(int expectedFixes) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 60000;
+            while (fixes < expectedFixes && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    /**
+     * Both ends of a transport, delivering on the calling thread
+     */
+    private static class DirectTransport implements ClientTransport, ServiceTransport {
+        Callbacks callbacks;
+        CommandHandler commandHandler;
+        boolean connected = false;
+        boolean attached = false;
+
+        @Override
+        public void setCallbacks(Callbacks callbacks) {
+            this.callbacks = callbacks;
+        }
+
+        @Override
+        public void setCommandHandler(CommandHandler commandHandler) {
+            this.commandHandler = commandHandler;
+        }
+
+        @Override
+        public void startService() {
+            connect();
+        }
+
+        @Override
+        public void stopService() {
+            connected = false;
+            callbacks.onDisconnected();
+        }
+
+        @Override
+        public void connect() {
+            if (!connected) {
+                connected = true;
+                callbacks.onConnected();
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            connected = false;
+        }
+
+        @Override
+        public void attach() {
+            attached = true;
+        }
+
+        @Override
+        public void detach() {
+            attached = false;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean canCarry(@Nullable Object payload) {
+            return true;
+        }
+
+        @Override
+        public boolean send(int what, @Nullable Object payload) {
+            if (connected) {
+                commandHandler.onCommand(what, payload);
+            }
+            return connected;
+        }
+
+        @Override
+        public boolean sendBatch(int[] whats, Object[] payloads, int count) {
+            for (int i = 0; i < count; i++) {
+                if (!send(whats[i], payloads[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public ReadableByteChannel requestStream(int what) throws IOException {
+            throw new IOException("Not supported");
+        }
+
+        @Override
+        public void publishLocation(LocationSample sample) {
+            if (attached) {
+                callbacks.onLocation(sample);
+            }
+        }
+
+        @Override
+        public void publishEvent(int what, ByteBuffer payload) {
+            if (attached) {
+                callbacks.onEvent(what, payload);
+            }
+        }
+    }
+
+    private static class Result {
+        final int fixes;
+        final int summaries;
+        final long elapsedNanos;
+        final long allocatedBytes;
+        final long collections;
+
+        Result(int fixes, int summaries, long elapsedNanos, long allocatedBytes, long collections) {
+            this.fixes = fixes;
+            this.summaries = summaries;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.collections = collections;
+        }
+
+        double bytesPerFix() {
+            return fixes > 0 ? (double) allocatedBytes / fixes : 0;
+        }
+
+        void print() {
+            System.out.println(String.format(
+                    "sample pipeline: %d fixes, %d summaries in %.2f s, %.0f fixes/s",
+                    fixes, summaries, elapsedNanos / 1e9, fixes / (elapsedNanos / 1e9)));
+            System.out.println(String.format("  allocation: %d bytes, %.2f bytes/fix, %d collections",
+                    allocatedBytes, bytesPerFix(), collections));
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.maciekjanusz.remoteserviceexample.service;
+
+import android.support.annotation.Nullable;
+
+import com.maciekjanusz.remoteserviceexample.service.track.TrackRecords;
+import com.maciekjanusz.remoteserviceexample.service.transport.ClientTransport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.EVENT_TRACK_SNAPSHOT;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_GET_CURRENT_STATE;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_LOG;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_UPDATE_GEOFENCES;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ServiceProxyCommandTest {
+
+    private final RecordingTransport transport = new RecordingTransport();
+    private final ManualExecutor executor = new ManualExecutor();
+    private ServiceProxy proxy;
+
+    @Before
+    public void setUp() {
+        proxy = new ServiceProxy(transport, executor);
+    }
+
+    @Test
+    public void replaysQueuedCommandsInOrderOnConnect() {
+        assertTrue(proxy.sendMessage(MSG_UPDATE_GEOFENCES, new byte[]{1}));
+        proxy.requestCurrentState();
+        proxy.sendMessage(MSG_LOG, "a");
+        proxy.requestCurrentState();
+        assertTrue(transport.transactions.isEmpty());
+
+        transport.connectService();
+        assertEquals(1, transport.transactions.size());
+        assertEquals(Arrays.asList(MSG_UPDATE_GEOFENCES, MSG_GET_CURRENT_STATE, MSG_LOG, MSG_LOG),
+                transport.transactions.get(0));
+        assertEquals(Arrays.<Object>asList("a", "Hello bound service!"),
+                transport.payloads.subList(2, 4));
+
+        // flush scheduled by the hello message finds nothing left
+        executor.runAll();
+        assertEquals(1, transport.transactions.size());
+    }
+
+    @Test
+    public void batchesCommandsSentInARow() {
+        transport.connectService();
+        executor.runAll();
+        transport.transactions.clear();
+
+        proxy.sendMessage(MSG_LOG, "a");
+        proxy.requestCurrentState();
+        proxy.requestCurrentState();
+        proxy.sendMessage(MSG_LOG, "b");
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        assertEquals(1, transport.transactions.size());
+        assertEquals(Arrays.asList(MSG_LOG, MSG_GET_CURRENT_STATE, MSG_LOG),
+                transport.transactions.get(0));
+
+        proxy.requestCurrentState();
+        executor.runAll();
+        assertEquals(2, transport.transactions.size());
+        assertEquals(Arrays.asList(MSG_GET_CURRENT_STATE), transport.transactions.get(1));
+    }
+
+    @Test
+    public void queueIsBounded() {
+        for (int i = 0; i < ServiceProxy.COMMAND_QUEUE_CAPACITY; i++) {
+            assertTrue(proxy.sendMessage(MSG_LOG, "message " + i));
+        }
+        assertFalse(proxy.sendMessage(MSG_LOG, "overflow"));
+        // coalesced with nothing - still no room
+        assertFalse(proxy.sendMessage(MSG_GET_CURRENT_STATE, null));
+
+        // no room for the hello message either
+        transport.connectService();
+        executor.runAll();
+        assertEquals(ServiceProxy.COMMAND_QUEUE_CAPACITY, transport.payloads.size());
+        assertEquals("message 63", transport.payloads.get(ServiceProxy.COMMAND_QUEUE_CAPACITY - 1));
+    }
+
+    @Test
+    public void keepsCommandsWhenSendFails() {
+        proxy.sendMessage(MSG_LOG, "a");
+        proxy.sendMessage(MSG_LOG, "b");
+        transport.failNext = true;
+        transport.connectService();
+        // service died during send, before the disconnection is reported
+        assertTrue(transport.transactions.isEmpty());
+        assertTrue(transport.isConnected());
+
+        transport.connectService();
+        assertEquals(Arrays.asList("a", "b", "Hello bound service!", "Hello bound service!"),
+                transport.payloads);
+    }
+
+    @Test
+    public void rejectsPayloadsTheTransportCantCarry() {
+        transport.connectService();
+        executor.runAll();
+        transport.payloads.clear();
+
+        proxy.sendMessage(MSG_LOG, "a");
+        assertFalse(proxy.sendMessage(MSG_LOG, new Object()));
+        proxy.sendMessage(MSG_LOG, "b");
+        executor.runAll();
+        assertEquals(Arrays.<Object>asList("a", "b"), transport.payloads);
+    }
+
+    @Test
+    public void skipsSnapshotFixesAlreadyReceived() {
+        final List<Long> times = new ArrayList<>();
+        proxy.addLocationListener(new LocationSampleListener() {
+            @Override
+            public void onLocationSample(LocationSample sample) {
+                times.add(sample.time);
+            }
+        });
+        LocationSample sample = new LocationSample();
+        sample.time = 5000;
+        proxy.onLocation(sample);
+
+        // snapshot requested by another consumer, partly overlapping what this one has
+        ByteBuffer snapshot = ByteBuffer.allocate(5 * TrackRecords.RECORD_SIZE);
+        for (int i = 3; i <= 7; i++) {
+            sample.time = i * 1000;
+            TrackRecords.write(sample, snapshot);
+        }
+        snapshot.flip();
+        proxy.onEvent(EVENT_TRACK_SNAPSHOT, snapshot);
+        assertEquals(Arrays.asList(5000L, 6000L, 7000L), times);
+    }
+
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.remove(0).run();
+            }
+        }
+    }
+
+    /**
+     * Transport recording command identifiers of each transaction
+     */
+    private static class RecordingTransport implements ClientTransport {
+        final List<List<Integer>> transactions = new ArrayList<>();
+        final List<Object> payloads = new ArrayList<>();
+        Callbacks callbacks;
+        boolean connected = false;
+        boolean failNext = false;
+
+        void connectService() {
+            connected = true;
+            callbacks.onConnected();
+        }
+
+        @Override
+        public void setCallbacks(Callbacks callbacks) {
+            this.callbacks = callbacks;
+        }
+
+        @Override
+        public void startService() {
+        }
+
+        @Override
+        public void stopService() {
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void attach() {
+        }
+
+        @Override
+        public void detach() {
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean canCarry(@Nullable Object payload) {
+            return payload == null || payload instanceof String || payload instanceof byte[];
+        }
+
+        @Override
+        public boolean send(int what, @Nullable Object payload) {
+            return sendBatch(new int[]{what}, new Object[]{payload}, 1);
+        }
+
+        @Override
+        public boolean sendBatch(int[] whats, Object[] payloads, int count) {
+            if (failNext) {
+                failNext = false;
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if (!canCarry(payloads[i])) {
+                    // the whole transaction fails
+                    return false;
+                }
+            }
+            List<Integer> transaction = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                transaction.add(whats[i]);
+                this.payloads.add(payloads[i]);
+            }
+            transactions.add(transaction);
+            return true;
+        }
+
+        @Override
+        public ReadableByteChannel requestStream(int what) throws IOException {
+            throw new IOException("Not supported");
+        }
+    }
+}
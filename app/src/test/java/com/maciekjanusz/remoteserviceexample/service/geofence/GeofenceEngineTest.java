@@ -0,0 +1,236 @@
+package com.maciekjanusz.remoteserviceexample.service.geofence;
+
+import com.maciekjanusz.remoteserviceexample.service.Geo;
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.LocationSampleListener;
+import com.maciekjanusz.remoteserviceexample.service.source.SyntheticLocationSource;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static com.maciekjanusz.remoteserviceexample.service.geofence.GeofenceEngine.TRANSITION_DWELL;
+import static com.maciekjanusz.remoteserviceexample.service.geofence.GeofenceEngine.TRANSITION_ENTER;
+import static com.maciekjanusz.remoteserviceexample.service.geofence.GeofenceEngine.TRANSITION_EXIT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GeofenceEngineTest {
+
+    private final Recorder recorder = new Recorder();
+    private final GeofenceEngine engine = new GeofenceEngine(recorder);
+    private final LocationSample sample = new LocationSample();
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    @Test
+    public void reportsEnterDwellExit() throws Exception {
+        update(new GeofenceUpdate().add(new Geofence(7, 52, 21, 100, 60000)), 1);
+
+        move(52.002, 21, 0);
+        move(52.0005, 21, 1000);
+        move(52.0001, 21, 30000);
+        move(52, 21, 61000);
+        move(52.0001, 21, 90000);
+        move(52.002, 21, 100000);
+
+        assertEquals("7:1@1000 7:4@61000 7:2@100000 ", recorder.log.toString());
+    }
+
+    @Test
+    public void matchesBruteForceOverManyFences() throws Exception {
+        Random random = new Random(5);
+        GeofenceUpdate update = new GeofenceUpdate();
+        final List<Geofence> fences = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            // a few fences big enough for the coarser grid levels
+            float radius = i % 1000 == 0 ? 5000 : i % 5000 == 1 ? 60000 : 20 + random.nextInt(300);
+            Geofence geofence = new Geofence(i, 52 + random.nextDouble() * 0.3,
+                    21 + random.nextDouble() * 0.3, radius, 0);
+            fences.add(geofence);
+            update.add(geofence);
+        }
+        update(update, fences.size());
+
+        final Set<Integer> expected = new HashSet<>();
+        new SyntheticLocationSource(11, 52.15, 21.15, 0, 1000, 15, 3000).drain(
+                new LocationSampleListener() {
+                    @Override
+                    public void onLocationSample(LocationSample sample) {
+                        engine.evaluate(sample);
+                        expected.clear();
+                        for (Geofence fence : fences) {
+                            if (Geo.distanceMeters(fence.latitude, fence.longitude,
+                                    sample.latitude, sample.longitude) <= fence.radius) {
+                                expected.add(fence.id);
+                            }
+                        }
+                        assertEquals(expected, recorder.inside);
+                    }
+                }, Integer.MAX_VALUE);
+        assertTrue("track crossed no fences", recorder.transitions > 10);
+    }
+
+    @Test
+    public void keepsStateAcrossBulkUpdates() throws Exception {
+        update(new GeofenceUpdate()
+                .add(new Geofence(1, 52, 21, 200, 0))
+                .add(new Geofence(2, 52, 21, 300, 0)), 2);
+        move(52, 21, 0);
+        assertEquals("1:1@0 2:1@0 ", recorder.log.toString());
+
+        // replace everything but fence 2, which we're still inside - no new enter
+        GeofenceUpdate update = new GeofenceUpdate().removeAll()
+                .add(new Geofence(2, 52, 21, 300, 0));
+        for (int i = 3; i < 1000; i++) {
+            update.add(new Geofence(i, 53, 22, 100, 0));
+        }
+        update(update, 998);
+        move(52, 21, 1000);
+        assertEquals("1:1@0 2:1@0 ", recorder.log.toString());
+
+        move(52.01, 21, 2000);
+        assertEquals("1:1@0 2:1@0 2:2@2000 ", recorder.log.toString());
+    }
+
+    @Test
+    public void indexesFencesOfAnyRadiusOnGridLevels() {
+        List<Geofence> fences = new ArrayList<>();
+        fences.add(new Geofence(1, 52, 21, 50, 0));
+        fences.add(new Geofence(2, 52, 21, 20000, 0));
+        fences.add(new Geofence(3, -80, 170, 3000000, 0));
+        GeofenceIndex index = new GeofenceIndex(fences, GeofenceIndex.DEFAULT_CELL_DEGREES);
+        assertEquals(3, index.levelCount());
+        assertEquals("1 2 ", candidates(index, 52, 21));
+        assertEquals("3 ", candidates(index, -80, 170));
+        assertEquals("", candidates(index, 0, 0));
+    }
+
+    @Test
+    public void dropsOldestTransitions() {
+        GeofenceTransitions transitions = new GeofenceTransitions();
+        for (int i = 0; i < 10; i++) {
+            sample.time = i;
+            transitions.onGeofenceTransition(i, TRANSITION_ENTER, sample);
+        }
+        transitions.dropOldest(7);
+        assertEquals(3, transitions.size());
+        final StringBuilder ids = new StringBuilder();
+        GeofenceTransitions.read(transitions.encoded(), new GeofenceTransitions.Listener() {
+            @Override
+            public void onGeofenceTransition(int fenceId, int transition, long time,
+                                             double latitude, double longitude) {
+                ids.append(fenceId).append('@').append(time).append(' ');
+            }
+        });
+        assertEquals("7@7 8@8 9@9 ", ids.toString());
+    }
+
+    @Test
+    public void dropsMalformedUpdates() throws Exception {
+        byte[] valid = new GeofenceUpdate().remove(3).add(new Geofence(7, 52, 21, 100, 0)).toBytes();
+        assertNotNull(GeofenceUpdate.fromBytes(valid));
+        assertNull(GeofenceUpdate.fromBytes(new byte[0]));
+        assertNull(GeofenceUpdate.fromBytes(Arrays.copyOf(valid, valid.length - 1)));
+        assertNull(GeofenceUpdate.fromBytes(Arrays.copyOf(valid, valid.length + 1)));
+        // fence offset: flag, removal count and id, addition count
+        int fence = 1 + 4 + 4 + 4;
+        assertNull(GeofenceUpdate.fromBytes(patch(valid, 1, ByteBuffer.allocate(4).putInt(-1))));
+        assertNull(GeofenceUpdate.fromBytes(patch(valid, 9,
+                ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE))));
+        assertNull(GeofenceUpdate.fromBytes(patch(valid, fence + 4,
+                ByteBuffer.allocate(8).putDouble(90.5))));
+        assertNull(GeofenceUpdate.fromBytes(patch(valid, fence + 12,
+                ByteBuffer.allocate(8).putDouble(Double.NaN))));
+        assertNull(GeofenceUpdate.fromBytes(patch(valid, fence + 20,
+                ByteBuffer.allocate(4).putFloat(Float.POSITIVE_INFINITY))));
+        assertNull(GeofenceUpdate.fromBytes(patch(valid, fence + 20,
+                ByteBuffer.allocate(4).putFloat(-1))));
+
+        // the engine keeps taking updates after a malformed one
+        engine.update(new byte[]{1, 0, 0});
+        update(new GeofenceUpdate().add(new Geofence(7, 52, 21, 100, 0)), 1);
+    }
+
+    private static byte[] patch(byte[] bytes, int offset, ByteBuffer value) {
+        byte[] patched = bytes.clone();
+        System.arraycopy(value.array(), 0, patched, offset, value.capacity());
+        return patched;
+    }
+
+    /**
+     * @return ids of fences listed in the cells of the point on all levels
+     */
+    private static String candidates(GeofenceIndex index, double latitude, double longitude) {
+        StringBuilder ids = new StringBuilder();
+        for (int level = 0; level < index.levelCount(); level++) {
+            int cell = index.findCell(level, latitude, longitude);
+            if (cell >= 0) {
+                for (int i = index.cellStart(cell); i < index.cellEnd(cell); i++) {
+                    ids.append(index.ids[index.cellFence(i)]).append(' ');
+                }
+            }
+        }
+        return ids.toString();
+    }
+
+    private void move(double latitude, double longitude, long time) {
+        sample.latitude = latitude;
+        sample.longitude = longitude;
+        sample.time = time;
+        engine.evaluate(sample);
+    }
+
+    /**
+     * Schedules update and waits until the engine picks it up, evaluating a fix far away
+     */
+    private void update(GeofenceUpdate update, int expectedSize) throws InterruptedException {
+        engine.update(update.toBytes());
+        long deadline = System.currentTimeMillis() + 5000;
+        LocationSample nowhere = new LocationSample();
+        while (engine.size() != expectedSize) {
+            assertTrue("update not applied", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+            // nowhere fix would exit active fences, so only poll when there are none
+            if (recorder.inside.isEmpty()) {
+                engine.evaluate(nowhere);
+            } else {
+                sample.time++;
+                engine.evaluate(sample);
+                sample.time--;
+            }
+        }
+    }
+
+    private static class Recorder implements GeofenceEngine.TransitionListener {
+        final StringBuilder log = new StringBuilder();
+        final Set<Integer> inside = new HashSet<>();
+        int transitions = 0;
+
+        @Override
+        public void onGeofenceTransition(int fenceId, int transition, LocationSample sample) {
+            transitions++;
+            if (transition == TRANSITION_ENTER) {
+                assertTrue(inside.add(fenceId));
+            } else if (transition == TRANSITION_EXIT) {
+                assertTrue(inside.remove(fenceId));
+            } else {
+                assertEquals(TRANSITION_DWELL, transition);
+            }
+            log.append(fenceId).append(':').append(transition)
+                    .append('@').append(sample.time).append(' ');
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.maciekjanusz.remoteserviceexample.service.heatmap;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.TrackingEngine;
+import com.maciekjanusz.remoteserviceexample.service.track.TrackLog;
+import com.maciekjanusz.remoteserviceexample.service.transport.ServiceTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.EVENT_HEATMAP;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_ATTACH_CONSUMER;
+import static com.maciekjanusz.remoteserviceexample.service.TrackingService.MSG_QUERY_HEATMAP;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link TileAggregate} updates, viewport queries and persistence through the engine.
+ */
+public class TileAggregateTest {
+
+    private static final double LATITUDE_A = 52.0001, LONGITUDE_A = 21.0001;
+    private static final double LATITUDE_B = 52.0001, LONGITUDE_B = 21.01;
+
+    private final LocationSample sample = new LocationSample();
+    private File trackFile;
+    private File heatmapFile;
+
+    @Before
+    public void setUp() throws Exception {
+        trackFile = File.createTempFile("heatmap", ".log");
+        heatmapFile = File.createTempFile("heatmap", ".bin");
+        heatmapFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        trackFile.delete();
+        heatmapFile.delete();
+    }
+
+    @Test
+    public void countsVisitsAndDwellPerZoom() {
+        TileAggregate aggregate = new TileAggregate();
+        aggregate.add(fix(0, LATITUDE_A, LONGITUDE_A));
+        aggregate.add(fix(10000, LATITUDE_A, LONGITUDE_A));
+        aggregate.add(fix(20000, LATITUDE_A, LONGITUDE_A));
+        aggregate.add(fix(30000, LATITUDE_B, LONGITUDE_B));
+        aggregate.add(fix(40000, LATITUDE_B, LONGITUDE_B));
+        aggregate.add(fix(50000, LATITUDE_A, LONGITUDE_A));
+        // after a gap - a new visit, the gap isn't dwell
+        aggregate.add(fix(50000 + TileAggregate.MAX_GAP_MILLIS + 1, LATITUDE_A, LONGITUDE_A));
+
+        Answer fine = new Answer();
+        HeatmapCells.read(query(aggregate, 51.99, 20.99, 52.01, 21.02), fine);
+        assertEquals(18, fine.zoom);
+        assertEquals(2, fine.cells.size());
+        assertTrue(fine.cells.contains(cell(18, LATITUDE_A, LONGITUDE_A) + " 3 30000"));
+        assertTrue(fine.cells.contains(cell(18, LATITUDE_B, LONGITUDE_B) + " 1 20000"));
+
+        Answer world = new Answer();
+        HeatmapCells.read(query(aggregate, -90, -180, 90, 180), world);
+        assertEquals(6, world.zoom);
+        assertEquals(1, world.cells.size());
+        assertEquals(cell(6, LATITUDE_A, LONGITUDE_A) + " 2 50000", world.cells.get(0));
+        assertEquals(7, aggregate.fixCount());
+    }
+
+    @Test
+    public void queryCostDependsOnViewportOnly() {
+        TileAggregate aggregate = new TileAggregate();
+        for (int i = 0; i < 20000; i++) {
+            aggregate.add(fix(i * 1000L, -60 + i * 0.006, -170 + i * 0.017));
+        }
+        aggregate.add(fix(20000000, 0.5, 179.9999));
+        aggregate.add(fix(20001000, 0.5, -179.9999));
+        assertTrue(aggregate.cellCount(18) > 10000);
+
+        // zoom coarsens as the viewport grows, so that it never spans more than the limit
+        int previousZoom = Integer.MAX_VALUE;
+        for (double span = 0.001; span < 180; span *= 4) {
+            Answer answer = new Answer();
+            HeatmapCells.read(query(aggregate, -span / 2, -span, span / 2, span), answer);
+            assertTrue(answer.zoom <= previousZoom);
+            assertTrue(answer.cells.size() <= TileAggregate.MAX_QUERY_CELLS);
+            previousZoom = answer.zoom;
+        }
+
+        // viewport across the antimeridian
+        Answer wrapped = new Answer();
+        HeatmapCells.read(query(aggregate, 0, 179, 1, -179), wrapped);
+        assertTrue(wrapped.zoom < 18);
+        assertEquals(2, wrapped.cells.size());
+        for (int[] cell : wrapped.raw) {
+            double west = TileAggregate.tileLongitude(cell[0], wrapped.zoom);
+            double east = TileAggregate.tileLongitude(cell[0] + 1, wrapped.zoom);
+            assertTrue(west <= -179.9999 && -179.9999 < east || west <= 179.9999 && 179.9999 < east);
+            assertTrue(TileAggregate.tileLatitude(cell[1] + 1, wrapped.zoom) <= 0.5);
+            assertTrue(TileAggregate.tileLatitude(cell[1], wrapped.zoom) > 0.5);
+        }
+    }
+
+    @Test
+    public void persistsAndCatchesUpWithTrackLog() throws Exception {
+        HeatmapTransport transport = new HeatmapTransport();
+        TrackingEngine engine = new TrackingEngine(transport, new TrackLog(trackFile),
+                new HeatmapFile(heatmapFile));
+        for (int i = 0; i < 1500; i++) {
+            engine.onLocationSample(track(i));
+        }
+        // saved once on the way
+        awaitSaved(1024);
+        engine.close();
+        awaitSaved(1500);
+        assertTrue(heatmapFile.length() < 1500 * 4 * 4);
+
+        // fixes recorded after the last save, e.g. before a crash
+        TrackLog trackLog = new TrackLog(trackFile);
+        for (int i = 1500; i < 1700; i++) {
+            trackLog.append(track(i));
+        }
+        trackLog.close();
+
+        HeatmapTransport restored = new HeatmapTransport();
+        engine = new TrackingEngine(restored, new TrackLog(trackFile), new HeatmapFile(heatmapFile));
+        engine.onCommand(MSG_ATTACH_CONSUMER, null);
+        engine.onCommand(MSG_QUERY_HEATMAP, HeatmapCells.query(1, 51.9, 20.9, 52.3, 21.3));
+        engine.onCommand(MSG_QUERY_HEATMAP, HeatmapCells.query(2, 52, 21, 52.01, 21.01));
+        engine.close();
+
+        // compared with a heatmap rebuilt from the whole track log
+        heatmapFile.delete();
+        HeatmapTransport rebuilt = new HeatmapTransport();
+        engine = new TrackingEngine(rebuilt, new TrackLog(trackFile));
+        engine.onCommand(MSG_ATTACH_CONSUMER, null);
+        engine.onCommand(MSG_QUERY_HEATMAP, HeatmapCells.query(1, 51.9, 20.9, 52.3, 21.3));
+        engine.onCommand(MSG_QUERY_HEATMAP, HeatmapCells.query(2, 52, 21, 52.01, 21.01));
+        engine.close();
+
+        assertEquals(2, rebuilt.answers.size());
+        assertTrue(rebuilt.answers.get(0).cells.size() > 10);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(rebuilt.answers.get(i).queryId, restored.answers.get(i).queryId);
+            assertEquals(rebuilt.answers.get(i).zoom, restored.answers.get(i).zoom);
+            assertEquals(rebuilt.answers.get(i).cells, restored.answers.get(i).cells);
+        }
+    }
+
+    /**
+     * Waits for the engine to save the heatmap in background
+     */
+    private void awaitSaved(long fixCount) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        TileAggregate saved;
+        while ((saved = new HeatmapFile(heatmapFile).load()) == null
+                || saved.fixCount() != fixCount) {
+            assertTrue("heatmap not saved", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private LocationSample fix(long time, double latitude, double longitude) {
+        sample.reset();
+        sample.time = time;
+        sample.latitude = latitude;
+        sample.longitude = longitude;
+        return sample;
+    }
+
+    /**
+     * Slow walk, with a stop every 100 fixes
+     */
+    private LocationSample track(int i) {
+        int moving = i - i / 100 * 20;
+        return fix(i * 5000L, 52 + moving * 1e-4, 21 + moving * 2e-4);
+    }
+
+    private static ByteBuffer query(TileAggregate aggregate,
+                                    double south, double west, double north, double east) {
+        HeatmapCells answer = new HeatmapCells();
+        aggregate.query(7, south, west, north, east, answer);
+        return answer.encoded();
+    }
+
+    private static String cell(int zoom, double latitude, double longitude) {
+        int tiles = 1 << zoom;
+        int x = (int) Math.floor((longitude + 180) / 360 * tiles);
+        double radians = Math.toRadians(latitude);
+        int y = (int) Math.floor(
+                (1 - Math.log(Math.tan(radians) + 1 / Math.cos(radians)) / Math.PI) / 2 * tiles);
+        return x + " " + y;
+    }
+
+    private static class Answer implements HeatmapCells.Listener {
+        int queryId;
+        int zoom = -1;
+        final List<String> cells = new ArrayList<>();
+        final List<int[]> raw = new ArrayList<>();
+
+        @Override
+        public void onHeatmapStart(int queryId, int zoom, int cellCount) {
+            this.queryId = queryId;
+            this.zoom = zoom;
+        }
+
+        @Override
+        public void onHeatmapCell(int x, int y, int visits, long dwellMillis) {
+            cells.add(x + " " + y + " " + visits + " " + dwellMillis);
+            raw.add(new int[]{x, y});
+        }
+    }
+
+    /**
+     * Synchronous transport decoding heatmap answers
+     */
+    private static class HeatmapTransport implements ServiceTransport {
+        final List<Answer> answers = new ArrayList<>();
+
+        @Override
+        public void setCommandHandler(CommandHandler commandHandler) {
+        }
+
+        @Override
+        public void publishLocation(LocationSample sample) {
+        }
+
+        @Override
+        public void publishEvent(int what, ByteBuffer payload) {
+            if (what == EVENT_HEATMAP) {
+                Answer answer = new Answer();
+                HeatmapCells.read(payload, answer);
+                answers.add(answer);
+            }
+        }
+    }
+}
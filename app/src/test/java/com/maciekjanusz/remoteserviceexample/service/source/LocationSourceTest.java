@@ -0,0 +1,112 @@
+package com.maciekjanusz.remoteserviceexample.service.source;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.LocationSampleListener;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocationSourceTest {
+
+    private static final String CSV = "time,latitude,longitude,altitude,speed,bearing,accuracy\n"
+            + "# comment\n"
+            + "1442743200000,52.1,21.1,100.5,1.5,90,4\n"
+            + "2015-09-20T10:00:01.500Z,52.2,21.2,,,,\n";
+
+    private static final String GPX = "<?xml version=\"1.0\"?>\n"
+            + "<gpx version=\"1.1\" xmlns:gpxtpx=\"http://www.garmin.com/xmlschemas/TrackPointExtension/v1\">\n"
+            + "<!-- recorded <track> -->\n"
+            + "<trk><name>test</name><trkseg>\n"
+            + "<trkpt lat=\"52.1\" lon=\"21.1\"><ele>100.5</ele><time>2015-09-20T12:00:00+02:00</time>"
+            + "<extensions><gpxtpx:speed>1.5</gpxtpx:speed></extensions></trkpt>\n"
+            + "<trkpt lon='21.2' lat='52.2'/>\n"
+            + "</trkseg></trk></gpx>";
+
+    @Test
+    public void replaysCsv() throws Exception {
+        List<LocationSample> samples = drain(
+                new ReplayLocationSource(new StringReader(CSV), ReplayLocationSource.Format.CSV));
+        assertEquals(2, samples.size());
+
+        LocationSample first = samples.get(0);
+        assertEquals(1442743200000L, first.time);
+        assertEquals(52.1, first.latitude, 0);
+        assertEquals(21.1, first.longitude, 0);
+        assertEquals(100.5, first.altitude, 0);
+        assertEquals(4, first.accuracy, 0);
+        assertTrue(first.has(LocationSample.HAS_SPEED));
+
+        LocationSample second = samples.get(1);
+        assertEquals(1442743201500L, second.time);
+        assertFalse(second.has(LocationSample.HAS_ALTITUDE));
+    }
+
+    @Test
+    public void replaysGpx() throws Exception {
+        List<LocationSample> samples = drain(
+                new ReplayLocationSource(new StringReader(GPX), ReplayLocationSource.Format.GPX));
+        assertEquals(2, samples.size());
+
+        LocationSample first = samples.get(0);
+        assertEquals(52.1, first.latitude, 0);
+        assertEquals(1442743200000L, first.time);
+        assertEquals(100.5, first.altitude, 0);
+        assertEquals(1.5, first.speed, 0);
+
+        LocationSample second = samples.get(1);
+        assertEquals(52.2, second.latitude, 0);
+        assertEquals(21.2, second.longitude, 0);
+    }
+
+    @Test
+    public void syntheticTrackIsDeterministic() throws Exception {
+        List<LocationSample> first = drain(new SyntheticLocationSource(42));
+        List<LocationSample> second = drain(new SyntheticLocationSource(42));
+        assertEquals(first.size(), second.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertEquals(first.get(i).toString(), second.get(i).toString());
+            assertEquals(first.get(i).bearing, second.get(i).bearing, 0);
+        }
+    }
+
+    @Test
+    public void emitsAtConfiguredRate() throws Exception {
+        final int fixes = 200;
+        final CountDownLatch done = new CountDownLatch(fixes);
+        PacedLocationSource source = new SyntheticLocationSource(1, 52, 21, 0, 1000, 1, fixes)
+                .setRate(2000);
+        long start = System.nanoTime();
+        source.start(new LocationSampleListener() {
+            @Override
+            public void onLocationSample(LocationSample sample) {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        source.stop();
+        // 200 fixes at 2000/s take 100 ms, far less than the 200 s of virtual time they span
+        assertTrue("too fast: " + elapsedMillis, elapsedMillis >= 90);
+        assertTrue("too slow: " + elapsedMillis, elapsedMillis < 2000);
+    }
+
+    private static List<LocationSample> drain(PacedLocationSource source) {
+        final List<LocationSample> samples = new ArrayList<>();
+        source.drain(new LocationSampleListener() {
+            @Override
+            public void onLocationSample(LocationSample sample) {
+                samples.add(new LocationSample().set(sample));
+            }
+        }, 1000);
+        return samples;
+    }
+}
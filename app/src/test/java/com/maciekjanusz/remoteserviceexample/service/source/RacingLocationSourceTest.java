@@ -0,0 +1,183 @@
+package com.maciekjanusz.remoteserviceexample.service.source;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.LocationSampleListener;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RacingLocationSourceTest {
+
+    private static final int FUSED = 0, GPS = 1, NETWORK = 2;
+
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final ManualSource[] sources = {new ManualSource(), new ManualSource(), new ManualSource()};
+    private final List<Float> forwarded = new ArrayList<>();
+    private RacingLocationSource racing;
+
+    @Before
+    public void setUp() {
+        racing = new RacingLocationSource(scheduler, sources);
+        racing.start(new LocationSampleListener() {
+            @Override
+            public void onLocationSample(LocationSample sample) {
+                forwarded.add(sample.accuracy);
+            }
+        });
+        for (ManualSource source : sources) {
+            assertTrue(source.running);
+        }
+    }
+
+    @Test
+    public void forwardsFirstAcceptableFix() {
+        fix(NETWORK, 1500, 0);
+        assertTrue(forwarded.isEmpty());
+        // cached fix from a minute ago
+        fix(GPS, 10, 60000);
+        assertTrue(forwarded.isEmpty());
+
+        fix(NETWORK, 150, 0);
+        assertEquals(1, forwarded.size());
+        assertEquals(NETWORK, racing.leader());
+    }
+
+    @Test
+    public void arbitratesByAccuracyAndAge() {
+        fix(NETWORK, 100, 0);
+        scheduler.advance(1000);
+        fix(GPS, 8, 0);
+        assertEquals(GPS, racing.leader());
+        scheduler.advance(1000);
+        // less accurate than the leader
+        fix(NETWORK, 60, 0);
+        assertEquals(GPS, racing.leader());
+        // leader may get somewhat worse
+        fix(GPS, 30, 0);
+        // but older fixes never get through
+        fix(FUSED, 5, 1500);
+
+        assertEquals(3, forwarded.size());
+        assertEquals(30, forwarded.get(2), 0);
+        assertEquals(GPS, racing.leader());
+
+        scheduler.advance(1000);
+        fix(FUSED, 5, 0);
+        assertEquals(FUSED, racing.leader());
+    }
+
+    @Test
+    public void stopsRedundantSourcesOnceStable() {
+        for (int i = 0; i < RacingLocationSource.STABLE_FIXES; i++) {
+            scheduler.advance(1000);
+            fix(GPS, 5, 0);
+        }
+        assertTrue(sources[GPS].running);
+        assertFalse(sources[FUSED].running);
+        assertFalse(sources[NETWORK].running);
+
+        // leader degrades
+        scheduler.advance(1000);
+        fix(GPS, 80, 0);
+        assertTrue(sources[FUSED].running);
+        assertTrue(sources[NETWORK].running);
+    }
+
+    @Test
+    public void restartsSourcesWhenLeaderGoesQuiet() {
+        for (int i = 0; i < RacingLocationSource.STABLE_FIXES; i++) {
+            scheduler.advance(1000);
+            fix(FUSED, 5, 0);
+        }
+        assertFalse(sources[GPS].running);
+
+        scheduler.advance(RacingLocationSource.LEADER_TIMEOUT_MILLIS / 2);
+        fix(FUSED, 5, 0);
+        scheduler.advance(RacingLocationSource.LEADER_TIMEOUT_MILLIS - 1);
+        assertFalse(sources[GPS].running);
+        scheduler.advance(1);
+        assertTrue(sources[GPS].running);
+        assertTrue(sources[NETWORK].running);
+
+        racing.stop();
+        for (ManualSource source : sources) {
+            assertFalse(source.running);
+        }
+        assertEquals(null, scheduler.task);
+    }
+
+    /**
+     * Emits fix of given source
+     * @param ageMillis age of the fix at arrival
+     */
+    private void fix(int source, float accuracy, long ageMillis) {
+        LocationSample sample = new LocationSample();
+        sample.accuracy = accuracy;
+        sample.flags = LocationSample.HAS_ACCURACY;
+        sample.elapsedRealtimeNanos = scheduler.now - TimeUnit.MILLISECONDS.toNanos(ageMillis);
+        sample.time = TimeUnit.NANOSECONDS.toMillis(sample.elapsedRealtimeNanos);
+        sources[source].listener.onLocationSample(sample);
+    }
+
+    private static class ManualSource implements LocationSource {
+        LocationSampleListener listener;
+        boolean running = false;
+
+        @Override
+        public void start(LocationSampleListener listener) {
+            this.listener = listener;
+            running = true;
+        }
+
+        @Override
+        public void stop() {
+            running = false;
+        }
+    }
+
+    /**
+     * Scheduler holding a single task, which is all the racing source posts
+     */
+    private static class ManualScheduler implements RacingLocationSource.Scheduler {
+        long now = TimeUnit.HOURS.toNanos(1);
+        Runnable task;
+        long taskTime;
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return now;
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            task = runnable;
+            taskTime = now + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            if (task == runnable) {
+                task = null;
+            }
+        }
+
+        void advance(long millis) {
+            long end = now + TimeUnit.MILLISECONDS.toNanos(millis);
+            while (task != null && taskTime <= end) {
+                now = taskTime;
+                Runnable runnable = task;
+                task = null;
+                runnable.run();
+            }
+            now = end;
+        }
+    }
+}
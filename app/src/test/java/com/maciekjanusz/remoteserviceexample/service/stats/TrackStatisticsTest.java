@@ -0,0 +1,184 @@
+package com.maciekjanusz.remoteserviceexample.service.stats;
+
+import com.maciekjanusz.remoteserviceexample.service.AllocationMeter;
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TrackStatisticsTest {
+
+    /**
+     * 0.0001 degree of latitude in meters
+     */
+    private static final double STEP_METERS = 11.1195;
+
+    private final TrackStatistics statistics = new TrackStatistics();
+    private final LocationSample sample = new LocationSample();
+
+    @Test
+    public void accumulatesMovingSegments() {
+        for (int i = 0; i <= 100; i++) {
+            fix(i * 1000, 52 + i * 0.0001, i < 50 ? 5 : 15, Float.NaN);
+        }
+        TrackSummary summary = statistics.summary();
+        assertEquals(101, summary.fixCount);
+        assertEquals(100 * STEP_METERS, summary.distance, 0.1);
+        assertEquals(100000, summary.movingMillis);
+        assertEquals(0, summary.stoppedMillis);
+        assertEquals(15, summary.maxSpeed, 0);
+        assertEquals(STEP_METERS, summary.averageMovingSpeed(), 0.01);
+        assertEquals(0, summary.startTime);
+        assertEquals(100000, summary.lastTime);
+    }
+
+    @Test
+    public void ignoresJitterWhileStopped() {
+        Random random = new Random(1);
+        for (int i = 0; i < 600; i++) {
+            // up to 4 m of noise with 10 m accuracy, no reported speed
+            sample.reset();
+            sample.time = i * 1000;
+            sample.latitude = 52 + (random.nextDouble() - 0.5) * 0.00007;
+            sample.longitude = 21 + (random.nextDouble() - 0.5) * 0.00007;
+            sample.accuracy = 10;
+            sample.flags = LocationSample.HAS_ACCURACY;
+            statistics.add(sample);
+        }
+        TrackSummary summary = statistics.summary();
+        assertEquals(0, summary.distance, 0);
+        assertEquals(599000, summary.stoppedMillis);
+        assertEquals(0, summary.maxSpeed, 0);
+        assertEquals(10, summary.averageAccuracy, 0);
+    }
+
+    @Test
+    public void countsWalkingWithoutSpeed() {
+        // 1.4 m/s with 5 m accuracy - every step is shorter than the accuracy
+        double step = 1.4 / STEP_METERS * 0.0001;
+        for (int i = 0; i < 600; i++) {
+            sample.reset();
+            sample.time = i * 1000;
+            sample.latitude = 52 + i * step;
+            sample.longitude = 21;
+            sample.accuracy = 5;
+            sample.flags = LocationSample.HAS_ACCURACY;
+            statistics.add(sample);
+        }
+        TrackSummary summary = statistics.summary();
+        // all but the last few steps, which haven't left the accuracy yet
+        assertEquals(599 * 1.4, summary.distance, 4 * 1.4);
+        assertEquals(599000, summary.movingMillis, 4000);
+        assertEquals(599000, summary.movingMillis + summary.stoppedMillis);
+        assertEquals(1.4, summary.maxSpeed, 0.01);
+    }
+
+    @Test
+    public void skipsGaps() {
+        fix(0, 52, 5, Float.NaN);
+        fix(1000, 52.0001, 5, Float.NaN);
+        fix(1000 + TrackStatistics.MAX_GAP_MILLIS + 1, 52.1, 5, Float.NaN);
+        TrackSummary summary = statistics.summary();
+        assertEquals(STEP_METERS, summary.distance, 0.01);
+        assertEquals(1000, summary.movingMillis);
+        assertEquals(0, summary.stoppedMillis);
+    }
+
+    @Test
+    public void filtersElevationNoise() {
+        Random random = new Random(2);
+        // climb 100 m then descend 50 m, with +-1 m of noise
+        for (int i = 0; i <= 150; i++) {
+            double altitude = i <= 100 ? i : 200 - i;
+            fix(i * 1000, 52, 1, altitude + random.nextDouble() * 2 - 1);
+        }
+        TrackSummary summary = statistics.summary();
+        assertEquals(100, summary.elevationGain, 5);
+        assertEquals(50, summary.elevationLoss, 5);
+    }
+
+    @Test
+    public void summaryRoundTrips() {
+        for (int i = 0; i < 10; i++) {
+            fix(i * 1000, 52 + i * 0.0001, 3, 100 + i * 5);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(TrackSummary.SIZE);
+        statistics.summary().write(buffer);
+        assertEquals(TrackSummary.SIZE, buffer.position());
+        buffer.flip();
+        TrackSummary decoded = new TrackSummary();
+        assertTrue(decoded.read(buffer));
+        assertEquals(statistics.summary().toString(), decoded.toString());
+        assertEquals(statistics.summary().averageSpeed(), decoded.averageSpeed(), 0);
+    }
+
+    @Test
+    public void persistedStatisticsContinueLikeUninterrupted() throws Exception {
+        Random random = new Random(3);
+        TrackStatistics restored = null;
+        for (int i = 0; i < 1000; i++) {
+            // alternating walks without speed and stops, with altitude noise
+            sample.reset();
+            sample.time = i * 1000;
+            sample.latitude = 52 + (i / 100 % 2 == 0 ? i * 0.00001 : 0);
+            sample.longitude = 21 + random.nextDouble() * 0.00001;
+            sample.altitude = 100 + random.nextDouble() * 5;
+            sample.accuracy = 5;
+            sample.flags = LocationSample.HAS_ACCURACY | LocationSample.HAS_ALTITUDE;
+            statistics.add(sample);
+            if (restored != null) {
+                restored.add(sample);
+            }
+            if (i == 549) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                statistics.writeTo(new DataOutputStream(bytes));
+                restored = TrackStatistics.readFrom(
+                        new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+            }
+        }
+        assertEquals(statistics.summary().toString(), restored.summary().toString());
+        assertEquals(statistics.summary().averageAccuracy, restored.summary().averageAccuracy, 0);
+        assertEquals(statistics.summary().stoppedMillis, restored.summary().stoppedMillis);
+    }
+
+    @Test
+    public void addDoesntAllocate() {
+        AllocationMeter allocationMeter = new AllocationMeter();
+        if (!allocationMeter.isSupported()) {
+            return;
+        }
+        fix(0, 52, 1, 100);
+        allocationMeter.start();
+        for (int i = 1; i < 100000; i++) {
+            fix(i * 1000, 52 + i * 0.00001, 1, 100 + i % 10);
+        }
+        long allocated = allocationMeter.bytes();
+        assertTrue("allocated " + allocated, allocated < 1024);
+    }
+
+    /**
+     * @param altitude altitude or NaN for none
+     */
+    private void fix(long time, double latitude, float speed, double altitude) {
+        sample.reset();
+        sample.time = time;
+        sample.latitude = latitude;
+        sample.longitude = 21;
+        sample.speed = speed;
+        sample.flags = LocationSample.HAS_SPEED;
+        if (!Double.isNaN(altitude)) {
+            sample.altitude = altitude;
+            sample.flags |= LocationSample.HAS_ALTITUDE;
+        }
+        statistics.add(sample);
+    }
+}
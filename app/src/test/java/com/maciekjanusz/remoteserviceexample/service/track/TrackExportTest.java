@@ -0,0 +1,91 @@
+package com.maciekjanusz.remoteserviceexample.service.track;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.LocationSampleListener;
+import com.maciekjanusz.remoteserviceexample.service.ServiceProxy;
+import com.maciekjanusz.remoteserviceexample.service.TrackingEngine;
+import com.maciekjanusz.remoteserviceexample.service.source.SyntheticLocationSource;
+import com.maciekjanusz.remoteserviceexample.service.transport.LoopbackTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TrackExportTest {
+
+    private LoopbackTransport loopback;
+    private TrackingEngine engine;
+    private ServiceProxy proxy;
+    private File trackFile;
+
+    @Before
+    public void setUp() throws Exception {
+        trackFile = File.createTempFile("track", ".log");
+        loopback = new LoopbackTransport(64);
+        engine = new TrackingEngine(loopback.service(), new TrackLog(trackFile));
+        proxy = new ServiceProxy(loopback.client());
+        loopback.client().startService();
+    }
+
+    @After
+    public void tearDown() {
+        loopback.shutdown();
+        engine.close();
+        trackFile.delete();
+    }
+
+    @Test
+    public void streamsWholeTrackThroughPipe() throws Exception {
+        // far more than fits in a single binder transaction
+        int fixes = 50000;
+        new SyntheticLocationSource(7, 52, 21, 0, 1000, 1.5, fixes)
+                .drain(loopback.serviceInput(engine), fixes);
+
+        TrackStreamReader reader = proxy.exportTrack();
+        LocationSample expected = new LocationSample();
+        LocationSample actual = new LocationSample();
+        SyntheticLocationSource replay = new SyntheticLocationSource(7, 52, 21, 0, 1000, 1.5, fixes);
+        int count = 0;
+        try {
+            while (reader.next(actual)) {
+                assertEquals(1, replay.drain(new Copy(expected), 1));
+                assertEquals(expected.time, actual.time);
+                assertEquals(expected.latitude, actual.latitude, 0);
+                assertEquals(expected.longitude, actual.longitude, 0);
+                assertEquals(expected.accuracy, actual.accuracy, 0);
+                count++;
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals(fixes, count);
+    }
+
+    @Test
+    public void emptyTrackExportsNoRecords() throws Exception {
+        TrackStreamReader reader = proxy.exportTrack();
+        try {
+            assertFalse(reader.next(new LocationSample()));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static class Copy implements LocationSampleListener {
+        private final LocationSample target;
+
+        Copy(LocationSample target) {
+            this.target = target;
+        }
+
+        @Override
+        public void onLocationSample(LocationSample sample) {
+            target.set(sample);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.maciekjanusz.remoteserviceexample.service.track;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.TrackingEngine;
+import com.maciekjanusz.remoteserviceexample.service.heatmap.HeatmapFile;
+import com.maciekjanusz.remoteserviceexample.service.stats.StatisticsFile;
+import com.maciekjanusz.remoteserviceexample.service.transport.LoopbackTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TrackLogTest {
+
+    private File trackFile;
+    private FailingChannel channel;
+    private TrackLog trackLog;
+    private final LocationSample sample = new LocationSample();
+
+    @Before
+    public void setUp() throws Exception {
+        trackFile = File.createTempFile("tracklog", ".log");
+        channel = new FailingChannel(new RandomAccessFile(trackFile, "rw").getChannel());
+        trackLog = new TrackLog(channel);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        channel.failing = false;
+        trackLog.close();
+        trackFile.delete();
+    }
+
+    @Test
+    public void keepsBufferedRecordsWhenWriteFails() throws Exception {
+        append(0, 63);
+        channel.failing = true;
+        try {
+            append(63, 64);
+            fail("flush should have failed");
+        } catch (IOException e) {
+            // the record is buffered all the same
+        }
+        assertEquals(64, trackLog.size());
+        assertEquals(0, trackLog.flushedSize());
+
+        // the buffer is full, appending retries the flush instead of overwriting records
+        try {
+            append(64, 65);
+            fail("flush should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(64, trackLog.size());
+
+        channel.failing = false;
+        append(64, 70);
+        trackLog.flush();
+        assertEquals(70, trackLog.flushedSize());
+        assertEquals(70 * TrackRecords.RECORD_SIZE, channel.size());
+        TrackLog.Cursor cursor = trackLog.cursor(0, 16);
+        for (int i = 0; i < 70; i++) {
+            cursor.next(sample);
+            assertEquals(i * 1000L, sample.time);
+        }
+    }
+
+    @Test
+    public void engineKeepsStoresInStepWithLog() throws Exception {
+        File heatmapFile = File.createTempFile("tracklog", ".heatmap");
+        File statisticsFile = File.createTempFile("tracklog", ".stats");
+        heatmapFile.delete();
+        statisticsFile.delete();
+        TrackingEngine engine = new TrackingEngine(new LoopbackTransport(4).service(), trackLog,
+                new HeatmapFile(heatmapFile), new StatisticsFile(statisticsFile));
+        try {
+            record(engine, 0, 63);
+            channel.failing = true;
+            // buffered, although its flush fails
+            record(engine, 63, 64);
+            // not taken, the buffer is full
+            record(engine, 64, 65);
+            channel.failing = false;
+            record(engine, 65, 100);
+            assertEquals(99, trackLog.size());
+            assertEquals(99, engine.recentTrack().endIndex());
+        } finally {
+            engine.close();
+        }
+
+        // saved in background
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((!heatmapFile.exists() || !statisticsFile.exists())
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(99, new StatisticsFile(statisticsFile).load().summary().fixCount);
+        assertEquals(99, new HeatmapFile(heatmapFile).load().fixCount());
+        heatmapFile.delete();
+        statisticsFile.delete();
+    }
+
+    private void record(TrackingEngine engine, int from, int to) {
+        for (int i = from; i < to; i++) {
+            sample.reset();
+            sample.time = i * 1000L;
+            sample.latitude = 52 + i * 1e-4;
+            sample.longitude = 21;
+            engine.onLocationSample(sample);
+        }
+    }
+
+    private void append(int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            sample.reset();
+            sample.time = i * 1000L;
+            sample.latitude = 52;
+            sample.longitude = 21;
+            trackLog.append(sample);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.maciekjanusz.remoteserviceexample.service.track;
+
+import com.maciekjanusz.remoteserviceexample.service.AllocationMeter;
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TrackRingTest {
+
+    private final LocationSample sample = new LocationSample();
+
+    @Test
+    public void overwritesOldestWhenFull() throws Exception {
+        TrackRing ring = new TrackRing(6);
+        assertEquals(8, ring.capacity());
+        append(ring, 0, 20);
+
+        assertEquals(8, ring.size());
+        assertEquals(12, ring.firstIndex());
+        assertEquals(20, ring.endIndex());
+        for (long index = 12; index < 20; index++) {
+            ring.get(index, sample);
+            assertEquals(index * 1000, sample.time);
+            assertEquals(52 + index * 1e-4, sample.latitude, 0);
+            assertEquals(index, ring.speed(index), 0);
+            assertEquals(LocationSample.HAS_SPEED, ring.flags(index));
+        }
+        try {
+            ring.time(11);
+            fail("evicted record readable");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void spillsEvictedRecordsToLog() throws Exception {
+        File file = File.createTempFile("spill", ".log");
+        TrackLog spillLog = new TrackLog(file);
+        try {
+            TrackRing ring = new TrackRing(8, 0, spillLog);
+            append(ring, 0, 20);
+            assertEquals(12, spillLog.size());
+            ring.spillAll();
+            assertTrue(ring.isEmpty());
+            spillLog.flush();
+
+            TrackLog.Cursor cursor = spillLog.cursor(0, 16);
+            for (int i = 0; i < 20; i++) {
+                assertTrue(cursor.next(sample));
+                assertEquals(i * 1000, sample.time);
+            }
+            assertEquals(20, ring.endIndex());
+        } finally {
+            spillLog.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void scansTimeRanges() throws Exception {
+        TrackRing ring = new TrackRing(64);
+        append(ring, 0, 100);
+
+        assertEquals(36, ring.firstIndex());
+        assertEquals(36, ring.indexOfTime(0));
+        assertEquals(50, ring.indexOfTime(49500));
+        assertEquals(100, ring.indexOfTime(1000000));
+
+        final long[] sum = {0};
+        int visited = ring.scanTime(40000, 45000, new TrackRing.Visitor() {
+            @Override
+            public boolean visit(TrackRing ring, long index) {
+                sum[0] += ring.time(index);
+                return true;
+            }
+        });
+        assertEquals(5, visited);
+        assertEquals(40000 + 41000 + 42000 + 43000 + 44000, sum[0]);
+
+        visited = ring.scan(0, Long.MAX_VALUE, new TrackRing.Visitor() {
+            @Override
+            public boolean visit(TrackRing ring, long index) {
+                return index < 40;
+            }
+        });
+        assertEquals(5, visited);
+    }
+
+    @Test
+    public void appendAndScanDontAllocate() throws Exception {
+        AllocationMeter allocationMeter = new AllocationMeter();
+        if (!allocationMeter.isSupported()) {
+            return;
+        }
+        TrackRing ring = new TrackRing(4096);
+        TrackRing.Visitor visitor = new TrackRing.Visitor() {
+            double latitudes = 0;
+
+            @Override
+            public boolean visit(TrackRing ring, long index) {
+                latitudes += ring.latitude(index);
+                return true;
+            }
+        };
+        append(ring, 0, 10000);
+        ring.scan(0, Long.MAX_VALUE, visitor);
+        allocationMeter.start();
+        append(ring, 10000, 100000);
+        for (int i = 0; i < 100; i++) {
+            ring.scanTime(i * 1000000L, i * 1000000L + 2000000, visitor);
+        }
+        long allocated = allocationMeter.bytes();
+        assertTrue("allocated " + allocated, allocated < 1024);
+    }
+
+    private void append(TrackRing ring, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            sample.reset();
+            sample.time = i * 1000L;
+            sample.latitude = 52 + i * 1e-4;
+            sample.longitude = 21;
+            sample.speed = i;
+            sample.flags = LocationSample.HAS_SPEED;
+            assertEquals(i, ring.append(sample));
+        }
+    }
+}
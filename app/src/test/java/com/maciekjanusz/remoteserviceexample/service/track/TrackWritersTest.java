@@ -0,0 +1,218 @@
+package com.maciekjanusz.remoteserviceexample.service.track;
+
+import com.maciekjanusz.remoteserviceexample.service.AllocationMeter;
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.LocationSampleListener;
+import com.maciekjanusz.remoteserviceexample.service.source.ReplayLocationSource;
+import com.maciekjanusz.remoteserviceexample.service.source.SyntheticLocationSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TrackWritersTest {
+
+    private static final int FIXES = 2000;
+    private static final String GPX_NAMESPACE = "http://www.topografix.com/GPX/1/1";
+
+    private File trackFile;
+    private TrackLog trackLog;
+
+    @Before
+    public void setUp() throws Exception {
+        trackFile = File.createTempFile("track", ".log");
+        trackLog = new TrackLog(trackFile);
+        append(trackLog, FIXES);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        trackLog.close();
+        trackFile.delete();
+    }
+
+    @Test
+    public void compactFormatRoundTrips() throws Exception {
+        byte[] bytes = write(new CompactTrackWriter());
+        assertTrue("not compact: " + bytes.length,
+                bytes.length < FIXES * TrackRecords.RECORD_SIZE / 2);
+
+        CompactTrackReader reader = new CompactTrackReader(
+                Channels.newChannel(new ByteArrayInputStream(bytes)));
+        TrackLog.Cursor cursor = trackLog.cursor(0, 16);
+        LocationSample expected = new LocationSample();
+        LocationSample actual = new LocationSample();
+        int count = 0;
+        while (reader.next(actual)) {
+            assertTrue(cursor.next(expected));
+            assertEquals(expected.time, actual.time);
+            assertEquals(expected.flags, actual.flags);
+            assertEquals(expected.latitude, actual.latitude, 1e-7);
+            assertEquals(expected.longitude, actual.longitude, 1e-7);
+            assertEquals(expected.altitude, actual.altitude, 0.01);
+            assertEquals(expected.speed, actual.speed, 0.01);
+            assertEquals(expected.bearing, actual.bearing, 0.1);
+            assertEquals(expected.accuracy, actual.accuracy, 0.01);
+            count++;
+        }
+        assertFalse(cursor.next(expected));
+        assertEquals(FIXES, count);
+    }
+
+    @Test
+    public void corruptCompactRecordsFailWithIOException() throws Exception {
+        byte[][] corrupt = {
+                // declared length shorter than the fields
+                {0x54, 0x52, 0x4b, 0x43, 1, 2, 0x7f, 0x02, 0x02, 0x02, 0x02, 0x02},
+                // varint running past the end of the stream
+                {0x54, 0x52, 0x4b, 0x43, 1, (byte) 0x80},
+                // negative length
+                {0x54, 0x52, 0x4b, 0x43, 1, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+                        (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x01},
+        };
+        for (byte[] bytes : corrupt) {
+            CompactTrackReader reader = new CompactTrackReader(
+                    Channels.newChannel(new ByteArrayInputStream(bytes)));
+            try {
+                reader.next(new LocationSample());
+                fail("corrupt record read");
+            } catch (IOException expected) {
+                // corrupt input is reported as such
+            }
+        }
+    }
+
+    @Test
+    public void gpxReplaysToSameTrack() throws Exception {
+        byte[] bytes = write(new GpxTrackWriter());
+        ReplayLocationSource replay = new ReplayLocationSource(
+                new InputStreamReader(new ByteArrayInputStream(bytes), "UTF-8"),
+                ReplayLocationSource.Format.GPX);
+        final TrackLog.Cursor cursor = trackLog.cursor(0, 16);
+        final LocationSample expected = new LocationSample();
+        int count = replay.drain(new LocationSampleListener() {
+            @Override
+            public void onLocationSample(LocationSample sample) {
+                try {
+                    assertTrue(cursor.next(expected));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+                assertEquals(expected.time, sample.time);
+                assertEquals(expected.latitude, sample.latitude, 1e-7);
+                assertEquals(expected.longitude, sample.longitude, 1e-7);
+                assertEquals(expected.accuracy, sample.accuracy, 0.1);
+            }
+        }, Integer.MAX_VALUE);
+        assertEquals(FIXES, count);
+    }
+
+    @Test
+    public void gpxExtensionsAreNamespaced() throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document gpx = factory.newDocumentBuilder()
+                .parse(new ByteArrayInputStream(write(new GpxTrackWriter())));
+        NodeList extensions = gpx.getElementsByTagNameNS(GPX_NAMESPACE, "extensions");
+        assertEquals(FIXES, extensions.getLength());
+        for (int i = 0; i < extensions.getLength(); i++) {
+            NodeList children = extensions.item(i).getChildNodes();
+            assertTrue(children.getLength() > 0);
+            for (int j = 0; j < children.getLength(); j++) {
+                assertEquals(GpxTrackWriter.EXTENSIONS_NAMESPACE, children.item(j).getNamespaceURI());
+            }
+        }
+    }
+
+    @Test
+    public void geoJsonHasTimeForEveryCoordinate() throws Exception {
+        String json = new String(write(new GeoJsonTrackWriter()), "UTF-8");
+        assertTrue(json.startsWith("{\"type\":\"Feature\""));
+        assertTrue(json.endsWith("]}}\n"));
+        int times = json.split("Z\"").length - 1;
+        int coordinates = json.split("\\[\\d").length - 1;
+        assertEquals(FIXES, times);
+        assertEquals(FIXES, coordinates);
+    }
+
+    @Test
+    public void writersDontAllocatePerPoint() throws Exception {
+        AllocationMeter allocationMeter = new AllocationMeter();
+        if (!allocationMeter.isSupported()) {
+            return;
+        }
+        append(trackLog, 100000 - FIXES);
+        trackLog.flush();
+        TrackWriter[] writers = {
+                new GpxTrackWriter(), new GeoJsonTrackWriter(), new CompactTrackWriter()
+        };
+        WritableByteChannel sink = new DiscardingChannel();
+        for (TrackWriter writer : writers) {
+            // warm up, then measure a second export with the same writer
+            writer.write(trackLog, 0, trackLog.flushedSize(), sink);
+            allocationMeter.start();
+            writer.write(trackLog, 0, trackLog.flushedSize(), sink);
+            long allocated = allocationMeter.bytes();
+            // cursor buffers only - nowhere near a byte per point
+            assertTrue(writer.getClass().getSimpleName() + " allocated " + allocated,
+                    allocated < 64 * 1024);
+        }
+    }
+
+    private byte[] write(TrackWriter writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(trackLog, 0, trackLog.flushedSize(), Channels.newChannel(out));
+        return out.toByteArray();
+    }
+
+    private static void append(final TrackLog trackLog, int fixes) throws IOException {
+        new SyntheticLocationSource(3, 52, 21, 1442743200000L, 1000, 1.5, fixes)
+                .drain(new LocationSampleListener() {
+                    @Override
+                    public void onLocationSample(LocationSample sample) {
+                        try {
+                            trackLog.append(sample);
+                        } catch (IOException e) {
+                            throw new AssertionError(e);
+                        }
+                    }
+                }, fixes);
+        trackLog.flush();
+    }
+
+    private static class DiscardingChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int remaining = src.remaining();
+            src.position(src.limit());
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.maciekjanusz.remoteserviceexample.service.transport;
+
+import com.maciekjanusz.remoteserviceexample.service.AllocationMeter;
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.LocationSampleListener;
+import com.maciekjanusz.remoteserviceexample.service.ServiceProxy;
+import com.maciekjanusz.remoteserviceexample.service.TrackingEngine;
+import com.maciekjanusz.remoteserviceexample.service.track.TrackLog;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Load test pushing location fixes and commands through the real {@link ServiceProxy}
+ * and {@link TrackingEngine} logic over a {@link LoopbackTransport}.
+ *
+ * The JUnit test runs a short smoke load; for longer runs use {@link #main(String[])}
+ * with -Dload.fixes, -Dload.commands and -Dload.rate (fixes per second, 0 = unthrottled).
+ */
+public class LoopbackLoadTest {
+
+    @Test
+    public void allFixesReachListenersInOrder() throws Exception {
+        Report report = run(50000, 5000, 0);
+        report.print();
+        assertEquals(50000, report.fixesReceived);
+        assertTrue("fixes out of order", report.inOrder);
+    }
+
+    public static void main(String[] args) throws Exception {
+        run(Integer.getInteger("load.fixes", 2000000),
+                Integer.getInteger("load.commands", 100000),
+                Integer.getInteger("load.rate", 0)).print();
+    }
+
+    public static Report run(final int fixes, final int commands, final int rate) throws Exception {
+        final LoopbackTransport loopback = new LoopbackTransport(1024);
+        File trackFile = File.createTempFile("load", ".log");
+        trackFile.deleteOnExit();
+        TrackingEngine engine = new TrackingEngine(loopback.service(), new TrackLog(trackFile));
+        final ServiceProxy proxy = new ServiceProxy(loopback.client());
+        final LocationSampleListener serviceInput = loopback.serviceInput(engine);
+
+        final Recorder recorder = new Recorder(fixes);
+        proxy.addLocationListener(recorder);
+
+        final CountDownLatch connected = new CountDownLatch(1);
+        proxy.addServiceCallbacks(new ServiceProxy.ServiceCallbacks() {
+            @Override
+            public void onServiceConnected() {
+                connected.countDown();
+            }
+
+            @Override
+            public void onServiceDisconnected() {
+            }
+        });
+        proxy.attach();
+        proxy.toggleService();
+        assertTrue("service not connected", connected.await(5, TimeUnit.SECONDS));
+
+        // producers wait for the allocation to be measured before they exit, as the meter
+        // only accounts for live threads
+        final CountDownLatch produced = new CountDownLatch(2);
+        final CountDownLatch measured = new CountDownLatch(1);
+        Thread fixProducer = new Thread("fix-producer") {
+            @Override
+            public void run() {
+                LocationSample sample = new LocationSample();
+                long intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+                long next = System.nanoTime();
+                for (int i = 1; i <= fixes; i++) {
+                    if (intervalNanos > 0) {
+                        while (System.nanoTime() < next) {
+                            Thread.yield();
+                        }
+                        next += intervalNanos;
+                    }
+                    sample.latitude = 52.0 + i * 1e-6;
+                    sample.longitude = 21.0 + i * 1e-6;
+                    sample.accuracy = 5;
+                    sample.speed = 1.5f;
+                    sample.flags = LocationSample.HAS_ACCURACY | LocationSample.HAS_SPEED;
+                    // sequence number, used to tell fresh fixes from current state replies
+                    sample.time = i;
+                    // send timestamp, used for measuring latency
+                    sample.elapsedRealtimeNanos = System.nanoTime();
+                    serviceInput.onLocationSample(sample);
+                }
+                awaitMeasurement(produced, measured);
+            }
+        };
+        Thread commandProducer = new Thread("command-producer") {
+            @Override
+            public void run() {
+                for (int i = 0; i < commands; i++) {
+                    proxy.requestCurrentState();
+                }
+                awaitMeasurement(produced, measured);
+            }
+        };
+
+        AllocationMeter allocationMeter = new AllocationMeter();
+        allocationMeter.start();
+        long start = System.nanoTime();
+        fixProducer.start();
+        commandProducer.start();
+        produced.await(60, TimeUnit.SECONDS);
+        recorder.awaitFixes(TimeUnit.SECONDS.toMillis(60));
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocationMeter.bytes();
+        measured.countDown();
+        commandProducer.join();
+        fixProducer.join();
+        loopback.shutdown();
+        engine.close();
+
+        return new Report(recorder, commands, elapsed, allocated);
+    }
+
+    private static void awaitMeasurement(CountDownLatch produced, CountDownLatch measured) {
+        produced.countDown();
+        try {
+            measured.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records latencies of fresh fixes, counts everything else as current state replies.
+     * Called on the client dispatch thread only.
+     */
+    private static class Recorder implements LocationSampleListener {
+
+        final long[] latencies;
+        volatile int fixesReceived = 0;
+        int stateReplies = 0;
+        long lastSequence = 0;
+        boolean inOrder = true;
+
+        Recorder(int fixes) {
+            latencies = new long[fixes];
+        }
+
+        @Override
+        public void onLocationSample(LocationSample sample) {
+            long now = System.nanoTime();
+            if (sample.time > lastSequence) {
+                inOrder &= sample.time == lastSequence + 1;
+                lastSequence = sample.time;
+                latencies[fixesReceived] = now - sample.elapsedRealtimeNanos;
+                fixesReceived++;
+            } else {
+                stateReplies++;
+            }
+        }
+
+        void awaitFixes(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (fixesReceived < latencies.length && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    public static class Report {
+
+        final int fixesReceived;
+        final int stateReplies;
+        final int commandsSent;
+        final boolean inOrder;
+        final long elapsedNanos;
+        final long allocatedBytes;
+        final long[] sortedLatencies;
+
+        Report(Recorder recorder, int commandsSent, long elapsedNanos, long allocatedBytes) {
+            this.fixesReceived = recorder.fixesReceived;
+            this.stateReplies = recorder.stateReplies;
+            this.commandsSent = commandsSent;
+            this.inOrder = recorder.inOrder;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.sortedLatencies = Arrays.copyOf(recorder.latencies, fixesReceived);
+            Arrays.sort(sortedLatencies);
+        }
+
+        long percentileMicros(double percentile) {
+            if (sortedLatencies.length == 0) {
+                return -1;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+            return TimeUnit.NANOSECONDS.toMicros(sortedLatencies[Math.max(0, index)]);
+        }
+
+        void print() {
+            double seconds = elapsedNanos / 1e9;
+            System.out.println(String.format(
+                    "loopback load: %d fixes, %d commands, %d state replies in %.2f s",
+                    fixesReceived, commandsSent, stateReplies, seconds));
+            System.out.println(String.format("  throughput: %.0f fixes/s, %.0f commands/s",
+                    fixesReceived / seconds, commandsSent / seconds));
+            System.out.println(String.format(
+                    "  latency us: p50=%d p90=%d p99=%d p99.9=%d max=%d",
+                    percentileMicros(50), percentileMicros(90), percentileMicros(99),
+                    percentileMicros(99.9), percentileMicros(100)));
+            if (allocatedBytes >= 0) {
+                System.out.println(String.format("  allocation: %.1f MB/s, %.1f bytes/fix",
+                        allocatedBytes / seconds / (1 << 20),
+                        fixesReceived > 0 ? (double) allocatedBytes / fixesReceived : 0));
+            }
+        }
+    }
+}
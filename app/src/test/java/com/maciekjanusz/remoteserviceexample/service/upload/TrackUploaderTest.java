@@ -0,0 +1,246 @@
+package com.maciekjanusz.remoteserviceexample.service.upload;
+
+import com.maciekjanusz.remoteserviceexample.service.LocationSample;
+import com.maciekjanusz.remoteserviceexample.service.track.CompactTrackReader;
+import com.maciekjanusz.remoteserviceexample.service.track.TrackLog;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads to a local HTTP server standing in for the backend.
+ */
+public class TrackUploaderTest {
+
+    private HttpServer server;
+    private Backend backend;
+    private File trackFile;
+    private File cursorFile;
+    private TrackLog trackLog;
+    private TrackUploader uploader;
+
+    @Before
+    public void setUp() throws Exception {
+        backend = new Backend();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/track", backend);
+        server.start();
+        trackFile = File.createTempFile("upload", ".log");
+        cursorFile = File.createTempFile("upload", ".cursor");
+        cursorFile.delete();
+        trackLog = new TrackLog(trackFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (uploader != null) {
+            uploader.stop();
+        }
+        server.stop(0);
+        trackLog.close();
+        trackFile.delete();
+        cursorFile.delete();
+    }
+
+    @Test
+    public void uploadsSizeAndTimeBoundedBatches() throws Exception {
+        append(0, 5000);
+        UploadCursor cursor = new UploadCursor(cursorFile);
+        uploader = createUploader(cursor).setBatchLimits(2048, 300);
+        long start = System.nanoTime();
+        uploader.start();
+        awaitPosition(cursor, 5000);
+
+        assertEquals(3, backend.ranges.size());
+        assertEquals("0-2048", backend.ranges.get(0));
+        assertEquals("2048-4096", backend.ranges.get(1));
+        assertEquals("4096-5000", backend.ranges.get(2));
+        // the last batch wasn't full, it waited for the max delay
+        assertTrue((System.nanoTime() - start) / 1000000 >= 300);
+        assertEquals(5000, backend.times.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i * 1000L, (long) backend.times.get(i));
+        }
+        assertTrue("not compressed", backend.bodyBytes < 5000 * 12);
+    }
+
+    @Test
+    public void retriesWithBackoffAndResumesFromCommittedRecord() throws Exception {
+        append(0, 100);
+        backend.failures = 3;
+        UploadCursor cursor = new UploadCursor(cursorFile);
+        uploader = createUploader(cursor);
+        uploader.start();
+        awaitPosition(cursor, 100);
+        // failed attempts aren't acknowledged, the same range is sent again
+        assertEquals(4, backend.requests);
+        assertEquals("0-100", backend.ranges.get(0));
+        uploader.stop();
+
+        // restarted service continues where the acknowledged upload ended
+        append(100, 150);
+        cursor = new UploadCursor(cursorFile);
+        assertEquals(100, cursor.position());
+        uploader = createUploader(cursor);
+        uploader.start();
+        awaitPosition(cursor, 150);
+        assertEquals("100-150", backend.ranges.get(1));
+        assertEquals(150, backend.times.size());
+    }
+
+    @Test
+    public void backoffDoublesUpToMaximum() throws Exception {
+        TrackUploader uploader = createUploader(new UploadCursor(cursorFile)).setBackoff(100, 1000);
+        assertEquals(100, uploader.backoffMillis(1));
+        assertEquals(200, uploader.backoffMillis(2));
+        assertEquals(800, uploader.backoffMillis(4));
+        assertEquals(1000, uploader.backoffMillis(5));
+        assertEquals(1000, uploader.backoffMillis(100));
+        uploader.stop();
+    }
+
+    @Test
+    public void stopDoesntInterruptUpload() throws Exception {
+        append(0, 100);
+        final CountDownLatch uploading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        UploadCursor cursor = new UploadCursor(cursorFile);
+        uploader = new TrackUploader(trackLog, cursor, new UploadClient() {
+            @Override
+            public void upload(long fromRecord, long toRecord, byte[] body, int length)
+                    throws IOException {
+                uploading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // would have closed the track log's channel, had it come while reading
+                    interrupted.set(true);
+                    throw new IOException("Interrupted");
+                }
+            }
+        }).setBatchLimits(2048, 0);
+        uploader.start();
+        assertTrue(uploading.await(5, TimeUnit.SECONDS));
+        uploader.stop();
+        Thread.sleep(50);
+        release.countDown();
+
+        // the upload in progress completes, nothing more is uploaded
+        awaitPosition(cursor, 100);
+        assertFalse(interrupted.get());
+        append(100, 200);
+        Thread.sleep(50);
+        assertEquals(100, cursor.position());
+        assertEquals(200, trackLog.flushedSize());
+    }
+
+    @Test
+    public void retriesAfterUnexpectedClientFailure() throws Exception {
+        append(0, 100);
+        final AtomicInteger attempts = new AtomicInteger();
+        UploadCursor cursor = new UploadCursor(cursorFile);
+        uploader = new TrackUploader(trackLog, cursor, new UploadClient() {
+            @Override
+            public void upload(long fromRecord, long toRecord, byte[] body, int length) {
+                if (attempts.incrementAndGet() <= 2) {
+                    throw new IllegalStateException("client bug");
+                }
+            }
+        }).setBatchLimits(2048, 0).setBackoff(10, 40);
+        uploader.start();
+        awaitPosition(cursor, 100);
+        assertEquals(3, attempts.get());
+    }
+
+    private TrackUploader createUploader(UploadCursor cursor) throws IOException {
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/track");
+        return new TrackUploader(trackLog, cursor, new HttpUploadClient(url))
+                .setBatchLimits(2048, 0)
+                .setPollInterval(20)
+                .setBackoff(10, 40);
+    }
+
+    private void append(int from, int to) throws IOException {
+        LocationSample sample = new LocationSample();
+        for (int i = from; i < to; i++) {
+            sample.reset();
+            sample.time = i * 1000L;
+            sample.latitude = 52 + i * 1e-5;
+            sample.longitude = 21 + i * 1e-5;
+            sample.accuracy = 5;
+            sample.flags = LocationSample.HAS_ACCURACY;
+            trackLog.append(sample);
+        }
+        trackLog.flush();
+    }
+
+    private static void awaitPosition(UploadCursor cursor, long position) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (cursor.position() < position && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(position, cursor.position());
+    }
+
+    /**
+     * Decodes and records acknowledged batches, failing the given number of requests first
+     */
+    private static class Backend implements HttpHandler {
+        final List<String> ranges = new ArrayList<>();
+        final List<Long> times = new ArrayList<>();
+        volatile int failures = 0;
+        volatile int requests = 0;
+        volatile long bodyBytes = 0;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requests++;
+            try {
+                if (failures > 0) {
+                    failures--;
+                    exchange.getRequestBody().close();
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+                }
+                String range = exchange.getRequestHeaders().getFirst("X-Track-From") + "-"
+                        + exchange.getRequestHeaders().getFirst("X-Track-To");
+                bodyBytes += Long.parseLong(exchange.getRequestHeaders().getFirst("Content-Length"));
+                CompactTrackReader reader = new CompactTrackReader(Channels.newChannel(
+                        new GZIPInputStream(exchange.getRequestBody())));
+                LocationSample sample = new LocationSample();
+                synchronized (this) {
+                    ranges.add(range);
+                    while (reader.next(sample)) {
+                        times.add(sample.time);
+                    }
+                }
+                reader.close();
+                exchange.sendResponseHeaders(204, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+}
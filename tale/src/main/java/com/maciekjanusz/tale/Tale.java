@@ -65,6 +65,19 @@ public class Tale {
         className = decodeClassName(name);
     }
 
+    /**
+     * This constructor sets the log message, className and method name of the given call site
+     * instead of the calling one. Used by {@link TaleLimit} to tell summaries on behalf of
+     * limited call sites.
+     * @param story a log message
+     * @param site stack trace element of the call site
+     */
+    Tale(String story, StackTraceElement site) {
+        this.story = story;
+        className = decodeClassName(site.getClassName());
+        methodName = site.getMethodName();
+    }
+
     /**
      * Calling this method will add a name of the method form wherein this is called to log message.
      * @return this Tale object
@@ -0,0 +1,155 @@
+package com.maciekjanusz.tale;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class limits how often a single call site tells its Tale - at most N tales per time window
+ * and/or a random sample of them. Keep one instance per call site and check it before building
+ * the Tale, so that suppressed tales cost nothing but the check:
+ *
+ * private static final TaleLimit SEND_LIMIT = TaleLimit.perSecond(5);
+ * ...
+ * if (SEND_LIMIT.allow()) {
+ *     new Tale("Sending message " + what).at().tell();
+ * }
+ *
+ * The number of suppressed tales gets told as a summary, at most once per window - by the first
+ * check of a new window, tagged with the call site.
+ *
+ * The check is lock-free (a few atomic operations) and doesn't allocate, so it's safe to use
+ * on hot paths and from any thread.
+ */
+public class TaleLimit {
+
+    /**
+     * Low bits of {@link #state} holding the number of tales allowed in the current window,
+     * high bits hold the window number
+     */
+    private static final int COUNT_BITS = 20;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    /**
+     * Stack trace element index of the call site, from {@link #tellSummary(int)}
+     */
+    private static final int TRACE_DEPTH = 4;
+    /**
+     * Increment of the {@link #random} sequence (SplitMix64)
+     */
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    /**
+     * Random values are 53 bit
+     */
+    private static final long RANDOM_BOUND = 1L << 53;
+
+    private final int maxCount;
+    private final long windowNanos;
+    /**
+     * Random value below which a tale is sampled, {@link #RANDOM_BOUND} to sample all
+     */
+    private final long sampleThreshold;
+    private final long origin;
+
+    private final AtomicLong state = new AtomicLong();
+    private final AtomicLong random = new AtomicLong(System.nanoTime());
+    private final AtomicInteger suppressed = new AtomicInteger();
+
+    /**
+     * @param maxCount maximum number of tales per window
+     * @param window window length
+     * @param unit window length unit
+     * @param sampleRate fraction of tales to tell, from 0 to 1 - applied before the count limit
+     */
+    public TaleLimit(int maxCount, long window, TimeUnit unit, double sampleRate) {
+        if (maxCount < 0 || window <= 0 || sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("Invalid limit");
+        }
+        this.maxCount = (int) Math.min(maxCount, COUNT_MASK);
+        this.windowNanos = unit.toNanos(window);
+        this.sampleThreshold = (long) (sampleRate * RANDOM_BOUND);
+        this.origin = nanoTime();
+    }
+
+    /**
+     * @param maxCount maximum number of tales per second
+     * @return limit telling at most maxCount tales per second
+     */
+    public static TaleLimit perSecond(int maxCount) {
+        return new TaleLimit(maxCount, 1, TimeUnit.SECONDS, 1);
+    }
+
+    /**
+     * @param sampleRate fraction of tales to tell, from 0 to 1
+     * @return limit telling a random sample of tales, with suppressed counts summarized every second
+     */
+    public static TaleLimit sampled(double sampleRate) {
+        return new TaleLimit((int) COUNT_MASK, 1, TimeUnit.SECONDS, sampleRate);
+    }
+
+    /**
+     * Checks whether the tale should be told, counting it as told if so.
+     * @return true if the tale should be told, false if it's suppressed
+     */
+    public boolean allow() {
+        boolean sampled = sampleThreshold == RANDOM_BOUND || nextRandom() < sampleThreshold;
+        long now = (nanoTime() - origin) / windowNanos;
+        while (true) {
+            long current = state.get();
+            long currentWindow = current >>> COUNT_BITS;
+            // a thread that read the clock before others may lag behind, it counts in their window
+            long window = Math.max(now, currentWindow);
+            boolean newWindow = window != currentWindow;
+            long count = newWindow ? 0 : current & COUNT_MASK;
+            boolean allowed = sampled && count < maxCount;
+            long next = (window << COUNT_BITS) | (allowed ? count + 1 : count);
+            if (next == current || state.compareAndSet(current, next)) {
+                if (newWindow) {
+                    int suppressedCount = suppressed.getAndSet(0);
+                    if (suppressedCount > 0) {
+                        tellSummary(suppressedCount);
+                    }
+                }
+                if (!allowed) {
+                    suppressed.incrementAndGet();
+                }
+                return allowed;
+            }
+        }
+    }
+
+    /**
+     * @return number of tales suppressed since the last summary
+     */
+    public int suppressedCount() {
+        return suppressed.get();
+    }
+
+    /**
+     * Tells how many tales have been suppressed, on behalf of the call site of {@link #allow()}.
+     */
+    void tellSummary(int suppressedCount) {
+        StackTraceElement site = Thread.currentThread().getStackTrace()[TRACE_DEPTH];
+        new Tale(suppressedCount + " similar tale(s) suppressed", site).how(Log.INFO).tell();
+    }
+
+    /**
+     * @return monotonic time in nanoseconds
+     */
+    long nanoTime() {
+        return System.nanoTime();
+    }
+
+    /**
+     * @return uniformly distributed random value below {@link #RANDOM_BOUND}
+     */
+    private long nextRandom() {
+        // SplitMix64 - a lock-free sequence shared by all threads
+        long z = random.addAndGet(GOLDEN_GAMMA);
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        z = z ^ (z >>> 31);
+        return z >>> 11;
+    }
+}
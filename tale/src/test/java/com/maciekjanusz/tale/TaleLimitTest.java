@@ -0,0 +1,109 @@
+package com.maciekjanusz.tale;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TaleLimitTest {
+
+    @Test
+    public void limitsTalesPerWindowAndSummarizesSuppressed() {
+        ManualLimit limit = new ManualLimit(3, 1);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limit.allow());
+        }
+        assertFalse(limit.allow());
+        assertFalse(limit.allow());
+        assertEquals(2, limit.suppressedCount());
+        assertTrue(limit.summaries.isEmpty());
+
+        limit.now = TimeUnit.MILLISECONDS.toNanos(1500);
+        assertTrue(limit.allow());
+        assertEquals(1, limit.summaries.size());
+        assertEquals(2, (int) limit.summaries.get(0));
+        assertEquals(0, limit.suppressedCount());
+
+        // no summary without suppressed tales
+        limit.now = TimeUnit.MILLISECONDS.toNanos(2500);
+        assertTrue(limit.allow());
+        assertEquals(1, limit.summaries.size());
+    }
+
+    @Test
+    public void samplesTales() {
+        ManualLimit limit = new ManualLimit(Integer.MAX_VALUE, 0.1);
+        int allowed = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (limit.allow()) {
+                allowed++;
+            }
+        }
+        assertTrue("allowed " + allowed, allowed > 9000 && allowed < 11000);
+        assertEquals(100000 - allowed, limit.suppressedCount());
+
+        assertFalse(new ManualLimit(Integer.MAX_VALUE, 0).allow());
+    }
+
+    @Test
+    public void countsExactlyUnderContention() throws Exception {
+        final ManualLimit limit = new ManualLimit(1000, 1);
+        final AtomicInteger allowed = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 10000; i++) {
+                        if (limit.allow()) {
+                            allowed.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1000, allowed.get());
+        assertEquals(79000, limit.suppressedCount());
+    }
+
+    /**
+     * Limit with one second window, driven by a manual clock, recording summaries
+     */
+    private static class ManualLimit extends TaleLimit {
+        volatile long now = 0;
+        final List<Integer> summaries = new ArrayList<>();
+
+        ManualLimit(int maxCount, double sampleRate) {
+            super(maxCount, 1, TimeUnit.SECONDS, sampleRate);
+        }
+
+        @Override
+        long nanoTime() {
+            return now;
+        }
+
+        @Override
+        void tellSummary(int suppressedCount) {
+            summaries.add(suppressedCount);
+        }
+    }
+}